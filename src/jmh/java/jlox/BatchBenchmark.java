@@ -0,0 +1,51 @@
+package jlox;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+// The expressions of the LARGE corpus as separate sources, evaluated one
+// after another and as a parallel batch. The cache is cleared every time so
+// scanning and parsing are part of the measurement.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+public class BatchBenchmark {
+  private List<String> sources;
+  private final Engine engine = new Engine();
+
+  @Setup
+  public void setup() {
+    sources = Arrays.asList(Corpus.LARGE.source().split(",\n"));
+  }
+
+  @Benchmark
+  public List<Engine.Result> sequential() {
+    engine.clearCache();
+    List<Engine.Result> results = new ArrayList<>(sources.size());
+    for (String source : sources)
+      results.add(engine.evaluate(source));
+    return results;
+  }
+
+  @Benchmark
+  public List<Engine.Result> parallel() {
+    engine.clearCache();
+    return engine.evaluateAll(sources);
+  }
+}
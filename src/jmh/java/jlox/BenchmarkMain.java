@@ -0,0 +1,28 @@
+package jlox;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+// Runs the benchmarks with the GC profiler attached so every phase reports
+// its allocation rate (gc.alloc.rate.norm) next to its throughput.
+// Accepts the usual JMH command line, e.g. `java -jar target/benchmarks.jar scan`
+public class BenchmarkMain {
+  public static void main(String[] args) throws Exception {
+    Options commandLine = new CommandLineOptions(args);
+    Options options = new OptionsBuilder()
+        .parent(commandLine)
+        .addProfiler(GCProfiler.class)
+        .build();
+
+    try {
+      new Runner(options).run();
+    } catch (RunnerException e) {
+      System.err.println(e.getMessage());
+      System.exit(1);
+    }
+  }
+}
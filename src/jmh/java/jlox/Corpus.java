@@ -0,0 +1,207 @@
+package jlox;
+
+import java.util.Random;
+
+// Seeded source generators so every benchmark run sees the same input
+public enum Corpus {
+  // A single short line as typed into the REPL
+  REPL {
+    @Override
+    String generate(Random random) {
+      StringBuilder builder = new StringBuilder();
+      numeric(builder, random, 3);
+      return builder.toString();
+    }
+  },
+
+  // One arithmetic expression a few hundred characters long
+  NUMERIC {
+    @Override
+    String generate(Random random) {
+      StringBuilder builder = new StringBuilder();
+      while (builder.length() < 200) {
+        builder.setLength(0);
+        numeric(builder, random, 8);
+      }
+      return builder.toString();
+    }
+  },
+
+  // Roughly 1 MB of comma separated expressions spread over many lines
+  LARGE {
+    @Override
+    String generate(Random random) {
+      StringBuilder builder = new StringBuilder(LARGE_SIZE + 256);
+      while (builder.length() < LARGE_SIZE) {
+        if (builder.length() > 0)
+          builder.append(",\n");
+        if (random.nextInt(8) == 0)
+          builder.append("// generated\n");
+        expression(builder, random, 4);
+      }
+      return builder.toString();
+    }
+  },
+
+  // Roughly 1 MB that is mostly comments and string literals
+  COMMENTED {
+    @Override
+    String generate(Random random) {
+      StringBuilder builder = new StringBuilder(LARGE_SIZE + 256);
+      while (builder.length() < LARGE_SIZE) {
+        if (builder.length() > 0)
+          builder.append(",\n");
+        builder.append("// ");
+        text(builder, random, 60);
+        builder.append("\n/* ");
+        text(builder, random, 60);
+        builder.append("\n   ");
+        text(builder, random, 60);
+        builder.append(" */\n\"");
+        text(builder, random, 40);
+        builder.append("\" == \"");
+        text(builder, random, 40);
+        builder.append('"');
+      }
+      return builder.toString();
+    }
+  },
+
+  // c ? 1 : c ? 2 : ... nested to NESTING levels
+  TERNARY_CHAIN {
+    @Override
+    String generate(Random random) {
+      StringBuilder builder = new StringBuilder();
+      for (int i = 0; i < NESTING; i++) {
+        comparison(builder, random, 1);
+        builder.append(" ? ");
+        numeric(builder, random, 1);
+        builder.append(" : ");
+      }
+      numeric(builder, random, 1);
+      return builder.toString();
+    }
+  },
+
+  // 1, 2, 3, ... with COMMA_LENGTH elements
+  COMMA_CHAIN {
+    @Override
+    String generate(Random random) {
+      StringBuilder builder = new StringBuilder();
+      for (int i = 0; i < COMMA_LENGTH; i++) {
+        if (i > 0)
+          builder.append(", ");
+        numeric(builder, random, 1);
+      }
+      return builder.toString();
+    }
+  },
+
+  // One rule: comparisons joined by and/or, PREDICATE_DEPTH levels deep,
+  // choosing between two arithmetic expressions
+  PREDICATES {
+    @Override
+    String generate(Random random) {
+      StringBuilder builder = new StringBuilder();
+      predicate(builder, random, PREDICATE_DEPTH);
+      builder.append(" ? ");
+      numeric(builder, random, 4);
+      builder.append(" : ");
+      numeric(builder, random, 4);
+      return builder.toString();
+    }
+  };
+
+  static final long SEED = 0x10C5EEDL;
+  static final int LARGE_SIZE = 1 << 20;
+  static final int NESTING = 512;
+  static final int COMMA_LENGTH = 10_000;
+  static final int PREDICATE_DEPTH = 8;
+
+  private static final String[] ARITHMETIC = { "+", "-", "*", "/" };
+  private static final String[] COMPARISON = { "<", "<=", ">", ">=", "==", "!=" };
+
+  abstract String generate(Random random);
+
+  String source() {
+    return generate(new Random(SEED));
+  }
+
+  // Every generated expression type checks under Interpreter, so evaluation never throws
+  private static void expression(StringBuilder builder, Random random, int depth) {
+    switch (random.nextInt(3)) {
+      case 0:
+        comparison(builder, random, depth);
+        builder.append(" ? ");
+        numeric(builder, random, depth - 1);
+        builder.append(" : ");
+        numeric(builder, random, depth - 1);
+        break;
+      case 1:
+        comparison(builder, random, depth);
+        break;
+      default:
+        numeric(builder, random, depth);
+        break;
+    }
+  }
+
+  private static void predicate(StringBuilder builder, Random random, int depth) {
+    if (depth <= 0 || random.nextInt(5) == 0) {
+      comparison(builder, random, 2);
+      return;
+    }
+
+    builder.append('(');
+    predicate(builder, random, depth - 1);
+    builder.append(random.nextBoolean() ? " and " : " or ");
+    predicate(builder, random, depth - 1);
+    builder.append(')');
+  }
+
+  private static void comparison(StringBuilder builder, Random random, int depth) {
+    if (random.nextInt(4) == 0)
+      builder.append('!');
+    builder.append('(');
+    numeric(builder, random, depth - 1);
+    builder.append(' ').append(COMPARISON[random.nextInt(COMPARISON.length)]).append(' ');
+    numeric(builder, random, depth - 1);
+    builder.append(')');
+  }
+
+  private static void numeric(StringBuilder builder, Random random, int depth) {
+    if (depth <= 0 || random.nextInt(4) == 0) {
+      number(builder, random);
+      return;
+    }
+
+    switch (random.nextInt(3)) {
+      case 0:
+        builder.append("-");
+        numeric(builder, random, depth - 1);
+        break;
+      case 1:
+        builder.append('(');
+        numeric(builder, random, depth - 1);
+        builder.append(')');
+        break;
+      default:
+        numeric(builder, random, depth - 1);
+        builder.append(' ').append(ARITHMETIC[random.nextInt(ARITHMETIC.length)]).append(' ');
+        numeric(builder, random, depth - 1);
+        break;
+    }
+  }
+
+  // Words of lower case letters
+  private static void text(StringBuilder builder, Random random, int length) {
+    for (int i = 0; i < length; i++)
+      builder.append(random.nextInt(6) == 0 ? ' ' : (char) ('a' + random.nextInt(26)));
+  }
+
+  private static void number(StringBuilder builder, Random random) {
+    builder.append(random.nextInt(1000));
+    if (random.nextBoolean())
+      builder.append('.').append(random.nextInt(100));
+  }
+}
@@ -0,0 +1,147 @@
+package jlox;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+// Each phase is measured on its own, with the previous phases done in setup,
+// and once more end to end
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 2, jvmArgsAppend = { "-Xss16m" })
+public class PhaseBenchmark {
+
+  @Param({ "REPL", "NUMERIC", "LARGE", "COMMENTED", "TERNARY_CHAIN", "COMMA_CHAIN", "PREDICATES" })
+  Corpus corpus;
+
+  private String source;
+  private List<Token> tokens;
+  private TokenStream tokenStream;
+  private Expression expression;
+  private Expression optimized;
+  private ExpressionArena arena;
+  private Chunk chunk;
+  private final VM vm = new VM();
+  private final Interpreter interpreter = new Interpreter();
+  private final Interpreter treeWalker = new Interpreter(-1);
+  private final Engine engine = new Engine();
+
+  @Setup
+  public void setup() {
+    source = corpus.source();
+    tokens = new Scanner(source).scanTokens();
+    tokenStream = new Scanner(source).scanTokenStream();
+    expression = new Parser(tokens).parse();
+
+    if (expression == null)
+      throw new IllegalStateException("Corpus " + corpus + " does not parse");
+
+    optimized = Optimizer.optimize(expression);
+    arena = ExpressionFlattener.flatten(expression);
+    chunk = Compiler.compile(expression);
+    engine.parse(source, new Diagnostics());
+  }
+
+  @Benchmark
+  public List<Token> scan() {
+    return new Scanner(source).scanTokens();
+  }
+
+  @Benchmark
+  public TokenStream scanTokenStream() {
+    return new Scanner(source).scanTokenStream();
+  }
+
+  // Same as scanTokenStream below MIN_PARALLEL_LENGTH
+  @Benchmark
+  public TokenStream scanParallel() {
+    return ParallelScanner.scan(source, new Diagnostics());
+  }
+
+  @Benchmark
+  public Expression parse() {
+    return new Parser(tokens).parse();
+  }
+
+  @Benchmark
+  public Expression parseTokenStream() {
+    return new Parser(tokenStream).parse();
+  }
+
+  // Source seen before, served from the cache
+  @Benchmark
+  public Expression parseCached() {
+    return engine.parse(source, new Diagnostics());
+  }
+
+  @Benchmark
+  public Object interpret() {
+    return interpreter.interpret(expression);
+  }
+
+  @Benchmark
+  public Object treeWalk() {
+    return treeWalker.interpret(expression);
+  }
+
+  @Benchmark
+  public Expression optimize() {
+    return Optimizer.optimize(expression);
+  }
+
+  @Benchmark
+  public Object interpretOptimized() {
+    return interpreter.interpret(optimized);
+  }
+
+  @Benchmark
+  public ExpressionArena flatten() {
+    return ExpressionFlattener.flatten(expression);
+  }
+
+  @Benchmark
+  public Object interpretArena() {
+    return interpreter.interpret(arena);
+  }
+
+  @Benchmark
+  public String print() {
+    return new PrintAst.AstPrinter().print(expression);
+  }
+
+  @Benchmark
+  public String printArena() {
+    return new PrintAst.ArenaPrinter().print(arena);
+  }
+
+  @Benchmark
+  public Chunk compile() {
+    return Compiler.compile(expression);
+  }
+
+  @Benchmark
+  public Object vm() {
+    return vm.run(chunk);
+  }
+
+  @Benchmark
+  public Object endToEnd() {
+    TokenStream scanned = new Scanner(source).scanTokenStream();
+    Expression parsed = new Parser(scanned).parse();
+    return parsed.accept(new Interpreter());
+  }
+}
@@ -0,0 +1,101 @@
+package jlox;
+
+import java.util.Arrays;
+
+// Flat bytecode for one expression, written by Compiler and executed by VM.
+// Operands follow their opcode as 4 byte big-endian ints.
+class Chunk {
+  // Push numbers[operand]
+  static final byte OP_NUMBER = 0;
+  // Push constants[operand]
+  static final byte OP_CONSTANT = 1;
+  static final byte OP_NIL = 2;
+  static final byte OP_TRUE = 3;
+  static final byte OP_FALSE = 4;
+  static final byte OP_POP = 5;
+  static final byte OP_NEGATE = 6;
+  static final byte OP_NOT = 7;
+  static final byte OP_ADD = 8;
+  static final byte OP_SUBTRACT = 9;
+  static final byte OP_MULTIPLY = 10;
+  static final byte OP_DIVIDE = 11;
+  static final byte OP_GREATER = 12;
+  static final byte OP_GREATER_EQUAL = 13;
+  static final byte OP_LESS = 14;
+  static final byte OP_LESS_EQUAL = 15;
+  static final byte OP_EQUAL = 16;
+  static final byte OP_NOT_EQUAL = 17;
+  // Jump to the absolute offset operand
+  static final byte OP_JUMP = 18;
+  // Pop the condition and jump to the operand if it is falsey
+  static final byte OP_JUMP_IF_FALSE = 19;
+  // For and/or: jump to the operand keeping the value on top if it is
+  // falsey (or truthy), pop it and go on otherwise
+  static final byte OP_JUMP_IF_FALSE_OR_POP = 20;
+  static final byte OP_JUMP_IF_TRUE_OR_POP = 21;
+  static final byte OP_RETURN = 22;
+
+  byte[] code = new byte[64];
+  int count = 0;
+
+  // Operator token of every instruction that can fail, indexed by offset
+  Token[] operators = new Token[64];
+
+  double[] numbers = new double[8];
+  int numberCount = 0;
+
+  Object[] constants = new Object[8];
+  int constantCount = 0;
+
+  // Deepest the value stack gets while running this chunk
+  int maxStack = 0;
+
+  void write(byte op) {
+    if (count == code.length) {
+      code = Arrays.copyOf(code, count * 2);
+      operators = Arrays.copyOf(operators, count * 2);
+    }
+
+    code[count++] = op;
+  }
+
+  void write(byte op, Token operator) {
+    write(op);
+    operators[count - 1] = operator;
+  }
+
+  void writeInt(int operand) {
+    write((byte) (operand >>> 24));
+    write((byte) (operand >>> 16));
+    write((byte) (operand >>> 8));
+    write((byte) operand);
+  }
+
+  void patchInt(int offset, int operand) {
+    code[offset] = (byte) (operand >>> 24);
+    code[offset + 1] = (byte) (operand >>> 16);
+    code[offset + 2] = (byte) (operand >>> 8);
+    code[offset + 3] = (byte) operand;
+  }
+
+  int readInt(int offset) {
+    return (code[offset] << 24) | ((code[offset + 1] & 0xff) << 16)
+        | ((code[offset + 2] & 0xff) << 8) | (code[offset + 3] & 0xff);
+  }
+
+  int addNumber(double value) {
+    if (numberCount == numbers.length)
+      numbers = Arrays.copyOf(numbers, numberCount * 2);
+
+    numbers[numberCount] = value;
+    return numberCount++;
+  }
+
+  int addConstant(Object value) {
+    if (constantCount == constants.length)
+      constants = Arrays.copyOf(constants, constantCount * 2);
+
+    constants[constantCount] = value;
+    return constantCount++;
+  }
+}
@@ -0,0 +1,310 @@
+package jlox;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+// Just enough of the class file format for JitCompiler: a constant pool,
+// one code buffer per method and the final assembly. Version 49 classes are
+// verified by type inference, so no stack map frames are needed.
+class ClassFile {
+  static final int VERSION = 49;
+
+  static final int ACC_PUBLIC = 0x0001;
+  static final int ACC_PRIVATE = 0x0002;
+  static final int ACC_FINAL = 0x0010;
+  static final int ACC_SUPER = 0x0020;
+
+  // Opcodes
+  static final int ACONST_NULL = 0x01;
+  static final int ICONST_0 = 0x03;
+  static final int ICONST_1 = 0x04;
+  static final int BIPUSH = 0x10;
+  static final int SIPUSH = 0x11;
+  static final int LDC_W = 0x13;
+  static final int LDC2_W = 0x14;
+  static final int ALOAD_0 = 0x2a;
+  static final int ALOAD_1 = 0x2b;
+  static final int AALOAD = 0x32;
+  static final int POP = 0x57;
+  static final int POP2 = 0x58;
+  static final int DUP = 0x59;
+  static final int DUP2 = 0x5c;
+  static final int DADD = 0x63;
+  static final int DSUB = 0x67;
+  static final int DMUL = 0x6b;
+  static final int DDIV = 0x6f;
+  static final int DNEG = 0x77;
+  static final int IXOR = 0x82;
+  static final int LCMP = 0x94;
+  static final int DCMPL = 0x97;
+  static final int DCMPG = 0x98;
+  static final int IFEQ = 0x99;
+  static final int IFNE = 0x9a;
+  static final int IFLT = 0x9b;
+  static final int IFGE = 0x9c;
+  static final int IFGT = 0x9d;
+  static final int IFLE = 0x9e;
+  static final int IF_ICMPNE = 0xa0;
+  static final int GOTO = 0xa7;
+  static final int ARETURN = 0xb0;
+  static final int RETURN = 0xb1;
+  static final int GETFIELD = 0xb4;
+  static final int PUTFIELD = 0xb5;
+  static final int INVOKESPECIAL = 0xb7;
+  static final int INVOKESTATIC = 0xb8;
+  static final int CHECKCAST = 0xc0;
+
+  private static final int CONSTANT_UTF8 = 1;
+  private static final int CONSTANT_DOUBLE = 6;
+  private static final int CONSTANT_CLASS = 7;
+  private static final int CONSTANT_FIELDREF = 9;
+  private static final int CONSTANT_METHODREF = 10;
+  private static final int CONSTANT_NAME_AND_TYPE = 12;
+
+  private final ByteArrayOutputStream pool = new ByteArrayOutputStream();
+  private final DataOutputStream poolOut = new DataOutputStream(pool);
+  private final Map<String, Integer> entries = new HashMap<>();
+  private int poolCount = 1;
+
+  private final ByteArrayOutputStream fields = new ByteArrayOutputStream();
+  private final DataOutputStream fieldsOut = new DataOutputStream(fields);
+  private int fieldCount = 0;
+
+  private final ByteArrayOutputStream methods = new ByteArrayOutputStream();
+  private final DataOutputStream methodsOut = new DataOutputStream(methods);
+  private int methodCount = 0;
+
+  private final int thisClass;
+  private final int superClass;
+  private final int[] interfaces;
+
+  ClassFile(String name, String superName, String... interfaceNames) {
+    thisClass = classRef(name);
+    superClass = classRef(superName);
+    interfaces = new int[interfaceNames.length];
+    for (int i = 0; i < interfaceNames.length; i++)
+      interfaces[i] = classRef(interfaceNames[i]);
+  }
+
+  // Constant pool, entries are shared by key
+
+  int utf8(String value) {
+    return add("U" + value, 1, out -> {
+      out.writeByte(CONSTANT_UTF8);
+      out.writeUTF(value);
+    });
+  }
+
+  int classRef(String name) {
+    int nameIndex = utf8(name);
+    return add("C" + name, 1, out -> {
+      out.writeByte(CONSTANT_CLASS);
+      out.writeShort(nameIndex);
+    });
+  }
+
+  int doubleConstant(double value) {
+    return add("D" + Double.doubleToRawLongBits(value), 2, out -> {
+      out.writeByte(CONSTANT_DOUBLE);
+      out.writeDouble(value);
+    });
+  }
+
+  int fieldRef(String owner, String name, String descriptor) {
+    return memberRef(CONSTANT_FIELDREF, owner, name, descriptor);
+  }
+
+  int methodRef(String owner, String name, String descriptor) {
+    return memberRef(CONSTANT_METHODREF, owner, name, descriptor);
+  }
+
+  private int memberRef(int tag, String owner, String name, String descriptor) {
+    int ownerIndex = classRef(owner);
+    int nameIndex = utf8(name);
+    int descriptorIndex = utf8(descriptor);
+    int nameAndType = add("N" + name + ":" + descriptor, 1, out -> {
+      out.writeByte(CONSTANT_NAME_AND_TYPE);
+      out.writeShort(nameIndex);
+      out.writeShort(descriptorIndex);
+    });
+
+    return add(tag + owner + "." + name + ":" + descriptor, 1, out -> {
+      out.writeByte(tag);
+      out.writeShort(ownerIndex);
+      out.writeShort(nameAndType);
+    });
+  }
+
+  private interface Entry {
+    void write(DataOutputStream out) throws IOException;
+  }
+
+  private int add(String key, int slots, Entry entry) {
+    Integer index = entries.get(key);
+    if (index != null)
+      return index;
+
+    try {
+      entry.write(poolOut);
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+
+    index = poolCount;
+    poolCount += slots;
+    if (poolCount > 0xffff)
+      throw new IllegalStateException("Constant pool overflow");
+
+    entries.put(key, index);
+    return index;
+  }
+
+  // Members
+
+  void field(int access, String name, String descriptor) {
+    try {
+      fieldsOut.writeShort(access);
+      fieldsOut.writeShort(utf8(name));
+      fieldsOut.writeShort(utf8(descriptor));
+      fieldsOut.writeShort(0);
+      fieldCount++;
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+
+  void method(int access, String name, String descriptor, Code code) {
+    if (code.length() > Code.MAX_LENGTH)
+      throw new IllegalStateException("Method too large");
+
+    try {
+      methodsOut.writeShort(access);
+      methodsOut.writeShort(utf8(name));
+      methodsOut.writeShort(utf8(descriptor));
+      methodsOut.writeShort(1);
+
+      methodsOut.writeShort(utf8("Code"));
+      methodsOut.writeInt(12 + code.length());
+      methodsOut.writeShort(code.maxStack);
+      methodsOut.writeShort(code.maxLocals);
+      methodsOut.writeInt(code.length());
+      code.writeTo(methodsOut);
+      // No exception table, no attributes
+      methodsOut.writeShort(0);
+      methodsOut.writeShort(0);
+      methodCount++;
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+
+  byte[] toByteArray() {
+    try {
+      ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+      DataOutputStream out = new DataOutputStream(bytes);
+      out.writeInt(0xCAFEBABE);
+      out.writeShort(0);
+      out.writeShort(VERSION);
+      out.writeShort(poolCount);
+      pool.writeTo(out);
+
+      out.writeShort(ACC_PUBLIC | ACC_FINAL | ACC_SUPER);
+      out.writeShort(thisClass);
+      out.writeShort(superClass);
+      out.writeShort(interfaces.length);
+      for (int index : interfaces)
+        out.writeShort(index);
+
+      out.writeShort(fieldCount);
+      fields.writeTo(out);
+      out.writeShort(methodCount);
+      methods.writeTo(out);
+      out.writeShort(0);
+
+      return bytes.toByteArray();
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+
+  // Bytecode of one method. Tracks the operand stack depth so max_stack
+  // comes out right; branches that merge must leave the same depth.
+  static class Code {
+    // Keeps every branch offset within a signed 16 bit range
+    static final int MAX_LENGTH = Short.MAX_VALUE;
+
+    private byte[] code = new byte[256];
+    private int length = 0;
+    int depth = 0;
+    int maxStack = 0;
+    int maxLocals = 0;
+
+    int length() {
+      return length;
+    }
+
+    // Emit an instruction that changes the stack depth by delta slots
+    void op(int opcode, int delta) {
+      u1(opcode);
+      adjust(delta);
+    }
+
+    void op(int opcode, int operand, int delta) {
+      u1(opcode);
+      u2(operand);
+      adjust(delta);
+    }
+
+    void pushInt(int value) {
+      if (value <= 5 && value >= -1) {
+        op(ICONST_0 + value, 1);
+      } else if (value <= Byte.MAX_VALUE) {
+        u1(BIPUSH);
+        u1(value);
+        adjust(1);
+      } else {
+        op(SIPUSH, value, 1);
+      }
+    }
+
+    // Returns the position to hand to patch once the target is known
+    int jump(int opcode, int delta) {
+      int position = length;
+      op(opcode, 0, delta);
+      return position;
+    }
+
+    void patch(int jump) {
+      int offset = length - jump;
+      code[jump + 1] = (byte) (offset >> 8);
+      code[jump + 2] = (byte) offset;
+    }
+
+    void adjust(int delta) {
+      depth += delta;
+      if (depth > maxStack)
+        maxStack = depth;
+    }
+
+    void writeTo(DataOutputStream out) throws IOException {
+      out.write(code, 0, length);
+    }
+
+    private void u1(int value) {
+      if (length == code.length)
+        code = Arrays.copyOf(code, length * 2);
+
+      code[length++] = (byte) value;
+    }
+
+    private void u2(int value) {
+      u1(value >> 8);
+      u1(value);
+    }
+  }
+}
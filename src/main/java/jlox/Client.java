@@ -0,0 +1,41 @@
+package jlox;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.UnixDomainSocketAddress;
+import java.nio.channels.Channels;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+
+// Sends one source to a Server and copies the reply out, a result to stdout
+// and errors to stderr. Returns the exit status the server sent.
+class Client {
+  private Client() {
+  }
+
+  static int send(Path socket, String mode, byte[] source) throws IOException {
+    try (SocketChannel channel = SocketChannel.open(UnixDomainSocketAddress.of(socket))) {
+      OutputStream request = Channels.newOutputStream(channel);
+      request.write((mode + "\n").getBytes(StandardCharsets.UTF_8));
+      request.write(source);
+      // The end of the request is the end of our output
+      channel.shutdownOutput();
+
+      byte[] reply = Channels.newInputStream(channel).readAllBytes();
+      int newline = 0;
+      while (newline < reply.length && reply[newline] != '\n')
+        newline++;
+      if (newline == reply.length) {
+        System.err.println("No reply from server at " + socket + ".");
+        return Server.RUNTIME_ERROR;
+      }
+
+      int status = Integer.parseInt(new String(reply, 0, newline, StandardCharsets.US_ASCII));
+      OutputStream output = status == Server.OK ? System.out : System.err;
+      output.write(reply, newline + 1, reply.length - newline - 1);
+      output.flush();
+      return status;
+    }
+  }
+}
@@ -0,0 +1,6 @@
+package jlox;
+
+// Implemented by the hidden classes JitCompiler generates
+interface CompiledExpression {
+  Object eval();
+}
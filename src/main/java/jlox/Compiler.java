@@ -0,0 +1,319 @@
+package jlox;
+
+import static jlox.Chunk.*;
+import static jlox.Expression.*;
+import static jlox.Purity.isPure;
+import static jlox.TreeHeight.heightOf;
+
+import java.util.ArrayDeque;
+import java.util.List;
+
+import jlox.Expression.*;
+
+// Compiles an expression tree into a Chunk for the VM
+public class Compiler implements Visitor<Void> {
+  private final Chunk chunk = new Chunk();
+
+  // Values on the stack at the current instruction
+  private int depth = 0;
+
+  private Compiler() {
+  }
+
+  // Trees higher than Interpreter.RECURSION_LIMIT are compiled without
+  // recursion, the VM runs them in a stack as deep as the tree
+  public static Chunk compile(Expression expression) {
+    Compiler compiler = new Compiler();
+    if (heightOf(expression) > Interpreter.RECURSION_LIMIT)
+      compiler.compileIteratively(expression);
+    else
+      expression.accept(compiler);
+    compiler.chunk.write(OP_RETURN);
+
+    return compiler.chunk;
+  }
+
+  // A node being compiled, done counts the children already emitted
+  private static class Frame {
+    final Expression expression;
+    int done = 0;
+    // Operand of the jump still to be patched, for ternaries and logicals
+    int jump;
+
+    Frame(Expression expression) {
+      this.expression = expression;
+    }
+  }
+
+  // Emits the same code as the visitor with the pending nodes on the heap.
+  // Purity recurses, so pure comma elements are compiled and popped here.
+  private void compileIteratively(Expression root) {
+    ArrayDeque<Frame> frames = new ArrayDeque<>();
+    frames.push(new Frame(root));
+
+    while (!frames.isEmpty()) {
+      Frame frame = frames.peek();
+      Expression expression = frame.expression;
+      int done = frame.done++;
+
+      switch (expression.kind) {
+        case LITERAL:
+          literal(((Literal) expression).value);
+          frames.pop();
+          break;
+        case BINARY: {
+          Binary binary = (Binary) expression;
+          if (done < 2) {
+            frames.push(new Frame(done == 0 ? binary.left : binary.right));
+          } else {
+            binary(binary.operator);
+            frames.pop();
+          }
+          break;
+        }
+        case UNARY: {
+          Unary unary = (Unary) expression;
+          if (done == 0) {
+            frames.push(new Frame(unary.right));
+          } else {
+            unary(unary.operator);
+            frames.pop();
+          }
+          break;
+        }
+        case TERNARY: {
+          Ternary ternary = (Ternary) expression;
+          if (done == 0) {
+            frames.push(new Frame(ternary.condition));
+          } else if (done == 1) {
+            frame.jump = emitJump(OP_JUMP_IF_FALSE);
+            pop();
+            frames.push(new Frame(ternary.left));
+          } else if (done == 2) {
+            int endJump = emitJump(OP_JUMP);
+            pop();
+            patchJump(frame.jump);
+            frame.jump = endJump;
+            frames.push(new Frame(ternary.right));
+          } else {
+            patchJump(frame.jump);
+            frames.pop();
+          }
+          break;
+        }
+        case GROUPING:
+          if (done == 0)
+            frames.push(new Frame(((Grouping) expression).expression));
+          else
+            frames.pop();
+          break;
+        case LOGICAL: {
+          Logical logical = (Logical) expression;
+          if (done == 0) {
+            frames.push(new Frame(logical.left));
+          } else if (done == 1) {
+            frame.jump = emitJump(logical.operator.type == TokenType.OR ? OP_JUMP_IF_TRUE_OR_POP : OP_JUMP_IF_FALSE_OR_POP);
+            pop();
+            frames.push(new Frame(logical.right));
+          } else {
+            patchJump(frame.jump);
+            frames.pop();
+          }
+          break;
+        }
+        case COMMA: {
+          List<Expression> expressions = ((Comma) expression).expressions;
+          if (done == expressions.size()) {
+            frames.pop();
+          } else {
+            if (done > 0) {
+              chunk.write(OP_POP);
+              pop();
+            }
+            frames.push(new Frame(expressions.get(done)));
+          }
+          break;
+        }
+        default:
+          visitInvalidExpression((Invalid) expression);
+      }
+    }
+  }
+
+  @Override
+  public Void visitBinaryExpression(Binary expression) {
+    expression.left.accept(this);
+    expression.right.accept(this);
+    binary(expression.operator);
+    return null;
+  }
+
+  // Operands are on the stack
+  private void binary(Token operator) {
+    switch (operator.type) {
+      case GREATER:
+        chunk.write(OP_GREATER, operator);
+        break;
+      case GREATER_EQUAL:
+        chunk.write(OP_GREATER_EQUAL, operator);
+        break;
+      case LESS:
+        chunk.write(OP_LESS, operator);
+        break;
+      case LESS_EQUAL:
+        chunk.write(OP_LESS_EQUAL, operator);
+        break;
+      case EQUAL_EQUAL:
+        chunk.write(OP_EQUAL);
+        break;
+      case BANG_EQUAL:
+        chunk.write(OP_NOT_EQUAL);
+        break;
+      case MINUS:
+        chunk.write(OP_SUBTRACT, operator);
+        break;
+      case SLASH:
+        chunk.write(OP_DIVIDE, operator);
+        break;
+      case STAR:
+        chunk.write(OP_MULTIPLY, operator);
+        break;
+      case PLUS:
+        chunk.write(OP_ADD);
+        break;
+      default:
+        // Same as Interpreter, unknown operators evaluate to nil
+        chunk.write(OP_POP);
+        chunk.write(OP_POP);
+        chunk.write(OP_NIL);
+        break;
+    }
+
+    pop();
+  }
+
+  @Override
+  public Void visitGroupingExpression(Grouping expression) {
+    return expression.expression.accept(this);
+  }
+
+  @Override
+  public Void visitLiteralExpression(Literal expression) {
+    literal(expression.value);
+    return null;
+  }
+
+  private void literal(Object value) {
+    if (value == null) {
+      chunk.write(OP_NIL);
+    } else if (value instanceof Boolean) {
+      chunk.write((boolean) value ? OP_TRUE : OP_FALSE);
+    } else if (value instanceof Double) {
+      chunk.write(OP_NUMBER);
+      chunk.writeInt(chunk.addNumber((double) value));
+    } else {
+      chunk.write(OP_CONSTANT);
+      chunk.writeInt(chunk.addConstant(value));
+    }
+
+    push();
+  }
+
+  @Override
+  public Void visitUnaryExpression(Unary expression) {
+    expression.right.accept(this);
+    unary(expression.operator);
+    return null;
+  }
+
+  // The operand is on the stack
+  private void unary(Token operator) {
+    switch (operator.type) {
+      case MINUS:
+        chunk.write(OP_NEGATE, operator);
+        break;
+      case BANG:
+        chunk.write(OP_NOT);
+        break;
+      default:
+        chunk.write(OP_POP);
+        chunk.write(OP_NIL);
+        break;
+    }
+  }
+
+  @Override
+  public Void visitCommaExpression(Comma expression) {
+    List<Expression> expressions = expression.expressions;
+    int last = expressions.size() - 1;
+    for (int i = 0; i < last; i++) {
+      // Only the last value is kept, the others only run for their errors
+      if (isPure(expressions.get(i)))
+        continue;
+
+      expressions.get(i).accept(this);
+      chunk.write(OP_POP);
+      pop();
+    }
+
+    return expressions.get(last).accept(this);
+  }
+
+  @Override
+  public Void visitTernaryExpression(Ternary expression) {
+    expression.condition.accept(this);
+    int elseJump = emitJump(OP_JUMP_IF_FALSE);
+    pop();
+
+    expression.left.accept(this);
+    int endJump = emitJump(OP_JUMP);
+    // The else branch starts without the then branch's value
+    pop();
+
+    patchJump(elseJump);
+    expression.right.accept(this);
+    patchJump(endJump);
+
+    return null;
+  }
+
+  @Override
+  public Void visitLogicalExpression(Logical expression) {
+    expression.left.accept(this);
+    int endJump = emitJump(expression.operator.type == TokenType.OR ? OP_JUMP_IF_TRUE_OR_POP : OP_JUMP_IF_FALSE_OR_POP);
+    // Unless the jump is taken the right operand replaces the left one
+    pop();
+
+    expression.right.accept(this);
+    patchJump(endJump);
+
+    return null;
+  }
+
+  // Trees with syntax errors are never run, compiling one is a caller bug
+  @Override
+  public Void visitInvalidExpression(Invalid expression) {
+    throw new RuntimeError(expression.token, "Invalid expression.");
+  }
+
+  // Returns the offset of the operand to patch once the target is known
+  private int emitJump(byte op) {
+    chunk.write(op);
+    chunk.writeInt(-1);
+    return chunk.count - 4;
+  }
+
+  private void patchJump(int operand) {
+    chunk.patchInt(operand, chunk.count);
+  }
+
+  private void push() {
+    depth++;
+    if (depth > chunk.maxStack)
+      chunk.maxStack = depth;
+  }
+
+  private void pop() {
+    depth--;
+  }
+}
@@ -0,0 +1,60 @@
+package jlox;
+
+import static jlox.TokenType.EOF;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+// Static errors of a single run, in the order they were found. Scanner and
+// Parser report into the instance they were given instead of a global, so
+// runs on different threads share nothing. Not thread safe itself.
+public class Diagnostics {
+  public static class Diagnostic {
+    public final int line;
+    public final String where;
+    public final String message;
+
+    Diagnostic(int line, String where, String message) {
+      this.line = line;
+      this.where = where;
+      this.message = message;
+    }
+
+    @Override
+    public String toString() {
+      return "[line " + line + "] Error" + where + ": " + message;
+    }
+  }
+
+  private final List<Diagnostic> errors = new ArrayList<>();
+
+  void error(int line, String message) {
+    report(line, "", message);
+  }
+
+  void error(Token token, String message) {
+    if (token.type == EOF)
+      report(token.line, " at end", message);
+    else
+      report(token.line, " at '" + token.lexeme + "'", message);
+  }
+
+  // Take over the errors of other, shifting their lines by lineOffset
+  void addAll(Diagnostics other, int lineOffset) {
+    for (Diagnostic error : other.errors)
+      errors.add(new Diagnostic(error.line + lineOffset, error.where, error.message));
+  }
+
+  private void report(int line, String where, String message) {
+    errors.add(new Diagnostic(line, where, message));
+  }
+
+  public boolean hadError() {
+    return !errors.isEmpty();
+  }
+
+  public List<Diagnostic> errors() {
+    return Collections.unmodifiableList(errors);
+  }
+}
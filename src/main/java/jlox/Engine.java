@@ -0,0 +1,225 @@
+package jlox;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.RecursiveAction;
+import java.util.function.IntFunction;
+
+// Entry point for embedding jlox. Parsed trees are cached by source text, so
+// a source that was seen before skips Scanner and Parser entirely. Every call
+// gets its own Diagnostics and evaluation runs on a per thread Interpreter,
+// so one Engine can be shared by any number of threads.
+public class Engine {
+  public static final int DEFAULT_CACHE_SIZE = 4096;
+
+  private final ExpressionCache cache;
+  private final boolean optimize;
+  private final int maxDepth;
+
+  // Interpreter keeps per-tree JIT state and is not thread safe
+  private final ThreadLocal<Interpreter> interpreter = ThreadLocal.withInitial(Interpreter::new);
+
+  // Outcome of one evaluation: a value, static errors or a runtime error
+  public static class Result {
+    public final Object value;
+    public final List<Diagnostics.Diagnostic> errors;
+    public final RuntimeError runtimeError;
+
+    Result(Object value, List<Diagnostics.Diagnostic> errors, RuntimeError runtimeError) {
+      this.value = value;
+      this.errors = errors;
+      this.runtimeError = runtimeError;
+    }
+
+    public boolean succeeded() {
+      return errors.isEmpty() && runtimeError == null;
+    }
+
+    @Override
+    public String toString() {
+      return "Result [value=" + value + ", errors=" + errors + ", runtimeError=" + runtimeError + "]";
+    }
+  }
+
+  public Engine() {
+    this(DEFAULT_CACHE_SIZE, false);
+  }
+
+  public Engine(int cacheSize, boolean optimize) {
+    this(cacheSize, optimize, Parser.DEFAULT_MAX_DEPTH);
+  }
+
+  // optimize runs Optimizer once per source before the tree is cached.
+  // Sources nesting parentheses or then branches deeper than maxDepth are
+  // static errors.
+  public Engine(int cacheSize, boolean optimize, int maxDepth) {
+    if (maxDepth < 1)
+      throw new IllegalArgumentException("Expressions need a max depth of at least one");
+
+    this.cache = new ExpressionCache(cacheSize);
+    this.optimize = optimize;
+    this.maxDepth = maxDepth;
+  }
+
+  // Returns null if the source has errors, those go to diagnostics and the
+  // source is never cached. Trees are internal, embedders only ever pass
+  // sources, so this and the overloads taking trees are package private.
+  Expression parse(String source, Diagnostics diagnostics) {
+    Expression expression = cache.get(source);
+    if (expression != null)
+      return expression;
+
+    Events.Scan scan = Metrics.beginScan();
+    Events.Parse parse = Metrics.beginParse();
+    Scanner scanner = new Scanner(source, diagnostics);
+    if (scan != null)
+      scanner.timeScanning();
+    TokenStream tokens = scanner.streamTokens();
+    Parser parser = new Parser(tokens, diagnostics, maxDepth);
+    expression = parser.parseAll();
+
+    // Lexical errors past the end of the parsed expression
+    tokens.fillAll();
+    Metrics.endScan(scan, source.length(), tokens.size(), scanner.scanTime(), true);
+    Metrics.endParse(parse, source.length(), tokens.size(), diagnostics.hadError() ? null : expression,
+        diagnostics.errors().size(), true);
+    if (diagnostics.hadError())
+      return null;
+
+    if (optimize)
+      expression = Optimizer.optimize(expression);
+
+    cache.put(source, expression);
+    return expression;
+  }
+
+  public Result evaluate(String source) {
+    Diagnostics diagnostics = new Diagnostics();
+    Expression expression = parse(source, diagnostics);
+    if (expression == null)
+      return new Result(null, diagnostics.errors(), null);
+
+    return evaluate(expression);
+  }
+
+  Result evaluate(Expression expression) {
+    Events.Evaluate evaluate = Metrics.beginEvaluate();
+    try {
+      Object value = interpreter.get().interpret(expression);
+      Metrics.endEvaluate(evaluate, "eval", expression, null, false);
+      return new Result(value, List.of(), null);
+    } catch (RuntimeError error) {
+      Metrics.endEvaluate(evaluate, "eval", expression, null, true);
+      return new Result(null, List.of(), error);
+    }
+  }
+
+  // Batches: each input is scanned, parsed and evaluated independently and
+  // results come back in input order. The common pool is used by default.
+
+  public List<Result> evaluateAll(List<String> sources) {
+    return evaluateAll(sources, ForkJoinPool.commonPool());
+  }
+
+  public List<Result> evaluateAll(List<String> sources, ForkJoinPool pool) {
+    return invoke(pool, sources.size(), i -> evaluate(sources.get(i)));
+  }
+
+  public List<Result> evaluateAll(List<String> sources, ExecutorService executor) {
+    return submit(executor, sources.size(), i -> evaluate(sources.get(i)));
+  }
+
+  List<Result> evaluateAllParsed(List<Expression> expressions) {
+    return evaluateAllParsed(expressions, ForkJoinPool.commonPool());
+  }
+
+  List<Result> evaluateAllParsed(List<Expression> expressions, ForkJoinPool pool) {
+    return invoke(pool, expressions.size(), i -> evaluate(expressions.get(i)));
+  }
+
+  List<Result> evaluateAllParsed(List<Expression> expressions, ExecutorService executor) {
+    return submit(executor, expressions.size(), i -> evaluate(expressions.get(i)));
+  }
+
+  // A few slices per worker so uneven inputs still balance out, but not so
+  // many that task overhead dominates one line expressions
+  private static final int SLICES_PER_WORKER = 8;
+
+  private static List<Result> invoke(ForkJoinPool pool, int size, IntFunction<Result> task) {
+    Result[] results = new Result[size];
+    int grain = Math.max(1, size / (pool.getParallelism() * SLICES_PER_WORKER));
+    pool.invoke(new Batch(task, results, 0, size, grain));
+    return Arrays.asList(results);
+  }
+
+  private static List<Result> submit(ExecutorService executor, int size, IntFunction<Result> task) {
+    Result[] results = new Result[size];
+    int grain = Math.max(1, size / (Runtime.getRuntime().availableProcessors() * SLICES_PER_WORKER));
+
+    List<Future<?>> slices = new ArrayList<>();
+    for (int from = 0; from < size; from += grain) {
+      int start = from;
+      int end = Math.min(size, from + grain);
+      slices.add(executor.submit(() -> {
+        for (int i = start; i < end; i++)
+          results[i] = task.apply(i);
+      }));
+    }
+
+    try {
+      for (Future<?> slice : slices)
+        slice.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IllegalStateException("Interrupted while waiting for batch", e);
+    } catch (ExecutionException e) {
+      throw new IllegalStateException("Batch failed", e.getCause());
+    }
+
+    return Arrays.asList(results);
+  }
+
+  // Splits [from, to) in halves until a slice is at most grain long
+  private static class Batch extends RecursiveAction {
+    private static final long serialVersionUID = 1L;
+
+    private final IntFunction<Result> task;
+    private final Result[] results;
+    private final int from;
+    private final int to;
+    private final int grain;
+
+    Batch(IntFunction<Result> task, Result[] results, int from, int to, int grain) {
+      this.task = task;
+      this.results = results;
+      this.from = from;
+      this.to = to;
+      this.grain = grain;
+    }
+
+    @Override
+    protected void compute() {
+      if (to - from <= grain) {
+        for (int i = from; i < to; i++)
+          results[i] = task.apply(i);
+        return;
+      }
+
+      int middle = (from + to) >>> 1;
+      invokeAll(new Batch(task, results, from, middle, grain), new Batch(task, results, middle, to, grain));
+    }
+  }
+
+  public ExpressionCache.Stats cacheStats() {
+    return cache.stats();
+  }
+
+  public void clearCache() {
+    cache.clear();
+  }
+}
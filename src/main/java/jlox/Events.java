@@ -0,0 +1,95 @@
+package jlox;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Timespan;
+
+// Flight Recorder events for the phases of a run, begun and committed by
+// Metrics. Record them with e.g.
+//
+//   java -XX:StartFlightRecording:filename=run.jfr -cp ... jlox.Lox --eval script.lox
+//   jfr print --categories jlox run.jfr
+//
+// Without a recording an event is a few checks, and its allocation is
+// usually optimized away.
+class Events {
+  private Events() {
+  }
+
+  @Name("jlox.Scan")
+  @Label("Scan")
+  @Category("jlox")
+  @Description("Lexing a source, before parsing it or as the parser reads the tokens")
+  @StackTrace(false)
+  static class Scan extends Event {
+    @Label("Source Length")
+    @Description("In characters")
+    int sourceLength;
+
+    @Label("Tokens")
+    int tokens;
+
+    @Label("Scan Time")
+    @Description("Time spent lexing, for a streamed source only part of the duration")
+    @Timespan(Timespan.NANOSECONDS)
+    long scanTime;
+
+    @Label("Streamed")
+    @Description("Tokens were lexed as the parser read them, the event spans the parse")
+    boolean streamed;
+
+    // Start for Metrics, not recorded
+    transient long started;
+  }
+
+  @Name("jlox.Parse")
+  @Label("Parse")
+  @Category("jlox")
+  @Description("Parsing a source, including lexing when tokens are streamed")
+  @StackTrace(false)
+  static class Parse extends Event {
+    @Label("Source Length")
+    @Description("In characters")
+    int sourceLength;
+
+    @Label("Tokens")
+    int tokens;
+
+    @Label("Nodes")
+    @Description("Zero if the source has errors")
+    int nodes;
+
+    @Label("Errors")
+    int errors;
+
+    @Label("Streamed")
+    @Description("Tokens were lexed as the parser read them")
+    boolean streamed;
+
+    transient long started;
+  }
+
+  @Name("jlox.Evaluate")
+  @Label("Evaluate")
+  @Category("jlox")
+  @Description("Running a parsed tree")
+  @StackTrace(false)
+  static class Evaluate extends Event {
+    @Label("Backend")
+    @Description("eval, arena or vm")
+    String backend;
+
+    @Label("Nodes")
+    int nodes;
+
+    @Label("Failed")
+    @Description("Ended with a runtime error")
+    boolean failed;
+
+    transient long started;
+  }
+}
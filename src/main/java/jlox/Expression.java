@@ -4,6 +4,32 @@ import java.util.List;
 
 abstract class Expression {
 
+  // Node kinds, one per subclass, see Dispatcher
+  static final byte BINARY = 0;
+  static final byte GROUPING = 1;
+  static final byte LITERAL = 2;
+  static final byte UNARY = 3;
+  static final byte COMMA = 4;
+  static final byte TERNARY = 5;
+  static final byte INVALID = 6;
+  static final byte LOGICAL = 7;
+
+  // Static type, filled in by TypeInference the first time it is asked
+  TypeInference.Type type;
+
+  // Longest path down to a leaf, filled in by TreeHeight the first time it is
+  // asked. A short next to kind keeps nodes as small as with type alone.
+  short height;
+
+  // Whether evaluating can fail, filled in by Purity the first time it is asked
+  byte purity;
+
+  final byte kind;
+
+  Expression(byte kind) {
+    this.kind = kind;
+  }
+
   abstract <R> R accept(Visitor<R> visitor);
 
   interface Visitor<R> {
@@ -19,11 +45,45 @@ abstract class Expression {
 
     R visitTernaryExpression(Ternary expression);
 
+    R visitInvalidExpression(Invalid expression);
+
+    R visitLogicalExpression(Logical expression);
+
+  }
+
+  // Visitor whose dispatch() picks the visit method with a switch on kind.
+  // Every node type goes through the one accept() call site, which the JIT
+  // can't inline; once dispatch() is inlined into a subclass each case
+  // calls a single known method.
+  abstract static class Dispatcher<R> implements Visitor<R> {
+    R dispatch(Expression expression) {
+      switch (expression.kind) {
+        case BINARY:
+          return visitBinaryExpression((Binary) expression);
+        case GROUPING:
+          return visitGroupingExpression((Grouping) expression);
+        case LITERAL:
+          return visitLiteralExpression((Literal) expression);
+        case UNARY:
+          return visitUnaryExpression((Unary) expression);
+        case COMMA:
+          return visitCommaExpression((Comma) expression);
+        case TERNARY:
+          return visitTernaryExpression((Ternary) expression);
+        case INVALID:
+          return visitInvalidExpression((Invalid) expression);
+        case LOGICAL:
+          return visitLogicalExpression((Logical) expression);
+        default:
+          throw new IllegalStateException("Unknown kind " + expression.kind);
+      }
+    }
   }
 
   static class Binary extends Expression {
 
     Binary(Expression left, Token operator, Expression right) {
+      super(BINARY);
       this.left = left;
       this.operator = operator;
       this.right = right;
@@ -42,6 +102,7 @@ abstract class Expression {
   static class Grouping extends Expression {
 
     Grouping(Expression expression) {
+      super(GROUPING);
       this.expression = expression;
     }
 
@@ -56,6 +117,7 @@ abstract class Expression {
   static class Literal extends Expression {
 
     Literal(Object value) {
+      super(LITERAL);
       this.value = value;
     }
 
@@ -70,6 +132,7 @@ abstract class Expression {
   static class Unary extends Expression {
 
     Unary(Token operator, Expression right) {
+      super(UNARY);
       this.operator = operator;
       this.right = right;
     }
@@ -86,6 +149,7 @@ abstract class Expression {
   static class Comma extends Expression {
 
     Comma(List<Expression> expressions) {
+      super(COMMA);
       this.expressions = expressions;
     }
 
@@ -100,6 +164,7 @@ abstract class Expression {
   static class Ternary extends Expression {
 
     Ternary(Expression condition, Expression left, Expression right) {
+      super(TERNARY);
       this.condition = condition;
       this.left = left;
       this.right = right;
@@ -114,4 +179,38 @@ abstract class Expression {
     final Expression left;
     final Expression right;
   }
+
+  static class Invalid extends Expression {
+
+    Invalid(Token token) {
+      super(INVALID);
+      this.token = token;
+    }
+
+    @Override
+    <R> R accept(Visitor<R> visitor) {
+      return visitor.visitInvalidExpression(this);
+    }
+
+    final Token token;
+  }
+
+  static class Logical extends Expression {
+
+    Logical(Expression left, Token operator, Expression right) {
+      super(LOGICAL);
+      this.left = left;
+      this.operator = operator;
+      this.right = right;
+    }
+
+    @Override
+    <R> R accept(Visitor<R> visitor) {
+      return visitor.visitLogicalExpression(this);
+    }
+
+    final Expression left;
+    final Token operator;
+    final Expression right;
+  }
 }
@@ -0,0 +1,502 @@
+package jlox;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+// Expression trees in struct-of-arrays form, generated by GenerateAst.
+// A node is an index into kinds and offsets, offsets points at its
+// operands in one shared int array. Children are node indices, a token
+// takes three operands (type, line and lexeme) and other values go to
+// a pool of constants, shared between equal values. Nodes are added
+// after their children, so the last one is the root.
+class ExpressionArena {
+  static final byte BINARY = 0;
+  static final byte GROUPING = 1;
+  static final byte LITERAL = 2;
+  static final byte UNARY = 3;
+  static final byte COMMA = 4;
+  static final byte TERNARY = 5;
+  static final byte INVALID = 6;
+  static final byte LOGICAL = 7;
+
+  // Changes with the node types and their fields, see Snapshot
+  static final int LAYOUT = 1324948915;
+
+  private static final TokenType[] TOKEN_TYPES = TokenType.values();
+
+  interface Visitor<R> {
+    R visitBinary(int node);
+
+    R visitGrouping(int node);
+
+    R visitLiteral(int node);
+
+    R visitUnary(int node);
+
+    R visitComma(int node);
+
+    R visitTernary(int node);
+
+    R visitInvalid(int node);
+
+    R visitLogical(int node);
+
+  }
+
+  private byte[] kinds = new byte[16];
+  private int[] offsets = new int[16];
+  private int[] operands = new int[64];
+  private Object[] constants = new Object[16];
+  private Map<Object, Integer> constantIndices = new HashMap<>();
+  private int size = 0;
+  private int operandCount = 0;
+  private int constantCount = 0;
+  // Built on first use from the child operands, see parents()
+  private volatile int[] parents;
+
+  ExpressionArena() {
+  }
+
+  // A trimmed arena over arrays read back by Snapshot
+  ExpressionArena(byte[] kinds, int[] offsets, int[] operands, Object[] constants) {
+    this.kinds = kinds;
+    this.offsets = offsets;
+    this.operands = operands;
+    this.constants = constants;
+    this.constantIndices = null;
+    this.size = kinds.length;
+    this.operandCount = operands.length;
+    this.constantCount = constants.length;
+  }
+
+  int size() {
+    return size;
+  }
+
+  int root() {
+    return size - 1;
+  }
+
+  byte kind(int node) {
+    return kinds[node];
+  }
+
+  <R> R accept(int node, Visitor<R> visitor) {
+    switch (kinds[node]) {
+      case BINARY:
+        return visitor.visitBinary(node);
+      case GROUPING:
+        return visitor.visitGrouping(node);
+      case LITERAL:
+        return visitor.visitLiteral(node);
+      case UNARY:
+        return visitor.visitUnary(node);
+      case COMMA:
+        return visitor.visitComma(node);
+      case TERNARY:
+        return visitor.visitTernary(node);
+      case INVALID:
+        return visitor.visitInvalid(node);
+      case LOGICAL:
+        return visitor.visitLogical(node);
+      default:
+        throw new IllegalStateException("Unknown kind " + kinds[node]);
+    }
+  }
+
+  int addBinary(int left, Token operator, int right) {
+    int node = node(BINARY, 5);
+    operand(left);
+    token(operator);
+    operand(right);
+    return node;
+  }
+
+  int binaryLeft(int node) {
+    return operands[offsets[node]];
+  }
+
+  Token binaryOperator(int node) {
+    return token(offsets[node] + 1);
+  }
+
+  TokenType binaryOperatorType(int node) {
+    return TOKEN_TYPES[operands[offsets[node] + 1]];
+  }
+
+  int binaryOperatorLine(int node) {
+    return operands[offsets[node] + 2];
+  }
+
+  int binaryRight(int node) {
+    return operands[offsets[node] + 4];
+  }
+
+  int addGrouping(int expression) {
+    int node = node(GROUPING, 1);
+    operand(expression);
+    return node;
+  }
+
+  int groupingExpression(int node) {
+    return operands[offsets[node]];
+  }
+
+  int addLiteral(Object value) {
+    int node = node(LITERAL, 1);
+    operand(constant(value));
+    return node;
+  }
+
+  Object literalValue(int node) {
+    return constants[operands[offsets[node]]];
+  }
+
+  int addUnary(Token operator, int right) {
+    int node = node(UNARY, 4);
+    token(operator);
+    operand(right);
+    return node;
+  }
+
+  Token unaryOperator(int node) {
+    return token(offsets[node]);
+  }
+
+  TokenType unaryOperatorType(int node) {
+    return TOKEN_TYPES[operands[offsets[node]]];
+  }
+
+  int unaryOperatorLine(int node) {
+    return operands[offsets[node] + 1];
+  }
+
+  int unaryRight(int node) {
+    return operands[offsets[node] + 3];
+  }
+
+  int addComma(int[] expressions) {
+    int node = node(COMMA, 1 + expressions.length);
+    operand(expressions.length);
+    for (int element : expressions)
+      operand(element);
+    return node;
+  }
+
+  int commaExpressionsSize(int node) {
+    return operands[offsets[node]];
+  }
+
+  int commaExpressions(int node, int index) {
+    return operands[offsets[node] + 1 + index];
+  }
+
+  int addTernary(int condition, int left, int right) {
+    int node = node(TERNARY, 3);
+    operand(condition);
+    operand(left);
+    operand(right);
+    return node;
+  }
+
+  int ternaryCondition(int node) {
+    return operands[offsets[node]];
+  }
+
+  int ternaryLeft(int node) {
+    return operands[offsets[node] + 1];
+  }
+
+  int ternaryRight(int node) {
+    return operands[offsets[node] + 2];
+  }
+
+  int addInvalid(Token token) {
+    int node = node(INVALID, 3);
+    token(token);
+    return node;
+  }
+
+  Token invalidToken(int node) {
+    return token(offsets[node]);
+  }
+
+  TokenType invalidTokenType(int node) {
+    return TOKEN_TYPES[operands[offsets[node]]];
+  }
+
+  int invalidTokenLine(int node) {
+    return operands[offsets[node] + 1];
+  }
+
+  int addLogical(int left, Token operator, int right) {
+    int node = node(LOGICAL, 5);
+    operand(left);
+    token(operator);
+    operand(right);
+    return node;
+  }
+
+  int logicalLeft(int node) {
+    return operands[offsets[node]];
+  }
+
+  Token logicalOperator(int node) {
+    return token(offsets[node] + 1);
+  }
+
+  TokenType logicalOperatorType(int node) {
+    return TOKEN_TYPES[operands[offsets[node] + 1]];
+  }
+
+  int logicalOperatorLine(int node) {
+    return operands[offsets[node] + 2];
+  }
+
+  int logicalRight(int node) {
+    return operands[offsets[node] + 4];
+  }
+
+  // Parent of every node, -1 for a root. Shared, callers must not change it.
+  int[] parents() {
+    int[] parents = this.parents;
+    if (parents != null)
+      return parents;
+
+    parents = new int[size];
+    Arrays.fill(parents, -1);
+    for (int node = 0; node < size; node++) {
+      switch (kinds[node]) {
+        case BINARY:
+          parents[binaryLeft(node)] = node;
+          parents[binaryRight(node)] = node;
+          break;
+        case GROUPING:
+          parents[groupingExpression(node)] = node;
+          break;
+        case UNARY:
+          parents[unaryRight(node)] = node;
+          break;
+        case COMMA:
+          for (int i = 0; i < commaExpressionsSize(node); i++)
+            parents[commaExpressions(node, i)] = node;
+          break;
+        case TERNARY:
+          parents[ternaryCondition(node)] = node;
+          parents[ternaryLeft(node)] = node;
+          parents[ternaryRight(node)] = node;
+          break;
+        case LOGICAL:
+          parents[logicalLeft(node)] = node;
+          parents[logicalRight(node)] = node;
+          break;
+        default:
+      }
+    }
+
+    // Racing threads build the same array
+    this.parents = parents;
+    return parents;
+  }
+
+  // Why the arena isn't a tree the walkers can follow, null if it is: kinds,
+  // operands, constants and token types in range, and children in the
+  // order nodes are added, each used once and the last node the root. For
+  // arrays that were read back rather than built.
+  String check() {
+    if (size == 0)
+      return "No nodes";
+
+    // Finished trees not yet taken by a parent
+    int[] trees = new int[size];
+    int count = 0;
+    for (int node = 0; node < size; node++) {
+      int at = offsets[node];
+      switch (kinds[node]) {
+        case BINARY: {
+          if (at < 0 || at > operandCount - 5)
+            return "Operands of node " + node + " out of range";
+          int first = count - 2;
+          if (first < 0)
+            return "Children of node " + node + " missing";
+          if (operands[at] != trees[first])
+            return "Children of node " + node + " out of order";
+          if (operands[at + 4] != trees[first + 1])
+            return "Children of node " + node + " out of order";
+          if (!validToken(at + 1))
+            return "Bad operand in node " + node;
+          count = first;
+          break;
+        }
+        case GROUPING: {
+          if (at < 0 || at > operandCount - 1)
+            return "Operands of node " + node + " out of range";
+          int first = count - 1;
+          if (first < 0)
+            return "Children of node " + node + " missing";
+          if (operands[at] != trees[first])
+            return "Children of node " + node + " out of order";
+          count = first;
+          break;
+        }
+        case LITERAL: {
+          if (at < 0 || at > operandCount - 1)
+            return "Operands of node " + node + " out of range";
+          if (!validConstant(operands[at]))
+            return "Bad operand in node " + node;
+          break;
+        }
+        case UNARY: {
+          if (at < 0 || at > operandCount - 4)
+            return "Operands of node " + node + " out of range";
+          int first = count - 1;
+          if (first < 0)
+            return "Children of node " + node + " missing";
+          if (operands[at + 3] != trees[first])
+            return "Children of node " + node + " out of order";
+          if (!validToken(at))
+            return "Bad operand in node " + node;
+          count = first;
+          break;
+        }
+        case COMMA: {
+          if (at < 0 || at > operandCount - 1)
+            return "Operands of node " + node + " out of range";
+          int elements = operands[at];
+          if (elements < 1 || elements > operandCount - at - 1)
+            return "Elements of node " + node + " out of range";
+          int first = count - elements;
+          if (first < 0)
+            return "Children of node " + node + " missing";
+          for (int i = 0; i < elements; i++) {
+            if (operands[at + 1 + i] != trees[first + i])
+              return "Children of node " + node + " out of order";
+          }
+          count = first;
+          break;
+        }
+        case TERNARY: {
+          if (at < 0 || at > operandCount - 3)
+            return "Operands of node " + node + " out of range";
+          int first = count - 3;
+          if (first < 0)
+            return "Children of node " + node + " missing";
+          if (operands[at] != trees[first])
+            return "Children of node " + node + " out of order";
+          if (operands[at + 1] != trees[first + 1])
+            return "Children of node " + node + " out of order";
+          if (operands[at + 2] != trees[first + 2])
+            return "Children of node " + node + " out of order";
+          count = first;
+          break;
+        }
+        case INVALID: {
+          if (at < 0 || at > operandCount - 3)
+            return "Operands of node " + node + " out of range";
+          if (!validToken(at))
+            return "Bad operand in node " + node;
+          break;
+        }
+        case LOGICAL: {
+          if (at < 0 || at > operandCount - 5)
+            return "Operands of node " + node + " out of range";
+          int first = count - 2;
+          if (first < 0)
+            return "Children of node " + node + " missing";
+          if (operands[at] != trees[first])
+            return "Children of node " + node + " out of order";
+          if (operands[at + 4] != trees[first + 1])
+            return "Children of node " + node + " out of order";
+          if (!validToken(at + 1))
+            return "Bad operand in node " + node;
+          count = first;
+          break;
+        }
+        default:
+          return "Unknown kind " + kinds[node] + " of node " + node;
+      }
+      trees[count++] = node;
+    }
+
+    return count == 1 ? null : "Nodes outside the tree";
+  }
+
+  // Cuts the arrays down to what is used, no more nodes can be added after
+  void trim() {
+    kinds = Arrays.copyOf(kinds, size);
+    offsets = Arrays.copyOf(offsets, size);
+    operands = Arrays.copyOf(operands, operandCount);
+    constants = Arrays.copyOf(constants, constantCount);
+    constantIndices = null;
+    parents = null;
+  }
+
+  // Storage of a trimmed arena for Snapshot, callers must not change it
+  byte[] kinds() {
+    return kinds;
+  }
+
+  int[] offsets() {
+    return offsets;
+  }
+
+  int[] operands() {
+    return operands;
+  }
+
+  Object[] constants() {
+    return constants;
+  }
+
+  private int node(byte kind, int operandsNeeded) {
+    if (size == kinds.length) {
+      kinds = Arrays.copyOf(kinds, size * 2);
+      offsets = Arrays.copyOf(offsets, size * 2);
+    }
+    if (operandCount + operandsNeeded > operands.length)
+      operands = Arrays.copyOf(operands, Math.max(operands.length * 2, operandCount + operandsNeeded));
+
+    kinds[size] = kind;
+    offsets[size] = operandCount;
+    return size++;
+  }
+
+  private void operand(int value) {
+    operands[operandCount++] = value;
+  }
+
+  private void token(Token token) {
+    operand(token.type.ordinal());
+    operand(token.line);
+    operand(constant(token.lexeme));
+  }
+
+  // Known type and a String lexeme, the line can be anything
+  private boolean validToken(int offset) {
+    int type = operands[offset];
+    int lexeme = operands[offset + 2];
+    return type >= 0 && type < TOKEN_TYPES.length && validConstant(lexeme) && constants[lexeme] instanceof String;
+  }
+
+  private boolean validConstant(int index) {
+    return index >= 0 && index < constantCount;
+  }
+
+  // Tokens are rebuilt on every call, without their literal
+  private Token token(int offset) {
+    return new Token(TOKEN_TYPES[operands[offset]], (String) constants[operands[offset + 2]], null, operands[offset + 1]);
+  }
+
+  private int constant(Object value) {
+    Integer index = constantIndices.get(value);
+    if (index != null)
+      return index;
+
+    if (constantCount == constants.length)
+      constants = Arrays.copyOf(constants, constantCount * 2);
+    constants[constantCount] = value;
+    constantIndices.put(value, constantCount);
+    return constantCount++;
+  }
+}
@@ -0,0 +1,129 @@
+package jlox;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+// Bounded map from source text to its parsed tree, safe to share between
+// threads. Entries are spread over independently locked segments, each kept
+// in least recently used order, so eviction is LRU per segment.
+public class ExpressionCache {
+  private static final int SEGMENTS = 16;
+
+  private final Segment[] segments;
+
+  private final LongAdder hits = new LongAdder();
+  private final LongAdder misses = new LongAdder();
+  private final LongAdder evictions = new LongAdder();
+
+  public ExpressionCache(int maxEntries) {
+    if (maxEntries < 1)
+      throw new IllegalArgumentException("Cache needs room for at least one entry");
+
+    // No more segments than entries, a segment without room would never cache
+    // the sources hashed to it. The first segments take the remainder.
+    segments = new Segment[Math.min(SEGMENTS, maxEntries)];
+    for (int i = 0; i < segments.length; i++) {
+      int capacity = maxEntries / segments.length + (i < maxEntries % segments.length ? 1 : 0);
+      segments[i] = new Segment(capacity);
+    }
+  }
+
+  // Trees are internal, only Engine reads and fills the cache
+  Expression get(String source) {
+    Expression expression = segmentFor(source).get(source);
+    if (expression == null)
+      misses.increment();
+    else
+      hits.increment();
+
+    return expression;
+  }
+
+  void put(String source, Expression expression) {
+    segmentFor(source).put(source, expression);
+  }
+
+  public int size() {
+    int size = 0;
+    for (Segment segment : segments)
+      size += segment.size();
+
+    return size;
+  }
+
+  public void clear() {
+    for (Segment segment : segments)
+      segment.clear();
+  }
+
+  public Stats stats() {
+    return new Stats(hits.sum(), misses.sum(), evictions.sum(), size());
+  }
+
+  private Segment segmentFor(String source) {
+    int hash = source.hashCode();
+    // Mix the high bits in, String hashes of similar text differ mostly there
+    hash ^= hash >>> 16;
+    return segments[(hash & 0x7fffffff) % segments.length];
+  }
+
+  private class Segment {
+    private final int capacity;
+    private final LinkedHashMap<String, Expression> entries;
+
+    Segment(int capacity) {
+      this.capacity = capacity;
+      this.entries = new LinkedHashMap<String, Expression>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Expression> eldest) {
+          if (size() <= Segment.this.capacity)
+            return false;
+
+          evictions.increment();
+          return true;
+        }
+      };
+    }
+
+    synchronized Expression get(String source) {
+      return entries.get(source);
+    }
+
+    synchronized void put(String source, Expression expression) {
+      entries.put(source, expression);
+    }
+
+    synchronized int size() {
+      return entries.size();
+    }
+
+    synchronized void clear() {
+      entries.clear();
+    }
+  }
+
+  public static class Stats {
+    public final long hits;
+    public final long misses;
+    public final long evictions;
+    public final int size;
+
+    Stats(long hits, long misses, long evictions, int size) {
+      this.hits = hits;
+      this.misses = misses;
+      this.evictions = evictions;
+      this.size = size;
+    }
+
+    public double hitRate() {
+      long requests = hits + misses;
+      return requests == 0 ? 0 : (double) hits / requests;
+    }
+
+    @Override
+    public String toString() {
+      return "Stats [hits=" + hits + ", misses=" + misses + ", evictions=" + evictions + ", size=" + size + "]";
+    }
+  }
+}
@@ -0,0 +1,170 @@
+package jlox;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.List;
+
+import jlox.Expression.*;
+
+// Copies an Expression tree into an ExpressionArena with explicit stacks,
+// so trees of any height can be flattened. Nodes are added in post order
+// with the leftmost child first, which keeps every subtree in one run of
+// indices. The arena is trimmed, the tree isn't needed afterwards.
+// inflate() goes the other way, e.g. for arenas loaded from a Snapshot.
+class ExpressionFlattener {
+  private final ExpressionArena arena = new ExpressionArena();
+  private final ArrayDeque<Expression> pending = new ArrayDeque<>();
+  // Parallel to pending: true once the children of the node were pushed
+  private final ArrayDeque<Boolean> expanded = new ArrayDeque<>();
+  // Indices of finished nodes waiting for their parent
+  private int[] results = new int[16];
+  private int resultCount = 0;
+
+  private ExpressionFlattener() {
+  }
+
+  static ExpressionArena flatten(Expression expression) {
+    ExpressionFlattener flattener = new ExpressionFlattener();
+    flattener.add(expression);
+    flattener.arena.trim();
+    return flattener.arena;
+  }
+
+  // Builds the tree in one forward sweep: the children of a node are the
+  // last finished trees when it is reached. Tokens come back without their
+  // literal, only operators and invalid nodes keep one.
+  static Expression inflate(ExpressionArena arena) {
+    Expression[] trees = new Expression[16];
+    int count = 0;
+
+    for (int node = 0; node < arena.size(); node++) {
+      Expression tree;
+      switch (arena.kind(node)) {
+        case ExpressionArena.LITERAL:
+          tree = new Literal(arena.literalValue(node));
+          break;
+        case ExpressionArena.BINARY:
+          count -= 2;
+          tree = new Binary(trees[count], arena.binaryOperator(node), trees[count + 1]);
+          break;
+        case ExpressionArena.LOGICAL:
+          count -= 2;
+          tree = new Logical(trees[count], arena.logicalOperator(node), trees[count + 1]);
+          break;
+        case ExpressionArena.TERNARY:
+          count -= 3;
+          tree = new Ternary(trees[count], trees[count + 1], trees[count + 2]);
+          break;
+        case ExpressionArena.UNARY:
+          tree = new Unary(arena.unaryOperator(node), trees[--count]);
+          break;
+        case ExpressionArena.GROUPING:
+          tree = new Grouping(trees[--count]);
+          break;
+        case ExpressionArena.COMMA:
+          count -= arena.commaExpressionsSize(node);
+          tree = new Comma(Arrays.asList(Arrays.copyOfRange(trees, count, count + arena.commaExpressionsSize(node))));
+          break;
+        default:
+          tree = new Invalid(arena.invalidToken(node));
+      }
+
+      if (count == trees.length)
+        trees = Arrays.copyOf(trees, count * 2);
+      trees[count++] = tree;
+    }
+
+    return trees[0];
+  }
+
+  private void add(Expression root) {
+    push(root, false);
+    while (!pending.isEmpty()) {
+      Expression expression = pending.pop();
+      if (expanded.pop())
+        result(build(expression));
+      else
+        expand(expression);
+    }
+  }
+
+  // Children go on top of the node, last one first
+  private void expand(Expression expression) {
+    push(expression, true);
+
+    if (expression instanceof Binary) {
+      push(((Binary) expression).right, false);
+      push(((Binary) expression).left, false);
+    } else if (expression instanceof Logical) {
+      push(((Logical) expression).right, false);
+      push(((Logical) expression).left, false);
+    } else if (expression instanceof Ternary) {
+      Ternary ternary = (Ternary) expression;
+      push(ternary.right, false);
+      push(ternary.left, false);
+      push(ternary.condition, false);
+    } else if (expression instanceof Unary) {
+      push(((Unary) expression).right, false);
+    } else if (expression instanceof Grouping) {
+      push(((Grouping) expression).expression, false);
+    } else if (expression instanceof Comma) {
+      List<Expression> expressions = ((Comma) expression).expressions;
+      for (int i = expressions.size() - 1; i >= 0; i--)
+        push(expressions.get(i), false);
+    }
+  }
+
+  // Every child is in the arena, their indices on top of results
+  private int build(Expression expression) {
+    if (expression instanceof Literal)
+      return arena.addLiteral(((Literal) expression).value);
+
+    if (expression instanceof Binary) {
+      int right = popResult();
+      int left = popResult();
+      return arena.addBinary(left, ((Binary) expression).operator, right);
+    }
+
+    if (expression instanceof Logical) {
+      int right = popResult();
+      int left = popResult();
+      return arena.addLogical(left, ((Logical) expression).operator, right);
+    }
+
+    if (expression instanceof Ternary) {
+      int right = popResult();
+      int left = popResult();
+      int condition = popResult();
+      return arena.addTernary(condition, left, right);
+    }
+
+    if (expression instanceof Unary)
+      return arena.addUnary(((Unary) expression).operator, popResult());
+
+    if (expression instanceof Grouping)
+      return arena.addGrouping(popResult());
+
+    if (expression instanceof Comma) {
+      int count = ((Comma) expression).expressions.size();
+      resultCount -= count;
+      return arena.addComma(Arrays.copyOfRange(results, resultCount, resultCount + count));
+    }
+
+    return arena.addInvalid(((Invalid) expression).token);
+  }
+
+  private void push(Expression expression, boolean children) {
+    pending.push(expression);
+    expanded.push(children);
+  }
+
+  private void result(int node) {
+    if (resultCount == results.length)
+      results = Arrays.copyOf(results, resultCount * 2);
+    results[resultCount++] = node;
+  }
+
+  private int popResult() {
+    return results[--resultCount];
+  }
+}
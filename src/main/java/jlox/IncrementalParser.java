@@ -0,0 +1,266 @@
+package jlox;
+
+import java.util.Arrays;
+
+import jlox.Expression.Comma;
+
+// Keeps a buffer parsed across edits, e.g. for an editor. An edit is lexed
+// again from the end of the last token before it until the new tokens line
+// up with an old token past the edit; everything around that stretch is
+// copied over with its positions shifted. Commas only appear at the top of
+// a tree, so its elements are independent and only the ones touching new
+// tokens are parsed again.
+//
+// Old trees hold Tokens with absolute lines, so elements after an edit that
+// adds or removes newlines are parsed again too. A buffer with errors is
+// always lexed and parsed in full, which keeps every diagnostic reported.
+public class IncrementalParser {
+  private String source;
+  private TokenStream tokens;
+  private Expression expression;
+  private Diagnostics diagnostics;
+
+  // Elements of the top level comma list: index of the first token, index of
+  // the token after it (a COMMA, or the EOF for the last one) and the tree
+  private int[] firsts;
+  private int[] ends;
+  private Expression[] trees;
+  private int count;
+
+  public IncrementalParser(String source) {
+    reparse(source);
+  }
+
+  public String source() {
+    return source;
+  }
+
+  // null if the buffer has errors
+  public Expression expression() {
+    return expression;
+  }
+
+  // Errors of the buffer as of the last edit
+  public Diagnostics diagnostics() {
+    return diagnostics;
+  }
+
+  TokenStream tokens() {
+    return tokens;
+  }
+
+  // Replace removed characters at offset with inserted and return the new tree
+  public Expression edit(int offset, int removed, String inserted) {
+    if (offset < 0 || removed < 0 || offset + removed > source.length())
+      throw new IndexOutOfBoundsException("Edit outside of buffer: " + offset + "+" + removed);
+
+    String edited = source.substring(0, offset) + inserted + source.substring(offset + removed);
+    if (diagnostics.hadError() || !update(edited, offset, removed, inserted.length()))
+      reparse(edited);
+
+    return expression;
+  }
+
+  private void reparse(String edited) {
+    source = edited;
+    diagnostics = new Diagnostics();
+    tokens = new Scanner(source, diagnostics).scanTokenStream();
+
+    Elements parsed = new Elements(16);
+    if (!diagnostics.hadError() && parse(new Parser(tokens, new Diagnostics()), tokens, 0, parsed, -1, 0, 0)) {
+      commit(parsed);
+    } else {
+      // Parse again in recovery mode for the complete list of syntax errors
+      new Parser(tokens, diagnostics).parseAll();
+      count = 0;
+      expression = null;
+    }
+  }
+
+  // Returns false if the edit has to go through reparse
+  private boolean update(String edited, int offset, int removed, int inserted) {
+    int delta = inserted - removed;
+
+    // First token the edit might change. Scanner looks up to two characters
+    // past a token ("1." followed by a digit), so that includes the token
+    // ending just before the edit. The one before is untouched and scanning
+    // resumes right after it.
+    int damaged = firstEndingAtOrAfter(offset - 1);
+    int resume = damaged == 0 ? 0 : tokens.start(damaged - 1) + tokens.length(damaged - 1);
+    int line = damaged == 0 ? 1 : tokens.line(damaged - 1);
+
+    // Scan until a token starts where an old token past the edit started,
+    // from there on both streams agree
+    Diagnostics scanned = new Diagnostics();
+    Scanner scanner = new Scanner(edited, scanned);
+    TokenStream middle = scanner.scanRange(resume, resume);
+    int old = damaged;
+    int rejoin = tokens.size();
+    for (;;) {
+      scanner.scanNext();
+      int last = middle.size() - 1;
+      if (middle.type(last) == TokenType.EOF)
+        break;
+
+      int start = middle.start(last);
+      if (start < offset + inserted)
+        continue;
+
+      while (tokens.start(old) + delta < start)
+        old++;
+      if (tokens.start(old) + delta == start) {
+        rejoin = old;
+        break;
+      }
+    }
+
+    if (scanned.hadError())
+      return false;
+
+    // Without a rejoin middle ends with EOF, otherwise its last token is the
+    // old one at rejoin
+    boolean rejoined = rejoin < tokens.size();
+    int scannedCount = rejoined ? middle.size() - 1 : middle.size();
+    int lineDelta = rejoined ? middle.line(scannedCount) + line - 1 - tokens.line(rejoin) : 0;
+
+    // The old tokens are not needed again, a failed update ends in reparse
+    TokenStream updated = tokens;
+    updated.replace(edited, damaged, rejoined ? rejoin : updated.size(), middle, scannedCount, line - 1, delta, lineDelta);
+
+    // Elements that end before the damage are kept as they are
+    int kept = 0;
+    while (kept < count && ends[kept] < damaged)
+      kept++;
+
+    Elements parsed = new Elements(count + 1);
+    parsed.copy(this, 0, kept, 0);
+    if (kept > 0 && updated.type(ends[kept - 1]) != TokenType.COMMA) {
+      finishUpdate(edited, updated, parsed);
+      return true;
+    }
+
+    // Elements starting at rejoin or later are kept too if lines didn't move
+    int reusable = -1;
+    if (rejoined && lineDelta == 0) {
+      reusable = kept;
+      while (reusable < count && firsts[reusable] < rejoin)
+        reusable++;
+    }
+
+    int position = kept == 0 ? 0 : ends[kept - 1] + 1;
+    int shift = damaged + scannedCount - rejoin;
+    Parser parser = new Parser(updated, new Diagnostics());
+    if (!parse(parser, updated, position, parsed, reusable, shift, damaged + scannedCount))
+      return false;
+
+    finishUpdate(edited, updated, parsed);
+    return true;
+  }
+
+  // Parse elements from position on into parsed. With reusable at or above
+  // zero, once position reaches reuseFrom and lines up with an old element
+  // from reusable on, that element and every one after it are copied over
+  // with their indices shifted.
+  private boolean parse(Parser parser, TokenStream tokens, int position, Elements parsed, int reusable, int shift, int reuseFrom) {
+    for (;;) {
+      if (reusable >= 0 && position >= reuseFrom) {
+        while (reusable < count && firsts[reusable] + shift < position)
+          reusable++;
+
+        if (reusable < count && firsts[reusable] + shift == position) {
+          parsed.copy(this, reusable, count, shift);
+          return true;
+        }
+      }
+
+      Expression tree = parser.parseElement(position);
+      if (tree == null)
+        return false;
+
+      int end = parser.position();
+      parsed.add(position, end, tree);
+      // Tokens left over after the element are an error, reparse reports it
+      if (tokens.type(end) != TokenType.COMMA)
+        return tokens.type(end) == TokenType.EOF;
+
+      position = end + 1;
+    }
+  }
+
+  private void finishUpdate(String edited, TokenStream updated, Elements parsed) {
+    source = edited;
+    tokens = updated;
+    diagnostics = new Diagnostics();
+    commit(parsed);
+  }
+
+  private void commit(Elements parsed) {
+    firsts = parsed.firsts;
+    ends = parsed.ends;
+    trees = parsed.trees;
+    count = parsed.count;
+
+    if (count == 1)
+      expression = trees[0];
+    else
+      expression = new Comma(Arrays.asList(Arrays.copyOf(trees, count)));
+  }
+
+  private int firstEndingAtOrAfter(int offset) {
+    int low = 0;
+    int high = tokens.size() - 1;
+    while (low < high) {
+      int middle = (low + high) >>> 1;
+      if (tokens.start(middle) + tokens.length(middle) >= offset)
+        high = middle;
+      else
+        low = middle + 1;
+    }
+
+    return low;
+  }
+
+  // Element arrays under construction
+  private static class Elements {
+    int[] firsts;
+    int[] ends;
+    Expression[] trees;
+    int count = 0;
+
+    Elements(int capacity) {
+      firsts = new int[capacity];
+      ends = new int[capacity];
+      trees = new Expression[capacity];
+    }
+
+    void add(int first, int end, Expression tree) {
+      ensure(count + 1);
+      firsts[count] = first;
+      ends[count] = end;
+      trees[count] = tree;
+      count++;
+    }
+
+    // Copy elements [from, to) of parser, shifting their token indices
+    void copy(IncrementalParser parser, int from, int to, int shift) {
+      int length = to - from;
+      ensure(count + length);
+      System.arraycopy(parser.trees, from, trees, count, length);
+      for (int i = 0; i < length; i++) {
+        firsts[count + i] = parser.firsts[from + i] + shift;
+        ends[count + i] = parser.ends[from + i] + shift;
+      }
+      count += length;
+    }
+
+    private void ensure(int capacity) {
+      if (capacity <= firsts.length)
+        return;
+
+      int grown = Math.max(capacity, firsts.length * 2);
+      firsts = Arrays.copyOf(firsts, grown);
+      ends = Arrays.copyOf(ends, grown);
+      trees = Arrays.copyOf(trees, grown);
+    }
+  }
+}
@@ -1,48 +1,599 @@
 package jlox;
 
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+
 import jlox.Expression.*;
+import jlox.TypeInference.Type;
+
+import static jlox.Expression.*;
+import static jlox.Purity.isPure;
+import static jlox.TreeHeight.heightOf;
+import static jlox.TypeInference.typeOf;
+
+public class Interpreter extends Dispatcher<Object> {
+  // Evaluations of the same tree before it is handed to JitCompiler
+  static final int DEFAULT_JIT_THRESHOLD = 1000;
+  // Trees higher than this are evaluated by evaluateIteratively, the paths
+  // below and TypeInference and JitCompiler all recurse once per level
+  static final int RECURSION_LIMIT = 1024;
+
+  private static class Tier {
+    int evaluations = 0;
+    CompiledExpression compiled;
+    // Too high for the recursive paths, never compiled either
+    boolean deep;
+  }
+
+  private final int jitThreshold;
+
+  // Weak so trees that are no longer evaluated can be collected
+  private final Map<Expression, Tier> tiers = new WeakHashMap<>();
+
+  // The same tree is usually evaluated many times in a row
+  private Expression lastExpression;
+  private Tier lastTier;
+
+  public Interpreter() {
+    this(DEFAULT_JIT_THRESHOLD);
+  }
+
+  // A negative threshold keeps every tree in the tree walker
+  public Interpreter(int jitThreshold) {
+    this.jitThreshold = jitThreshold;
+  }
+
+  // Strings built by + are Ropes until here, callers only ever see Strings
+  public Object interpret(Expression expression) {
+    return Rope.flatten(run(expression));
+  }
+
+  private Object run(Expression expression) {
+    if (jitThreshold < 0)
+      return heightOf(expression) > RECURSION_LIMIT ? evaluateIteratively(expression) : evaluate(expression);
+
+    Tier tier = lastTier;
+    if (expression != lastExpression) {
+      tier = tiers.get(expression);
+      if (tier == null) {
+        tier = new Tier();
+        tier.deep = heightOf(expression) > RECURSION_LIMIT;
+        tiers.put(expression, tier);
+      }
+
+      lastExpression = expression;
+      lastTier = tier;
+    }
 
-public class Interpreter implements Visitor<Object> {
+    if (tier.deep)
+      return evaluateIteratively(expression);
+
+    if (tier.compiled == null && ++tier.evaluations == jitThreshold)
+      tier.compiled = JitCompiler.tryCompile(expression);
+
+    if (tier.compiled != null)
+      return tier.compiled.eval();
+
+    return evaluate(expression);
+  }
 
   private Object evaluate(Expression expression) {
-    return expression.accept(this);
+    return dispatch(expression);
+  }
+
+  // Evaluates the root of a flattened tree in one forward sweep. Children
+  // come before their parent and every subtree is one run of indices, so
+  // each node finds its operands on top of the value stack, as in RPN. Only
+  // ternaries and logical operators change the course: after a condition
+  // the sweep skips the left branch or, after the left branch, the right
+  // one, and a left operand that decides an and/or skips the right one.
+  // Numbers stay unboxed on the value stack.
+  public Object interpret(ExpressionArena arena) {
+    int[] parents = arena.parents();
+    ValueStack values = new ValueStack();
+
+    int root = arena.root();
+    for (int node = 0; node <= root;) {
+      switch (arena.kind(node)) {
+        case ExpressionArena.LITERAL:
+          values.push(arena.literalValue(node));
+          break;
+        case ExpressionArena.BINARY:
+          binary(values, arena, node);
+          break;
+        case ExpressionArena.UNARY:
+          unary(values, arena, node);
+          break;
+        case ExpressionArena.COMMA:
+          // Every element was evaluated in order, the last one is the result
+          values.dropUnderTop(arena.commaExpressionsSize(node) - 1);
+          break;
+        case ExpressionArena.INVALID:
+          throw new RuntimeError(arena.invalidToken(node), "Invalid expression.");
+        default:
+          // A grouping, ternary or logical already has its value on top
+      }
+
+      int parent = parents[node];
+      if (parent >= 0 && arena.kind(parent) == ExpressionArena.TERNARY) {
+        if (node == arena.ternaryCondition(parent) && !values.popCondition()) {
+          node = arena.ternaryLeft(parent) + 1;
+          continue;
+        }
+        if (node == arena.ternaryLeft(parent)) {
+          node = parent;
+          continue;
+        }
+      } else if (parent >= 0 && arena.kind(parent) == ExpressionArena.LOGICAL && node == arena.logicalLeft(parent)) {
+        if (shortCircuits(arena.logicalOperatorType(parent), values.topIsThruthy())) {
+          node = parent;
+          continue;
+        }
+        values.drop();
+      }
+
+      node++;
+    }
+
+    return Rope.flatten(values.pop());
+  }
+
+  // Operands on top of values are replaced by the result. Numbers are
+  // handled here, anything else goes through the boxed helpers with the
+  // operator Token rebuilt from the arena.
+  private static void binary(ValueStack values, ExpressionArena arena, int node) {
+    TokenType type = arena.binaryOperatorType(node);
+    if (!values.topTwoAreNumbers()) {
+      Object right = values.pop();
+      Object left = values.pop();
+      if (type == TokenType.EQUAL_EQUAL)
+        values.push(isEqual(left, right));
+      else if (type == TokenType.BANG_EQUAL)
+        values.push(!isEqual(left, right));
+      else
+        values.push(binary(left, right, arena.binaryOperator(node)));
+      return;
+    }
+
+    double right = values.popNumber();
+    double left = values.popNumber();
+    switch (type) {
+      case GREATER:
+        values.push(left > right);
+        break;
+      case GREATER_EQUAL:
+        values.push(left >= right);
+        break;
+      case LESS:
+        values.push(left < right);
+        break;
+      case LESS_EQUAL:
+        values.push(left <= right);
+        break;
+      case EQUAL_EQUAL:
+        // Same as Double.equals
+        values.push(Double.doubleToLongBits(left) == Double.doubleToLongBits(right));
+        break;
+      case BANG_EQUAL:
+        values.push(Double.doubleToLongBits(left) != Double.doubleToLongBits(right));
+        break;
+      case MINUS:
+        values.pushNumber(left - right);
+        break;
+      case SLASH:
+        values.pushNumber(left / right);
+        break;
+      case STAR:
+        values.pushNumber(left * right);
+        break;
+      case PLUS:
+        values.pushNumber(left + right);
+        break;
+      default:
+        values.push(null);
+    }
+  }
+
+  private static void unary(ValueStack values, ExpressionArena arena, int node) {
+    TokenType type = arena.unaryOperatorType(node);
+    if (type == TokenType.BANG)
+      values.push(!values.popCondition());
+    else if (type == TokenType.MINUS && values.topIsNumber())
+      values.pushNumber(-values.popNumber());
+    else
+      values.push(unary(values.pop(), arena.unaryOperator(node)));
   }
 
-  private boolean isEqual(Object left, Object right) {
-    if (left == null && right == null)
+  // Values of the arena walk. Numbers stay in a double array and are only
+  // boxed when they leave it through pop.
+  private static class ValueStack {
+    private boolean[] numeric = new boolean[16];
+    private double[] numbers = new double[16];
+    private Object[] objects = new Object[16];
+    private int size = 0;
+
+    void push(Object value) {
+      if (value instanceof Double) {
+        pushNumber((double) value);
+        return;
+      }
+
+      grow();
+      numeric[size] = false;
+      objects[size++] = value;
+    }
+
+    void pushNumber(double value) {
+      grow();
+      numeric[size] = true;
+      numbers[size++] = value;
+    }
+
+    boolean topIsNumber() {
+      return numeric[size - 1];
+    }
+
+    boolean topTwoAreNumbers() {
+      return numeric[size - 1] && numeric[size - 2];
+    }
+
+    double popNumber() {
+      return numbers[--size];
+    }
+
+    Object pop() {
+      size--;
+      if (numeric[size])
+        return numbers[size];
+
+      Object value = objects[size];
+      objects[size] = null;
+      return value;
+    }
+
+    // Removes count values right under the top one
+    void dropUnderTop(int count) {
+      int top = size - 1;
+      int target = top - count;
+      numeric[target] = numeric[top];
+      numbers[target] = numbers[top];
+      objects[target] = objects[top];
+      for (int i = target + 1; i < size; i++)
+        objects[i] = null;
+      size = target + 1;
+    }
+
+    boolean popCondition() {
+      return topIsNumber() ? isThruthy(popNumber()) : isThruthy(pop());
+    }
+
+    boolean topIsThruthy() {
+      return topIsNumber() ? isThruthy(numbers[size - 1]) : isThruthy(objects[size - 1]);
+    }
+
+    void drop() {
+      objects[--size] = null;
+    }
+
+    private void grow() {
+      if (size < numeric.length)
+        return;
+
+      numeric = Arrays.copyOf(numeric, size * 2);
+      numbers = Arrays.copyOf(numbers, size * 2);
+      objects = Arrays.copyOf(objects, size * 2);
+    }
+  }
+
+  // A node and how many of its children are evaluated so far
+  private static class Frame {
+    final Expression expression;
+    int done = 0;
+
+    Frame(Expression expression) {
+      this.expression = expression;
+    }
+  }
+
+  // Boxed evaluation with explicit stacks for trees of any height. A node
+  // stays on the frame stack until its children are evaluated, their
+  // values wait on the value stack in order.
+  private Object evaluateIteratively(Expression root) {
+    ArrayDeque<Frame> frames = new ArrayDeque<>();
+    // ArrayDeque doesn't take the nulls nil evaluates to
+    List<Object> values = new ArrayList<>();
+    frames.push(new Frame(root));
+
+    while (!frames.isEmpty()) {
+      Frame frame = frames.peek();
+      Expression expression = frame.expression;
+      int done = frame.done++;
+
+      switch (expression.kind) {
+        case LITERAL:
+          values.add(((Literal) expression).value);
+          frames.pop();
+          break;
+        case BINARY: {
+          Binary binary = (Binary) expression;
+          if (done < 2) {
+            frames.push(new Frame(done == 0 ? binary.left : binary.right));
+          } else {
+            Object right = values.remove(values.size() - 1);
+            Object left = values.remove(values.size() - 1);
+            values.add(binary(left, right, binary.operator));
+            frames.pop();
+          }
+          break;
+        }
+        case UNARY: {
+          Unary unary = (Unary) expression;
+          if (done == 0) {
+            frames.push(new Frame(unary.right));
+          } else {
+            values.add(unary(values.remove(values.size() - 1), unary.operator));
+            frames.pop();
+          }
+          break;
+        }
+        case TERNARY: {
+          Ternary ternary = (Ternary) expression;
+          if (done == 0)
+            frames.push(new Frame(ternary.condition));
+          else if (done == 1)
+            frames.push(new Frame(isThruthy(values.remove(values.size() - 1)) ? ternary.left : ternary.right));
+          else
+            frames.pop();
+          break;
+        }
+        case GROUPING:
+          if (done == 0)
+            frames.push(new Frame(((Grouping) expression).expression));
+          else
+            frames.pop();
+          break;
+        case LOGICAL: {
+          Logical logical = (Logical) expression;
+          if (done == 0) {
+            frames.push(new Frame(logical.left));
+          } else if (done == 1 && !shortCircuits(logical.operator.type, isThruthy(values.get(values.size() - 1)))) {
+            values.remove(values.size() - 1);
+            frames.push(new Frame(logical.right));
+          } else {
+            frames.pop();
+          }
+          break;
+        }
+        case COMMA: {
+          List<Expression> expressions = ((Comma) expression).expressions;
+          if (done == expressions.size()) {
+            // The value of the last one is the result
+            frames.pop();
+          } else {
+            if (done > 0)
+              values.remove(values.size() - 1);
+            frames.push(new Frame(expressions.get(done)));
+          }
+          break;
+        }
+        default:
+          throw new RuntimeError(((Invalid) expression).token, "Invalid expression.");
+      }
+    }
+
+    return values.get(0);
+  }
+
+  // Primitive paths for subtrees TypeInference typed as NUMBER or BOOLEAN.
+  // Inside them nothing is boxed, the caller boxes the result once.
+  private double evaluateNumber(Expression expression) {
+    switch (expression.kind) {
+      case LITERAL:
+        return (double) ((Literal) expression).value;
+      case BINARY: {
+        Binary binary = (Binary) expression;
+        double left = evaluateNumber(binary.left);
+        double right = evaluateNumber(binary.right);
+
+        switch (binary.operator.type) {
+          case MINUS:
+            return left - right;
+          case SLASH:
+            return left / right;
+          case STAR:
+            return left * right;
+          default:
+            return left + right;
+        }
+      }
+      case UNARY:
+        return -evaluateNumber(((Unary) expression).right);
+      case TERNARY: {
+        Ternary ternary = (Ternary) expression;
+        return evaluateCondition(ternary.condition) ? evaluateNumber(ternary.left) : evaluateNumber(ternary.right);
+      }
+      case GROUPING:
+        return evaluateNumber(((Grouping) expression).expression);
+      case LOGICAL: {
+        Logical logical = (Logical) expression;
+        double left = evaluateNumber(logical.left);
+        return shortCircuits(logical.operator.type, isThruthy(left)) ? left : evaluateNumber(logical.right);
+      }
+      default:
+    }
+
+    List<Expression> expressions = ((Comma) expression).expressions;
+    discardAllButLast(expressions);
+    return evaluateNumber(expressions.get(expressions.size() - 1));
+  }
+
+  private boolean evaluateBoolean(Expression expression) {
+    switch (expression.kind) {
+      case LITERAL:
+        return (boolean) ((Literal) expression).value;
+      case BINARY: {
+        Binary binary = (Binary) expression;
+        switch (binary.operator.type) {
+          case EQUAL_EQUAL:
+            return isEqual(binary.left, binary.right);
+          case BANG_EQUAL:
+            return !isEqual(binary.left, binary.right);
+          default:
+        }
+
+        double left = evaluateNumber(binary.left);
+        double right = evaluateNumber(binary.right);
+
+        switch (binary.operator.type) {
+          case GREATER:
+            return left > right;
+          case GREATER_EQUAL:
+            return left >= right;
+          case LESS:
+            return left < right;
+          default:
+            return left <= right;
+        }
+      }
+      case UNARY:
+        return !evaluateCondition(((Unary) expression).right);
+      case TERNARY: {
+        Ternary ternary = (Ternary) expression;
+        return evaluateCondition(ternary.condition) ? evaluateBoolean(ternary.left) : evaluateBoolean(ternary.right);
+      }
+      case GROUPING:
+        return evaluateBoolean(((Grouping) expression).expression);
+      case LOGICAL: {
+        Logical logical = (Logical) expression;
+        boolean left = evaluateBoolean(logical.left);
+        return shortCircuits(logical.operator.type, left) ? left : evaluateBoolean(logical.right);
+      }
+      default:
+    }
+
+    List<Expression> expressions = ((Comma) expression).expressions;
+    discardAllButLast(expressions);
+    return evaluateBoolean(expressions.get(expressions.size() - 1));
+  }
+
+  // Elements whose value is thrown away only run for their errors, so pure
+  // ones are skipped
+  private void discardAllButLast(List<Expression> expressions) {
+    for (int i = 0; i < expressions.size() - 1; i++) {
+      Expression expression = expressions.get(i);
+      if (!isPure(expression))
+        evaluate(expression);
+    }
+  }
+
+  private boolean evaluateCondition(Expression expression) {
+    switch (typeOf(expression)) {
+      case BOOLEAN:
+        return evaluateBoolean(expression);
+      case NUMBER:
+        return isThruthy(evaluateNumber(expression));
+      default:
+        return isThruthy(evaluate(expression));
+    }
+  }
+
+  private boolean isEqual(Expression left, Expression right) {
+    Type leftType = typeOf(left);
+    Type rightType = typeOf(right);
+
+    if (leftType == Type.NUMBER && rightType == Type.NUMBER)
+      // Same as Double.equals
+      return Double.doubleToLongBits(evaluateNumber(left)) == Double.doubleToLongBits(evaluateNumber(right));
+    if (leftType == Type.BOOLEAN && rightType == Type.BOOLEAN)
+      return evaluateBoolean(left) == evaluateBoolean(right);
+
+    return isEqual(evaluate(left), evaluate(right));
+  }
+
+  static boolean isEqual(Object left, Object right) {
+    // Covers nil and interned string literals, Double.equals agrees on the
+    // same object, NaN included
+    if (left == right)
       return true;
-    if (left == null)
+    if (left == null || right == null)
       return false;
+    if (left instanceof Rope || right instanceof Rope)
+      return Rope.isString(left) && Rope.isString(right) && Rope.contentEquals(left, right);
 
     return left.equals(right);
   }
 
-  private boolean isThruthy(Object obj) {
+  static boolean isThruthy(Object obj) {
     if (obj == null)
       return false;
     if (obj instanceof Boolean)
       return ((boolean) obj);
     if (obj instanceof Double)
-      return !((Double) obj).isNaN() || ((Double) obj).doubleValue() != 0.0;
-    if (obj instanceof String)
-      return ((String) obj).length() > 0;
+      return isThruthy(((Double) obj).doubleValue());
+    if (Rope.isString(obj))
+      return Rope.length(obj) > 0;
 
     return true;
   }
 
+  // Whether the left operand of and/or is the result, the right one isn't
+  // evaluated then
+  static boolean shortCircuits(TokenType operator, boolean left) {
+    return operator == TokenType.OR ? left : !left;
+  }
+
+  static boolean isThruthy(double number) {
+    return !Double.isNaN(number) || number != 0.0;
+  }
+
+  private static void checkNumberOperand(Token operator, Object operand) {
+    if (operand instanceof Double)
+      return;
+
+    throw new RuntimeError(operator, "Operand must be a number.");
+  }
+
+  private static void checkNumberOperands(Token operator, Object left, Object right) {
+    if (left instanceof Double && right instanceof Double)
+      return;
+
+    throw new RuntimeError(operator, "Operands must be numbers.");
+  }
+
   @Override
   public Object visitBinaryExpression(Binary expression) {
+    switch (typeOf(expression)) {
+      case NUMBER:
+        return evaluateNumber(expression);
+      case BOOLEAN:
+        return evaluateBoolean(expression);
+      default:
+    }
+
     Object left = evaluate(expression.left);
     Object right = evaluate(expression.right);
 
-    switch (expression.operator.type) {
+    return binary(left, right, expression.operator);
+  }
+
+  // Boxed operator semantics, shared with code generated by JitCompiler
+  static Object binary(Object left, Object right, Token operator) {
+    switch (operator.type) {
       case GREATER:
+        checkNumberOperands(operator, left, right);
         return ((double) left) > ((double) right);
       case GREATER_EQUAL:
+        checkNumberOperands(operator, left, right);
         return (double) left >= (double) right;
       case LESS:
+        checkNumberOperands(operator, left, right);
         return ((double) left) < ((double) right);
       case LESS_EQUAL:
+        checkNumberOperands(operator, left, right);
         return (double) left <= (double) right;
       case EQUAL_EQUAL:
         return isEqual(left, right);
@@ -50,17 +601,20 @@ public class Interpreter implements Visitor<Object> {
         return !isEqual(left, right);
 
       case MINUS:
+        checkNumberOperands(operator, left, right);
         return (double) left - (double) right;
       case SLASH:
+        checkNumberOperands(operator, left, right);
         return (double) left / (double) right;
       case STAR:
+        checkNumberOperands(operator, left, right);
         return (double) left * (double) right;
       case PLUS:
         if (left instanceof Double && right instanceof Double)
           return (double) left + (double) right;
 
-        if (left instanceof String && right instanceof String)
-          return (String) left + (String) right;
+        if (Rope.isString(left) && Rope.isString(right))
+          return Rope.concat(left, right);
       default:
         return null;
     }
@@ -68,7 +622,7 @@ public class Interpreter implements Visitor<Object> {
 
   @Override
   public Object visitGroupingExpression(Grouping expression) {
-    return evaluate(expression);
+    return evaluate(expression.expression);
   }
 
   @Override
@@ -78,10 +632,23 @@ public class Interpreter implements Visitor<Object> {
 
   @Override
   public Object visitUnaryExpression(Unary expression) {
+    switch (typeOf(expression)) {
+      case NUMBER:
+        return evaluateNumber(expression);
+      case BOOLEAN:
+        return evaluateBoolean(expression);
+      default:
+    }
+
     Object right = evaluate(expression.right);
 
-    switch (expression.operator.type) {
+    return unary(right, expression.operator);
+  }
+
+  static Object unary(Object right, Token operator) {
+    switch (operator.type) {
       case MINUS:
+        checkNumberOperand(operator, right);
         return -(double) right;
       case BANG:
         return !isThruthy(right);
@@ -89,25 +656,41 @@ public class Interpreter implements Visitor<Object> {
       default:
         return null;
     }
-
   }
 
   @Override
   public Object visitCommaExpression(Comma expression) {
-    Object result = null;
-    for (Expression exp : expression.expressions) {
-      result = evaluate(exp);
-    }
-
-    return result;
+    List<Expression> expressions = expression.expressions;
+    discardAllButLast(expressions);
+    return evaluate(expressions.get(expressions.size() - 1));
   }
 
   @Override
   public Object visitTernaryExpression(Ternary expression) {
-    Object condition = evaluate(expression.condition);
+    return evaluate(evaluateCondition(expression.condition) ? expression.left : expression.right);
+  }
+
+  // Only reachable for partial trees from Parser.parseAll
+  @Override
+  public Object visitInvalidExpression(Invalid expression) {
+    throw new RuntimeError(expression.token, "Invalid expression.");
+  }
+
+  @Override
+  public Object visitLogicalExpression(Logical expression) {
+    switch (typeOf(expression)) {
+      case NUMBER:
+        return evaluateNumber(expression);
+      case BOOLEAN:
+        return evaluateBoolean(expression);
+      default:
+    }
+
+    Object left = evaluate(expression.left);
+    if (shortCircuits(expression.operator.type, isThruthy(left)))
+      return left;
 
-    // lol
-    return evaluate(isThruthy(condition) ? expression.left : expression.right);
+    return evaluate(expression.right);
   }
 
 }
@@ -0,0 +1,370 @@
+package jlox;
+
+import static jlox.ClassFile.*;
+import static jlox.Purity.isPure;
+import static jlox.TypeInference.typeOf;
+
+import java.lang.invoke.MethodHandles;
+import java.util.ArrayList;
+import java.util.List;
+
+import jlox.ClassFile.Code;
+import jlox.Expression.*;
+import jlox.TypeInference.Type;
+
+// Translates an expression tree into a hidden class whose eval() runs it as
+// plain JVM bytecode, so HotSpot compiles and inlines it like any other
+// method. Typed subtrees work on primitive doubles and booleans, the rest
+// call the boxed helpers in Interpreter so results and errors are the same.
+class JitCompiler {
+  private static final String NAME = "jlox/JitExpression";
+  private static final String OBJECT = "java/lang/Object";
+  private static final String INTERPRETER = "jlox/Interpreter";
+  private static final String TOKEN = "jlox/Token";
+  private static final String ROPE = "jlox/Rope";
+  private static final String CONSTANTS = "[Ljava/lang/Object;";
+
+  // HotSpot never compiles methods with more bytecode than this
+  // (-XX:HugeMethodLimit), so larger trees are better off in the tree walker
+  private static final int HUGE_METHOD_LIMIT = 8000;
+
+  private final ClassFile classFile = new ClassFile(NAME, OBJECT, "jlox/CompiledExpression");
+  private final Code code = new Code();
+
+  // Objects the generated code needs, handed to its constructor
+  private final List<Object> constants = new ArrayList<>();
+  private final int constantsField;
+
+  private JitCompiler() {
+    classFile.field(ACC_PRIVATE | ACC_FINAL, "constants", CONSTANTS);
+    constantsField = classFile.fieldRef(NAME, "constants", CONSTANTS);
+  }
+
+  // Returns null when the tree can't be compiled, e.g. because it is too
+  // large for one method, and the caller keeps using the tree walker
+  static CompiledExpression tryCompile(Expression expression) {
+    try {
+      return new JitCompiler().compile(expression);
+    } catch (RuntimeException | LinkageError | ReflectiveOperationException e) {
+      return null;
+    }
+  }
+
+  private CompiledExpression compile(Expression expression) throws ReflectiveOperationException {
+    Code constructor = new Code();
+    constructor.maxLocals = 2;
+    constructor.op(ALOAD_0, 1);
+    constructor.op(INVOKESPECIAL, classFile.methodRef(OBJECT, "<init>", "()V"), -1);
+    constructor.op(ALOAD_0, 1);
+    constructor.op(ALOAD_1, 1);
+    constructor.op(PUTFIELD, constantsField, -2);
+    constructor.op(RETURN, 0);
+    classFile.method(ACC_PUBLIC, "<init>", "(" + CONSTANTS + ")V", constructor);
+
+    code.maxLocals = 1;
+    object(expression);
+    // Ropes stay inside the evaluation, as in the interpreters and the VM
+    invokeStatic(ROPE, "flatten", "(Ljava/lang/Object;)Ljava/lang/Object;", 0);
+    code.op(ARETURN, -1);
+    if (code.length() > HUGE_METHOD_LIMIT)
+      throw new IllegalStateException("Too large to compile");
+    classFile.method(ACC_PUBLIC, "eval", "()Ljava/lang/Object;", code);
+
+    Class<?> type = MethodHandles.lookup().defineHiddenClass(classFile.toByteArray(), true).lookupClass();
+    return (CompiledExpression) type.getConstructor(Object[].class).newInstance((Object) constants.toArray());
+  }
+
+  // Leaves the boxed value on the stack
+  private void object(Expression expression) {
+    Type type = typeOf(expression);
+    if (expression instanceof Literal) {
+      Object value = ((Literal) expression).value;
+      if (value == null)
+        code.op(ACONST_NULL, 1);
+      else
+        constant(value);
+      return;
+    }
+
+    if (type == Type.NUMBER) {
+      number(expression);
+      invokeStatic("java/lang/Double", "valueOf", "(D)Ljava/lang/Double;", -1);
+      return;
+    }
+
+    if (type == Type.BOOLEAN) {
+      bool(expression);
+      invokeStatic("java/lang/Boolean", "valueOf", "(Z)Ljava/lang/Boolean;", 0);
+      return;
+    }
+
+    if (expression instanceof Binary) {
+      Binary binary = (Binary) expression;
+      object(binary.left);
+      object(binary.right);
+      token(binary.operator);
+      invokeStatic(INTERPRETER, "binary", "(Ljava/lang/Object;Ljava/lang/Object;L" + TOKEN + ";)Ljava/lang/Object;", -2);
+    } else if (expression instanceof Unary) {
+      Unary unary = (Unary) expression;
+      object(unary.right);
+      token(unary.operator);
+      invokeStatic(INTERPRETER, "unary", "(Ljava/lang/Object;L" + TOKEN + ";)Ljava/lang/Object;", -1);
+    } else if (expression instanceof Ternary) {
+      Ternary ternary = (Ternary) expression;
+      condition(ternary.condition);
+      int elseJump = code.jump(IFEQ, -1);
+      object(ternary.left);
+      int endJump = code.jump(GOTO, 0);
+      code.patch(elseJump);
+      code.depth -= 1;
+      object(ternary.right);
+      code.patch(endJump);
+    } else if (expression instanceof Grouping) {
+      object(((Grouping) expression).expression);
+    } else if (expression instanceof Logical) {
+      Logical logical = (Logical) expression;
+      object(logical.left);
+      code.op(DUP, 1);
+      invokeStatic(INTERPRETER, "isThruthy", "(Ljava/lang/Object;)Z", 0);
+      int endJump = code.jump(shortCircuit(logical), -1);
+      code.op(POP, -1);
+      object(logical.right);
+      code.patch(endJump);
+    } else if (expression instanceof Invalid) {
+      throw new IllegalStateException("Tree has syntax errors");
+    } else {
+      List<Expression> expressions = ((Comma) expression).expressions;
+      discardAllButLast(expressions);
+      object(expressions.get(expressions.size() - 1));
+    }
+  }
+
+  // Leaves a double (two slots) on the stack, expression must be typed NUMBER
+  private void number(Expression expression) {
+    if (expression instanceof Literal) {
+      code.op(LDC2_W, classFile.doubleConstant((double) ((Literal) expression).value), 2);
+    } else if (expression instanceof Binary) {
+      Binary binary = (Binary) expression;
+      number(binary.left);
+      number(binary.right);
+
+      switch (binary.operator.type) {
+        case MINUS:
+          code.op(DSUB, -2);
+          break;
+        case SLASH:
+          code.op(DDIV, -2);
+          break;
+        case STAR:
+          code.op(DMUL, -2);
+          break;
+        default:
+          code.op(DADD, -2);
+          break;
+      }
+    } else if (expression instanceof Unary) {
+      number(((Unary) expression).right);
+      code.op(DNEG, 0);
+    } else if (expression instanceof Ternary) {
+      Ternary ternary = (Ternary) expression;
+      condition(ternary.condition);
+      int elseJump = code.jump(IFEQ, -1);
+      number(ternary.left);
+      int endJump = code.jump(GOTO, 0);
+      code.patch(elseJump);
+      code.depth -= 2;
+      number(ternary.right);
+      code.patch(endJump);
+    } else if (expression instanceof Grouping) {
+      number(((Grouping) expression).expression);
+    } else if (expression instanceof Logical) {
+      Logical logical = (Logical) expression;
+      number(logical.left);
+      code.op(DUP2, 2);
+      invokeStatic(INTERPRETER, "isThruthy", "(D)Z", -1);
+      int endJump = code.jump(shortCircuit(logical), -1);
+      code.op(POP2, -2);
+      number(logical.right);
+      code.patch(endJump);
+    } else {
+      List<Expression> expressions = ((Comma) expression).expressions;
+      discardAllButLast(expressions);
+      number(expressions.get(expressions.size() - 1));
+    }
+  }
+
+  // Leaves an int 0 or 1 on the stack, expression must be typed BOOLEAN
+  private void bool(Expression expression) {
+    if (expression instanceof Literal) {
+      code.op((boolean) ((Literal) expression).value ? ICONST_1 : ICONST_0, 1);
+    } else if (expression instanceof Binary) {
+      Binary binary = (Binary) expression;
+      switch (binary.operator.type) {
+        case EQUAL_EQUAL:
+          equal(binary.left, binary.right);
+          return;
+        case BANG_EQUAL:
+          equal(binary.left, binary.right);
+          not();
+          return;
+        default:
+      }
+
+      number(binary.left);
+      number(binary.right);
+
+      // Jump to false on the opposite comparison. dcmpg and dcmpl make NaN
+      // land on the false side, as with Java's own operators.
+      switch (binary.operator.type) {
+        case GREATER:
+          code.op(DCMPL, -3);
+          branchToBoolean(IFLE);
+          break;
+        case GREATER_EQUAL:
+          code.op(DCMPL, -3);
+          branchToBoolean(IFLT);
+          break;
+        case LESS:
+          code.op(DCMPG, -3);
+          branchToBoolean(IFGE);
+          break;
+        default:
+          code.op(DCMPG, -3);
+          branchToBoolean(IFGT);
+          break;
+      }
+    } else if (expression instanceof Unary) {
+      condition(((Unary) expression).right);
+      not();
+    } else if (expression instanceof Ternary) {
+      Ternary ternary = (Ternary) expression;
+      condition(ternary.condition);
+      int elseJump = code.jump(IFEQ, -1);
+      bool(ternary.left);
+      int endJump = code.jump(GOTO, 0);
+      code.patch(elseJump);
+      code.depth -= 1;
+      bool(ternary.right);
+      code.patch(endJump);
+    } else if (expression instanceof Grouping) {
+      bool(((Grouping) expression).expression);
+    } else if (expression instanceof Logical) {
+      Logical logical = (Logical) expression;
+      bool(logical.left);
+      code.op(DUP, 1);
+      int endJump = code.jump(shortCircuit(logical), -1);
+      code.op(POP, -1);
+      bool(logical.right);
+      code.patch(endJump);
+    } else {
+      List<Expression> expressions = ((Comma) expression).expressions;
+      discardAllButLast(expressions);
+      bool(expressions.get(expressions.size() - 1));
+    }
+  }
+
+  // Leaves the truthiness of any expression as an int
+  private void condition(Expression expression) {
+    switch (typeOf(expression)) {
+      case BOOLEAN:
+        bool(expression);
+        break;
+      case NUMBER:
+        number(expression);
+        invokeStatic(INTERPRETER, "isThruthy", "(D)Z", -1);
+        break;
+      default:
+        object(expression);
+        invokeStatic(INTERPRETER, "isThruthy", "(Ljava/lang/Object;)Z", 0);
+        break;
+    }
+  }
+
+  private void equal(Expression left, Expression right) {
+    Type leftType = typeOf(left);
+    Type rightType = typeOf(right);
+
+    if (leftType == Type.NUMBER && rightType == Type.NUMBER) {
+      // Same as Double.equals
+      number(left);
+      invokeStatic("java/lang/Double", "doubleToLongBits", "(D)J", 0);
+      number(right);
+      invokeStatic("java/lang/Double", "doubleToLongBits", "(D)J", 0);
+      code.op(LCMP, -3);
+      branchToBoolean(IFNE);
+    } else if (leftType == Type.BOOLEAN && rightType == Type.BOOLEAN) {
+      bool(left);
+      bool(right);
+      branchToBoolean(IF_ICMPNE);
+    } else {
+      object(left);
+      object(right);
+      invokeStatic(INTERPRETER, "isEqual", "(Ljava/lang/Object;Ljava/lang/Object;)Z", -1);
+    }
+  }
+
+  // Pure elements are left out, they could only produce a value
+  private void discardAllButLast(List<Expression> expressions) {
+    for (int i = 0; i < expressions.size() - 1; i++) {
+      Expression expression = expressions.get(i);
+      if (isPure(expression))
+        continue;
+
+      switch (typeOf(expression)) {
+        case NUMBER:
+          number(expression);
+          code.op(POP2, -2);
+          break;
+        case BOOLEAN:
+          bool(expression);
+          code.op(POP, -1);
+          break;
+        default:
+          object(expression);
+          code.op(POP, -1);
+          break;
+      }
+    }
+  }
+
+  // Branch taken on the truthiness of the left operand when it is the
+  // result, the copy of it left on the stack is the value then
+  private static int shortCircuit(Logical logical) {
+    return logical.operator.type == TokenType.OR ? IFNE : IFEQ;
+  }
+
+  // Consumes what the branch opcode tests and leaves 0 if it jumps, 1 if not
+  private void branchToBoolean(int opcode) {
+    int falseJump = code.jump(opcode, opcode == IF_ICMPNE ? -2 : -1);
+    code.op(ICONST_1, 1);
+    int endJump = code.jump(GOTO, 0);
+    code.patch(falseJump);
+    code.depth -= 1;
+    code.op(ICONST_0, 1);
+    code.patch(endJump);
+  }
+
+  private void not() {
+    code.op(ICONST_1, 1);
+    code.op(IXOR, -1);
+  }
+
+  private void token(Token token) {
+    constant(token);
+    code.op(CHECKCAST, classFile.classRef(TOKEN), 0);
+  }
+
+  private void constant(Object value) {
+    int index = constants.size();
+    constants.add(value);
+
+    code.op(ALOAD_0, 1);
+    code.op(GETFIELD, constantsField, 0);
+    code.pushInt(index);
+    code.op(AALOAD, -1);
+  }
+
+  private void invokeStatic(String owner, String name, String descriptor, int delta) {
+    code.op(INVOKESTATIC, classFile.methodRef(owner, name, descriptor), delta);
+  }
+}
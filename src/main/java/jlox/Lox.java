@@ -1,38 +1,205 @@
 package jlox;
 
-import static jlox.TokenType.EOF;
-
 import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStreamReader;
-import java.nio.charset.Charset;
 import java.nio.file.Files;
+import java.nio.file.Path;
 import java.nio.file.Paths;
-import java.util.List;
+import java.util.Locale;
 
+import jlox.PrintAst.ArenaPrinter;
 import jlox.PrintAst.AstPrinter;
 
 public class Lox {
-  private static boolean hadError;
+  // What run does with a parsed expression, COMPILE saves it as a Snapshot
+  private enum Mode {
+    PRINT, EVAL, VM, COMPILE
+  }
+
+  private static Mode mode = Mode.PRINT;
+  private static boolean optimize = false;
+  // Deeper nesting is a static error, see Parser
+  private static int maxDepth = Parser.DEFAULT_MAX_DEPTH;
+  // Print and eval work on a flattened copy of the tree
+  private static boolean arena = false;
+  // Socket of a Server to run as or to send the script to
+  private static Path serve;
+  private static Path connect;
+  // Collapsed stacks of --profile, eval then goes through profiler
+  private static Path profile;
+  private static Profiler profiler;
+  private static final int PROFILE_TOP = 20;
+  private static final Interpreter interpreter = new Interpreter();
+  private static final VM vm = new VM();
+
+  // Caches REPL lines, the same line is often entered again
+  private static Engine engine;
 
   public static void main(String[] args) throws IOException {
-    if (args.length > 1) {
-      System.out.println("Usage: jlox [script]");
-      System.exit(64);
-    } else if (args.length == 1) {
-      runFile(args[0]);
+    int first = 0;
+    for (; first < args.length && args[first].startsWith("--"); first++) {
+      switch (args[first]) {
+        case "--print":
+          mode = Mode.PRINT;
+          break;
+        case "--eval":
+          mode = Mode.EVAL;
+          break;
+        case "--vm":
+          mode = Mode.VM;
+          break;
+        case "--compile":
+          mode = Mode.COMPILE;
+          break;
+        case "--optimize":
+          optimize = true;
+          break;
+        case "--arena":
+          arena = true;
+          break;
+        case "--max-depth":
+          if (first + 1 == args.length)
+            usage();
+          try {
+            maxDepth = Integer.parseInt(args[++first]);
+          } catch (NumberFormatException e) {
+            usage();
+          }
+          if (maxDepth < 1)
+            usage();
+          break;
+        case "--metrics":
+          // Printed to stderr when the process exits
+          Metrics.enable();
+          Runtime.getRuntime().addShutdownHook(new Thread(() -> System.err.print(Metrics.report())));
+          break;
+        case "--profile":
+          if (first + 1 == args.length)
+            usage();
+          profile = Paths.get(args[++first]);
+          break;
+        case "--serve":
+        case "--connect":
+          if (first + 1 == args.length)
+            usage();
+          Path socket = Paths.get(args[++first]);
+          if (args[first - 1].equals("--serve"))
+            serve = socket;
+          else
+            connect = socket;
+          break;
+        default:
+          usage();
+      }
+    }
+
+    if (profile != null) {
+      if (mode != Mode.EVAL || arena || serve != null || connect != null)
+        usage();
+      profiler = new Profiler();
+      // Written when the process exits, after a runtime error too
+      Runtime.getRuntime().addShutdownHook(new Thread(() -> writeProfile(profile)));
+    }
+
+    if (serve != null) {
+      if (first < args.length || connect != null)
+        usage();
+      System.exit(Server.serve(serve, optimize, maxDepth));
+    }
+
+    if (connect != null) {
+      // The server's own flags decide how it parses and evaluates
+      if (args.length - first > 1 || mode == Mode.COMPILE || optimize || arena || maxDepth != Parser.DEFAULT_MAX_DEPTH)
+        usage();
+      // Without a script the source is read from stdin, as in a pipeline
+      byte[] source = first < args.length ? Files.readAllBytes(Paths.get(args[first])) : System.in.readAllBytes();
+      System.exit(Client.send(connect, mode.name().toLowerCase(Locale.ROOT), source));
+    }
+
+    engine = new Engine(Engine.DEFAULT_CACHE_SIZE, optimize, maxDepth);
+
+    if (args.length - first > 1 || (mode == Mode.COMPILE && args.length - first == 0)) {
+      usage();
+    } else if (args.length - first == 1) {
+      runFile(args[first]);
     } else {
       runPrompt();
     }
   }
 
+  private static void usage() {
+    System.out.println("Usage: jlox [--print | --eval | --vm | --compile] [--optimize] [--arena] [--max-depth n]"
+        + " [--metrics] [--profile file] [--serve socket | --connect socket] [script]");
+    System.exit(64);
+  }
+
   private static void runFile(String path) throws IOException {
-    byte[] bytes = Files.readAllBytes(Paths.get((path)));
-    String source = new String(bytes, Charset.defaultCharset());
-    run(source);
+    Path file = Paths.get(path);
+    boolean snapshot = false;
+    MappedSource source = null;
+    try {
+      snapshot = Snapshot.isSnapshot(file);
+      // Mapped rather than read, so only what the scanner touches is paged in
+      if (!snapshot)
+        source = MappedSource.map(file);
+    } catch (IOException e) {
+      unreadable(file, e);
+    }
+
+    if (snapshot) {
+      runSnapshot(file);
+      return;
+    }
+
+    Diagnostics diagnostics = new Diagnostics();
+    Expression expr = parse(source, diagnostics);
     // exit gracefully if error
-    if (hadError)
+    if (report(diagnostics))
+      System.exit(65);
+
+    if (mode == Mode.COMPILE) {
+      // script.lox is saved as script.loxc
+      Path compiled = Paths.get(path.endsWith(".lox") ? path + "c" : path + ".loxc");
+      Snapshot.write(expr, compiled);
+      return;
+    }
+
+    ExpressionArena flat = arena && mode != Mode.VM ? ExpressionFlattener.flatten(expr) : null;
+    if (!run(expr, flat))
+      System.exit(70);
+  }
+
+  // The tree was checked when the snapshot was written, and optimized too if
+  // --optimize was given then
+  private static void runSnapshot(Path file) {
+    if (mode == Mode.COMPILE)
+      usage();
+
+    // The arena is what the file holds, a tree is only built when needed
+    boolean flat = arena && mode != Mode.VM;
+    Expression expr = null;
+    ExpressionArena loaded = null;
+    try {
+      Snapshot snapshot = Snapshot.map(file);
+      if (flat)
+        loaded = snapshot.arena();
+      else
+        expr = snapshot.expression();
+    } catch (Snapshot.CorruptException e) {
+      System.err.println(e.getMessage());
       System.exit(65);
+    } catch (IOException e) {
+      unreadable(file, e);
+    }
+
+    if (!run(expr, loaded))
+      System.exit(70);
+  }
+
+  private static void unreadable(Path file, IOException error) {
+    System.err.println("Could not read " + file + ": " + error);
+    System.exit(66);
   }
 
   private static void runPrompt() throws IOException {
@@ -44,38 +211,112 @@ public class Lox {
       String line = reader.readLine();
       if (line == null)
         break;
-      run(line);
-      // reset if line had error
-      hadError = false;
+      // fresh diagnostics so an error doesn't stick to the next line
+      Diagnostics diagnostics = new Diagnostics();
+      Expression expr = engine.parse(line, diagnostics);
+      if (!report(diagnostics))
+        run(expr, arena && mode != Mode.VM ? ExpressionFlattener.flatten(expr) : null);
     }
   }
 
-  private static void run(String source) {
-    Scanner scanner = new Scanner(source);
-    List<Token> tokens = scanner.scanTokens();
-    Parser parser = new Parser(tokens);
-    Expression expr = parser.parse();
+  private static Expression parse(CharSequence source, Diagnostics diagnostics) {
+    // Large files are lexed up front on every core, smaller ones as the parser reads
+    boolean streamed = source.length() < ParallelScanner.MIN_PARALLEL_LENGTH;
+    Events.Scan scan = Metrics.beginScan();
+    Scanner scanner = null;
+    TokenStream tokens;
+    if (streamed) {
+      scanner = new Scanner(source, diagnostics);
+      if (scan != null)
+        scanner.timeScanning();
+      tokens = scanner.streamTokens();
+    } else {
+      tokens = ParallelScanner.scan(source, diagnostics);
+      Metrics.endScan(scan, source.length(), tokens.size());
+    }
 
-    if (hadError)
-      return;
+    Events.Parse parse = Metrics.beginParse();
+    Parser parser = new Parser(tokens, diagnostics, maxDepth);
+    // Keeps going after syntax errors so all of them are reported in one run
+    Expression expr = parser.parseAll();
+    // Report lexical errors past the point where parsing stopped
+    tokens.fillAll();
+    if (streamed)
+      Metrics.endScan(scan, source.length(), tokens.size(), scanner.scanTime(), true);
+    Metrics.endParse(parse, source.length(), tokens.size(), diagnostics.hadError() ? null : expr,
+        diagnostics.errors().size(), streamed);
 
-    AstPrinter printer = new AstPrinter();
-    System.out.println(expr.accept(printer));
+    if (diagnostics.hadError())
+      return null;
+
+    return optimize ? Optimizer.optimize(expr) : expr;
   }
 
-  static void error(int line, String message) {
-    report(line, "", message);
+  // Runs flat if it isn't null, expr otherwise. Returns false if evaluation
+  // failed with a runtime error.
+  private static boolean run(Expression expr, ExpressionArena flat) {
+    if (mode == Mode.PRINT) {
+      System.out.println(flat != null ? new ArenaPrinter().print(flat) : new AstPrinter().print(expr));
+      return true;
+    }
+
+    String backend = mode == Mode.VM ? "vm" : flat != null ? "arena" : profiler != null ? "profile" : "eval";
+    Events.Evaluate evaluate = Metrics.beginEvaluate();
+    try {
+      Object value;
+      if (mode == Mode.VM)
+        value = vm.run(Compiler.compile(expr));
+      else if (profiler != null)
+        value = profiler.interpret(expr);
+      else
+        value = flat != null ? interpreter.interpret(flat) : interpreter.interpret(expr);
+      Metrics.endEvaluate(evaluate, backend, expr, flat, false);
+      System.out.println(stringify(value));
+      return true;
+    } catch (RuntimeError error) {
+      Metrics.endEvaluate(evaluate, backend, expr, flat, true);
+      runtimeError(error);
+      return false;
+    }
+  }
+
+  // Collapsed stacks go to file, the hottest nodes to stderr
+  private static void writeProfile(Path file) {
+    try {
+      profiler.writeCollapsed(file);
+      System.err.print(profiler.report(PROFILE_TOP));
+    } catch (IOException e) {
+      System.err.println("Could not write profile to " + file + ": " + e.getMessage());
+    }
+  }
+
+  static String stringify(Object value) {
+    if (value == null)
+      return "nil";
+
+    if (value instanceof Double) {
+      String text = value.toString();
+      if (text.endsWith(".0"))
+        text = text.substring(0, text.length() - 2);
+      return text;
+    }
+
+    return value.toString();
+  }
+
+  // Prints the static errors, returns true if there were any
+  private static boolean report(Diagnostics diagnostics) {
+    for (Diagnostics.Diagnostic error : diagnostics.errors())
+      System.err.println(error);
+
+    return diagnostics.hadError();
   }
 
-  private static void report(int line, String where, String message) {
-    System.err.println("[line " + line + "] Error" + where + ": " + message);
-    hadError = true;
+  private static void runtimeError(RuntimeError error) {
+    System.err.println(describe(error));
   }
 
-  static void error(Token token, String message) {
-    if (token.type == EOF)
-      report(token.line, " at end", message);
-    else
-      report(token.line, " at '" + token.lexeme + "'", message);
+  static String describe(RuntimeError error) {
+    return error.getMessage() + "\n[line " + error.token.line + "]";
   }
 }
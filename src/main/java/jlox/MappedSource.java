@@ -0,0 +1,109 @@
+package jlox;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+// A UTF-8 file mapped into memory and exposed to Scanner without decoding it
+// onto the heap. Lox syntax is ASCII, so charAt hands out single bytes and
+// offsets are byte offsets. Multi-byte characters can only appear inside
+// strings and comments, and subSequence decodes them when a lexeme or string
+// literal is materialized.
+public class MappedSource implements CharSequence {
+  private static final long ONES = 0x0101010101010101L;
+  private static final long LOWS = 0x7f7f7f7f7f7f7f7fL;
+
+  private final ByteBuffer buffer;
+
+  private MappedSource(ByteBuffer buffer) {
+    this.buffer = buffer;
+  }
+
+  static MappedSource map(Path path) throws IOException {
+    try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+      long size = channel.size();
+      if (size > Integer.MAX_VALUE)
+        throw new IOException("File too large to map: " + path);
+
+      // The mapping stays valid after the channel is closed
+      // Little endian so the first byte of a word is its lowest
+      ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, size).order(ByteOrder.LITTLE_ENDIAN);
+      return new MappedSource(buffer);
+    }
+  }
+
+  @Override
+  public int length() {
+    return buffer.limit();
+  }
+
+  @Override
+  public char charAt(int index) {
+    return (char) (buffer.get(index) & 0xff);
+  }
+
+  // Index of the first a, b or c at or after from, or length() if there is
+  // none. Reads eight bytes at a time and tests them all at once (SWAR).
+  int indexOfAny(char a, char b, char c, int from) {
+    long patternA = ONES * (a & 0xff);
+    long patternB = ONES * (b & 0xff);
+    long patternC = ONES * (c & 0xff);
+
+    int limit = buffer.limit();
+    int i = from;
+    for (; i + Long.BYTES <= limit; i += Long.BYTES) {
+      long word = buffer.getLong(i);
+      long found = zeroBytes(word ^ patternA) | zeroBytes(word ^ patternB) | zeroBytes(word ^ patternC);
+      if (found != 0)
+        return i + (Long.numberOfTrailingZeros(found) >>> 3);
+    }
+
+    for (; i < limit; i++) {
+      char x = charAt(i);
+      if (x == a || x == b || x == c)
+        return i;
+    }
+
+    return limit;
+  }
+
+  // Whether [start, end) is all ASCII, so its bytes are its characters.
+  // Eight bytes at a time like indexOfAny.
+  boolean isAscii(int start, int end) {
+    int i = start;
+    for (; i + Long.BYTES <= end; i += Long.BYTES) {
+      // Any high bit is a byte of a multi-byte character
+      if ((buffer.getLong(i) & ~LOWS) != 0)
+        return false;
+    }
+
+    for (; i < end; i++) {
+      if (buffer.get(i) < 0)
+        return false;
+    }
+
+    return true;
+  }
+
+  // High bit set in exactly the bytes of word that are zero. Unlike the
+  // usual (word - ONES) & ~word trick, no borrow spills into other bytes.
+  private static long zeroBytes(long word) {
+    return ~(((word & LOWS) + LOWS) | word | LOWS);
+  }
+
+  @Override
+  public CharSequence subSequence(int start, int end) {
+    byte[] bytes = new byte[end - start];
+    buffer.get(start, bytes);
+    return new String(bytes, StandardCharsets.UTF_8);
+  }
+
+  @Override
+  public String toString() {
+    return subSequence(0, length()).toString();
+  }
+}
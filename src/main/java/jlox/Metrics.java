@@ -0,0 +1,263 @@
+package jlox;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+import jdk.jfr.FlightRecorder;
+
+// Process wide counters and latency histograms for the phases of a run, off
+// unless -Djlox.metrics=true or --metrics turns them on. Phases are bracketed
+// by a begin and an end call, which also time the matching Events for Flight
+// Recorder. Both are per phase rather than per token or node, and when
+// neither is on begin returns null instead of an event, so a run pays a few
+// branches and allocates nothing. Lexing a streamed source is interleaved
+// with parsing, so Scanner then times every token it scans and the sum is
+// the scan time.
+//
+// Counters are LongAdders and histograms atomic arrays, so the threads of
+// an Engine or Server record without locking. report() reads them while
+// they may still change, each number is exact but they need not agree.
+public class Metrics {
+  private static volatile boolean enabled = Boolean.getBoolean("jlox.metrics");
+
+  private static final LongAdder sources = new LongAdder();
+  private static final LongAdder characters = new LongAdder();
+  private static final LongAdder tokens = new LongAdder();
+  // Scanning and parsing, streamed lexing counted once
+  private static final LongAdder frontEnd = new LongAdder();
+  private static final LongAdder staticErrors = new LongAdder();
+  private static final LongAdder runtimeErrors = new LongAdder();
+
+  private static final Histogram scans = new Histogram();
+  private static final Histogram parses = new Histogram();
+  private static final Histogram evaluations = new Histogram();
+
+  private Metrics() {
+  }
+
+  public static void enable() {
+    enabled = true;
+  }
+
+  public static boolean enabled() {
+    return enabled;
+  }
+
+  // Zero while disabled, so no clock is read
+  private static long now() {
+    return enabled ? System.nanoTime() : 0;
+  }
+
+  // Flight Recorder can only record events once it is initialized
+  private static boolean observed() {
+    return enabled || FlightRecorder.isInitialized();
+  }
+
+  // Scan time is a field of the event too, so the clock is read either way
+  static Events.Scan beginScan() {
+    if (!observed())
+      return null;
+
+    Events.Scan event = new Events.Scan();
+    event.begin();
+    event.started = System.nanoTime();
+    return event;
+  }
+
+  // Lexing up front, all of the event's time is scan time
+  static void endScan(Events.Scan event, int sourceLength, int tokenCount) {
+    if (event != null)
+      endScan(event, sourceLength, tokenCount, System.nanoTime() - event.started, false);
+  }
+
+  // Lexing interleaved with parsing, scanTime is what Scanner measured.
+  // Ended after the parse, which includes the same time.
+  static void endScan(Events.Scan event, int sourceLength, int tokenCount, long scanTime, boolean streamed) {
+    if (event == null)
+      return;
+
+    event.end();
+    if (enabled) {
+      scans.record(scanTime);
+      if (!streamed)
+        frontEnd.add(scanTime);
+    }
+
+    if (event.shouldCommit()) {
+      event.sourceLength = sourceLength;
+      event.tokens = tokenCount;
+      event.scanTime = scanTime;
+      event.streamed = streamed;
+      event.commit();
+    }
+  }
+
+  static Events.Parse beginParse() {
+    if (!observed())
+      return null;
+
+    Events.Parse event = new Events.Parse();
+    event.begin();
+    event.started = now();
+    return event;
+  }
+
+  // tree is null if the source has errors
+  static void endParse(Events.Parse event, int sourceLength, int tokenCount, Expression tree, int errors,
+      boolean streamed) {
+    if (event == null)
+      return;
+
+    event.end();
+    if (enabled && event.started != 0) {
+      long elapsed = System.nanoTime() - event.started;
+      parses.record(elapsed);
+      frontEnd.add(elapsed);
+      sources.increment();
+      characters.add(sourceLength);
+      tokens.add(tokenCount);
+      staticErrors.add(errors);
+    }
+
+    if (event.shouldCommit()) {
+      event.sourceLength = sourceLength;
+      event.tokens = tokenCount;
+      event.nodes = tree == null ? 0 : TreeHeight.sizeOf(tree);
+      event.errors = errors;
+      event.streamed = streamed;
+      event.commit();
+    }
+  }
+
+  static Events.Evaluate beginEvaluate() {
+    if (!observed())
+      return null;
+
+    Events.Evaluate event = new Events.Evaluate();
+    event.begin();
+    event.started = now();
+    return event;
+  }
+
+  // Either tree or flat is what ran
+  static void endEvaluate(Events.Evaluate event, String backend, Expression tree, ExpressionArena flat,
+      boolean failed) {
+    if (event == null)
+      return;
+
+    event.end();
+    if (enabled && event.started != 0) {
+      evaluations.record(System.nanoTime() - event.started);
+      if (failed)
+        runtimeErrors.increment();
+    }
+
+    if (event.shouldCommit()) {
+      event.backend = backend;
+      event.nodes = flat != null ? flat.size() : TreeHeight.sizeOf(tree);
+      event.failed = failed;
+      event.commit();
+    }
+  }
+
+  // Parse times of streamed sources include their scan times
+  public static String report() {
+    long frontEndTime = frontEnd.sum();
+    double tokensPerSecond = frontEndTime == 0 ? 0 : tokens.sum() * 1e9 / frontEndTime;
+
+    StringBuilder report = new StringBuilder();
+    report.append("sources ").append(sources.sum())
+        .append(", characters ").append(characters.sum())
+        .append(", tokens ").append(tokens.sum())
+        .append(String.format(" (%.0f tokens/s)", tokensPerSecond)).append('\n');
+    report.append("static errors ").append(staticErrors.sum())
+        .append(", runtime errors ").append(runtimeErrors.sum()).append('\n');
+    scans.append(report, "scan");
+    parses.append(report, "parse");
+    evaluations.append(report, "evaluate");
+    return report.toString();
+  }
+
+  // Counts of nanosecond latencies in log linear buckets: eight to every
+  // power of two, so a percentile is off by at most an eighth
+  static class Histogram {
+    private static final int SUB_BITS = 3;
+    private static final int SUB_BUCKETS = 1 << SUB_BITS;
+    private static final int BUCKETS = (64 - SUB_BITS) << SUB_BITS;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final LongAdder count = new LongAdder();
+    private final LongAdder sum = new LongAdder();
+    private final LongAccumulator max = new LongAccumulator(Math::max, 0);
+
+    void record(long nanos) {
+      if (nanos < 0)
+        nanos = 0;
+
+      counts.incrementAndGet(bucket(nanos));
+      count.increment();
+      sum.add(nanos);
+      max.accumulate(nanos);
+    }
+
+    long sum() {
+      return sum.sum();
+    }
+
+    // Upper bound of the bucket holding the given fraction of samples, or
+    // zero without any
+    long percentile(double fraction) {
+      long total = 0;
+      for (int i = 0; i < BUCKETS; i++)
+        total += counts.get(i);
+
+      long rank = (long) Math.ceil(fraction * total);
+      long seen = 0;
+      for (int i = 0; i < BUCKETS; i++) {
+        seen += counts.get(i);
+        if (seen >= rank && seen > 0)
+          return Math.min(lowest(i + 1) - 1, max.get());
+      }
+
+      return 0;
+    }
+
+    private void append(StringBuilder report, String name) {
+      long samples = count.sum();
+      report.append(String.format("%-8s n=%d mean=%s p50=%s p90=%s p99=%s max=%s%n", name, samples,
+          format(samples == 0 ? 0 : sum.sum() / samples), format(percentile(0.5)), format(percentile(0.9)),
+          format(percentile(0.99)), format(max.get())));
+    }
+
+    private static String format(long nanos) {
+      if (nanos < TimeUnit.MILLISECONDS.toNanos(1))
+        return String.format("%.1fus", nanos / 1e3);
+
+      return String.format("%.2fms", nanos / 1e6);
+    }
+
+    // Below SUB_BUCKETS a bucket per value, then SUB_BUCKETS per power of two
+    static int bucket(long value) {
+      if (value < SUB_BUCKETS)
+        return (int) value;
+
+      int exponent = 63 - Long.numberOfLeadingZeros(value);
+      int sub = (int) (value >>> (exponent - SUB_BITS)) & (SUB_BUCKETS - 1);
+      return ((exponent - SUB_BITS + 1) << SUB_BITS) + sub;
+    }
+
+    // Smallest value in bucket
+    static long lowest(int bucket) {
+      if (bucket < SUB_BUCKETS)
+        return bucket;
+
+      int exponent = (bucket >>> SUB_BITS) + SUB_BITS - 1;
+      long sub = bucket & (SUB_BUCKETS - 1);
+      if (exponent >= 63)
+        return Long.MAX_VALUE;
+      return (SUB_BUCKETS + sub) << (exponent - SUB_BITS);
+    }
+  }
+}
@@ -0,0 +1,177 @@
+package jlox;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import jlox.Expression.*;
+import jlox.TypeInference.Type;
+
+import static jlox.TypeInference.typeOf;
+
+// Folds constant subtrees into literals and drops work that cannot change
+// the result. Subtrees that fail at runtime are left alone so the error
+// still happens when the tree is evaluated. Unchanged subtrees are returned
+// as is.
+public class Optimizer implements Visitor<Expression> {
+  private final Interpreter interpreter = new Interpreter(-1);
+
+  // Trees too high for the recursive visitor are left as they are
+  public static Expression optimize(Expression expression) {
+    if (TreeHeight.heightOf(expression) > Interpreter.RECURSION_LIMIT)
+      return expression;
+
+    return expression.accept(new Optimizer());
+  }
+
+  @Override
+  public Expression visitBinaryExpression(Binary expression) {
+    Expression left = expression.left.accept(this);
+    Expression right = expression.right.accept(this);
+
+    Binary binary = left == expression.left && right == expression.right
+        ? expression
+        : new Binary(left, expression.operator, right);
+
+    if (left instanceof Literal && right instanceof Literal)
+      return fold(binary);
+
+    return simplify(binary);
+  }
+
+  // Identities that hold for every double, including NaN, infinities and -0
+  private Expression simplify(Binary expression) {
+    Expression left = expression.left;
+    Expression right = expression.right;
+
+    switch (expression.operator.type) {
+      case STAR:
+        if (isNumber(left, 1) && typeOf(right) == Type.NUMBER)
+          return right;
+        if (isNumber(right, 1) && typeOf(left) == Type.NUMBER)
+          return left;
+        break;
+      case SLASH:
+        if (isNumber(right, 1) && typeOf(left) == Type.NUMBER)
+          return left;
+        break;
+      case MINUS:
+        if (isNumber(right, 0) && typeOf(left) == Type.NUMBER)
+          return left;
+        break;
+      default:
+    }
+
+    return expression;
+  }
+
+  private boolean isNumber(Expression expression, double value) {
+    if (!(expression instanceof Literal))
+      return false;
+
+    Object literal = ((Literal) expression).value;
+    return literal instanceof Double && Double.doubleToLongBits((double) literal) == Double.doubleToLongBits(value);
+  }
+
+  @Override
+  public Expression visitGroupingExpression(Grouping expression) {
+    return expression.expression.accept(this);
+  }
+
+  @Override
+  public Expression visitLiteralExpression(Literal expression) {
+    return expression;
+  }
+
+  @Override
+  public Expression visitUnaryExpression(Unary expression) {
+    Expression right = expression.right.accept(this);
+
+    // -(-x) is x for numbers
+    if (expression.operator.type == TokenType.MINUS && right instanceof Unary) {
+      Unary inner = (Unary) right;
+      if (inner.operator.type == TokenType.MINUS && typeOf(inner.right) == Type.NUMBER)
+        return inner.right;
+    }
+
+    Expression unary = right == expression.right ? expression : new Unary(expression.operator, right);
+    if (right instanceof Literal)
+      return fold(unary);
+
+    return unary;
+  }
+
+  @Override
+  public Expression visitCommaExpression(Comma expression) {
+    List<Expression> expressions = new ArrayList<>();
+    boolean changed = false;
+
+    int last = expression.expressions.size() - 1;
+    for (int i = 0; i <= last; i++) {
+      Expression original = expression.expressions.get(i);
+      Expression optimized = original.accept(this);
+      changed |= optimized != original;
+
+      // A pure element whose value is thrown away does nothing
+      if (i < last && Purity.isPure(optimized)) {
+        changed = true;
+        continue;
+      }
+
+      expressions.add(optimized);
+    }
+
+    if (expressions.size() == 1)
+      return expressions.get(0);
+
+    return changed ? new Comma(expressions) : expression;
+  }
+
+  @Override
+  public Expression visitTernaryExpression(Ternary expression) {
+    Expression condition = expression.condition.accept(this);
+
+    if (condition instanceof Literal) {
+      Expression branch = Interpreter.isThruthy(((Literal) condition).value) ? expression.left : expression.right;
+      return branch.accept(this);
+    }
+
+    Expression left = expression.left.accept(this);
+    Expression right = expression.right.accept(this);
+    if (condition == expression.condition && left == expression.left && right == expression.right)
+      return expression;
+
+    return new Ternary(condition, left, right);
+  }
+
+  @Override
+  public Expression visitInvalidExpression(Invalid expression) {
+    return expression;
+  }
+
+  @Override
+  public Expression visitLogicalExpression(Logical expression) {
+    Expression left = expression.left.accept(this);
+
+    // A literal on the left decides which operand is the result
+    if (left instanceof Literal) {
+      if (Interpreter.shortCircuits(expression.operator.type, Interpreter.isThruthy(((Literal) left).value)))
+        return left;
+      return expression.right.accept(this);
+    }
+
+    Expression right = expression.right.accept(this);
+    if (left == expression.left && right == expression.right)
+      return expression;
+
+    return new Logical(left, expression.operator, right);
+  }
+
+  // Evaluate a node whose operands are literals, keeping it if it fails
+  private Expression fold(Expression expression) {
+    try {
+      return new Literal(interpreter.interpret(expression));
+    } catch (RuntimeError error) {
+      return expression;
+    }
+  }
+}
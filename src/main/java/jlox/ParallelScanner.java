@@ -0,0 +1,127 @@
+package jlox;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+
+// Lexes a large source on several cores. The source is cut after newlines
+// and every chunk is scanned speculatively from its cut, as if a token
+// started there, with lines counted from 1. A cut inside a string or block
+// comment shows up when the previous chunk ends past it instead of exactly
+// on it; that chunk is thrown away and the text is scanned again from where
+// the previous chunk really stopped. Chunks are then stitched together in
+// order with their lines and errors shifted.
+public class ParallelScanner {
+  // Below this many characters the split doesn't pay for itself
+  public static final int MIN_PARALLEL_LENGTH = 1 << 20;
+  private static final int MIN_CHUNK_LENGTH = 256 * 1024;
+
+  private final CharSequence source;
+  private final ForkJoinPool pool;
+
+  private ParallelScanner(CharSequence source, ForkJoinPool pool) {
+    this.source = source;
+    this.pool = pool;
+  }
+
+  public static TokenStream scan(CharSequence source, Diagnostics diagnostics) {
+    return scan(source, diagnostics, ForkJoinPool.commonPool());
+  }
+
+  public static TokenStream scan(CharSequence source, Diagnostics diagnostics, ForkJoinPool pool) {
+    return new ParallelScanner(source, pool).scan(diagnostics);
+  }
+
+  // Tokens and errors of one stretch of source
+  private static class Chunk {
+    final int from;
+    final int limit;
+    final Diagnostics diagnostics = new Diagnostics();
+    TokenStream tokens;
+    // Where scanning stopped, at or past limit
+    int end;
+    int newlines;
+
+    Chunk(int from, int limit) {
+      this.from = from;
+      this.limit = limit;
+    }
+
+    Chunk scan(CharSequence source) {
+      Scanner scanner = new Scanner(source, diagnostics);
+      tokens = scanner.scanRange(from, limit);
+      end = scanner.position();
+      newlines = scanner.line() - 1;
+      return this;
+    }
+  }
+
+  private TokenStream scan(Diagnostics diagnostics) {
+    int[] cuts = cuts();
+    if (cuts.length <= 2)
+      return new Scanner(source, diagnostics).scanTokenStream();
+
+    List<ForkJoinTask<Chunk>> tasks = new ArrayList<>();
+    for (int i = 0; i + 1 < cuts.length; i++) {
+      Chunk chunk = new Chunk(cuts[i], cuts[i + 1]);
+      tasks.add(pool.submit(() -> chunk.scan(source)));
+    }
+
+    List<Chunk> chunks = new ArrayList<>();
+    int position = 0;
+    int size = 1;
+    for (int i = 0; i < tasks.size(); i++) {
+      int limit = cuts[i + 1];
+      // An earlier chunk already scanned past this one
+      if (position >= limit) {
+        tasks.get(i).cancel(false);
+        continue;
+      }
+
+      Chunk chunk = tasks.get(i).join();
+      // The speculation was wrong, scan again from where the text really is
+      if (chunk.from != position)
+        chunk = new Chunk(position, limit).scan(source);
+
+      chunks.add(chunk);
+      size += chunk.tokens.size();
+      position = chunk.end;
+    }
+
+    TokenStream tokens = new TokenStream(source, size);
+    int line = 1;
+    for (Chunk chunk : chunks) {
+      tokens.append(chunk.tokens, line - 1);
+      diagnostics.addAll(chunk.diagnostics, line - 1);
+      line += chunk.newlines;
+    }
+
+    tokens.add(TokenType.EOF, source.length(), 0, line);
+    return tokens;
+  }
+
+  // Chunk boundaries, starting at 0 and ending at the source length. Every
+  // inner cut is just after a newline.
+  private int[] cuts() {
+    int length = source.length();
+    if (length < MIN_PARALLEL_LENGTH || pool.getParallelism() < 2)
+      return new int[] { 0, length };
+
+    int chunks = Math.min(pool.getParallelism() * 4, length / MIN_CHUNK_LENGTH);
+    List<Integer> cuts = new ArrayList<>();
+    cuts.add(0);
+    for (int i = 1; i < chunks; i++) {
+      int cut = Math.max(i * (length / chunks), cuts.get(cuts.size() - 1));
+      while (cut < length && source.charAt(cut) != '\n')
+        cut++;
+      if (cut + 1 >= length)
+        break;
+      if (cut + 1 > cuts.get(cuts.size() - 1))
+        cuts.add(cut + 1);
+    }
+    cuts.add(length);
+
+    return cuts.stream().mapToInt(Integer::intValue).toArray();
+  }
+}
@@ -1,6 +1,7 @@
 package jlox;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 import jlox.Expression.*;
 
@@ -10,25 +11,135 @@ public class Parser {
   public static class ParseError extends RuntimeException {
   }
 
-  private List<Token> tokens;
+  // Binding power of binary operators by TokenType ordinal, 0 for tokens
+  // that aren't one. Higher binds tighter.
+  private static final int[] PRECEDENCE = new int[TokenType.values().length];
+  private static final int LOGIC_OR = 1;
+  private static final int LOGIC_AND = 2;
+  private static final int EQUALITY = 3;
+  private static final int COMPARISON = 4;
+  private static final int TERM = 5;
+  private static final int FACTOR = 6;
+
+  static {
+    PRECEDENCE[OR.ordinal()] = LOGIC_OR;
+    PRECEDENCE[AND.ordinal()] = LOGIC_AND;
+    PRECEDENCE[BANG_EQUAL.ordinal()] = EQUALITY;
+    PRECEDENCE[EQUAL_EQUAL.ordinal()] = EQUALITY;
+    PRECEDENCE[GREATER.ordinal()] = COMPARISON;
+    PRECEDENCE[GREATER_EQUAL.ordinal()] = COMPARISON;
+    PRECEDENCE[LESS.ordinal()] = COMPARISON;
+    PRECEDENCE[LESS_EQUAL.ordinal()] = COMPARISON;
+    PRECEDENCE[MINUS.ordinal()] = TERM;
+    PRECEDENCE[PLUS.ordinal()] = TERM;
+    PRECEDENCE[SLASH.ordinal()] = FACTOR;
+    PRECEDENCE[STAR.ordinal()] = FACTOR;
+  }
+
+  // Nesting of parentheses and then branches before the parser gives up
+  public static final int DEFAULT_MAX_DEPTH = 1_000_000;
+  // Nesting handled by plain recursion, deeper expressions are parsed by
+  // nested() which keeps its stack on the heap. Each level of recursion
+  // takes around ten Java frames.
+  private static final int RECURSION_LIMIT = 128;
+
+  private final TokenStream tokens;
+  private final Diagnostics diagnostics;
+  private final int maxDepth;
+  // Where expression() stops recursing, lower than RECURSION_LIMIT if
+  // maxDepth is, so nested() is the one reporting it
+  private final int recursionLimit;
   private int current = 0;
+  // Open calls of expression(), recursive or on the stack of nested()
+  private int depth = 0;
 
   Parser(List<Token> tokens) {
+    this(TokenStream.of(tokens), new Diagnostics());
+  }
+
+  Parser(TokenStream tokens) {
+    this(tokens, new Diagnostics());
+  }
+
+  Parser(TokenStream tokens, Diagnostics diagnostics) {
+    this(tokens, diagnostics, DEFAULT_MAX_DEPTH);
+  }
+
+  Parser(TokenStream tokens, Diagnostics diagnostics, int maxDepth) {
     this.tokens = tokens;
+    this.diagnostics = diagnostics;
+    this.maxDepth = maxDepth;
+    this.recursionLimit = Math.min(RECURSION_LIMIT, maxDepth);
   }
 
   public Expression parse() {
     try {
-      return comma();
+      Expression expr = comma();
+      if (!isAtEnd())
+        throw leftOver();
+      return expr;
     } catch (ParseError e) {
       return null;
     }
   }
 
+  // Recovery mode: a syntax error doesn't end parsing. The element of the
+  // comma list it happened in becomes an Invalid node, parsing resumes at
+  // the next comma and every error gets reported. Returns the partial tree.
+  public Expression parseAll() {
+    Expression expr = recovering();
+
+    if (peekType() != COMMA) {
+      return expr;
+    }
+
+    List<Expression> exprs = new ArrayList<>();
+    exprs.add(expr);
+
+    while (match(COMMA)) {
+      Expression next = recovering();
+      exprs.add(next);
+    }
+
+    return new Comma(exprs);
+  }
+
+  private Expression recovering() {
+    try {
+      Expression expr = expression();
+      if (peekType() != COMMA && !isAtEnd())
+        throw leftOver();
+      return expr;
+    } catch (ParseError e) {
+      depth = 0;
+      // Errors are reported at the token that couldn't be parsed
+      Token token = peek();
+      synchronize();
+      return new Invalid(token);
+    }
+  }
+
+  // Parse one element of the top level comma list starting at token from,
+  // for IncrementalParser. Returns null after reporting a syntax error.
+  Expression parseElement(int from) {
+    current = from;
+    depth = 0;
+    try {
+      return expression();
+    } catch (ParseError e) {
+      return null;
+    }
+  }
+
+  // Index of the next token to be read
+  int position() {
+    return current;
+  }
+
   private Expression comma() {
     Expression expr = expression();
 
-    if (peek().type != COMMA) {
+    if (peekType() != COMMA) {
       return expr;
     }
 
@@ -44,144 +155,316 @@ public class Parser {
   }
 
   private Expression expression() {
-    return ternary();
+    if (depth >= recursionLimit)
+      return nested();
+
+    depth++;
+    Expression expr = ternary();
+    depth--;
+    return expr;
   }
 
-  // tern -> equal ? expr : expr
+  // tern -> binary ? expr : expr
+  // An else branch that is a ternary again (a ? b : c ? d : e) is read in
+  // the same loop and the chain built from the right, so long chains don't
+  // nest. Only then branches and parentheses count towards maxDepth.
   private Expression ternary() {
-    Expression expr = equality();
+    Expression expr = binary(LOGIC_OR);
     if (!match(Q_MARK))
       return expr;
 
-    Expression right = expression();
-    consume(COLON, "Expected ':' after expression");
-    Expression left = expression();
-
-    return new Ternary(expr, left, right);
+    return ternaryChain(expr);
   }
 
-  private Expression equality() {
-    Expression expr = comparison();
-    while (match(BANG_EQUAL, EQUAL_EQUAL)) {
-      Token operator = previous();
-      Expression right = comparison();
-      expr = new Binary(expr, operator, right);
-    }
+  // Kept out of ternary() so the common path stays small enough to inline
+  private Expression ternaryChain(Expression expr) {
+    // Conditions and then branches of the chain, in pairs
+    List<Expression> chain = new ArrayList<>();
+    do {
+      chain.add(expr);
+      chain.add(expression());
+      consume(COLON, "Expected ':' after expression");
+      expr = binary(LOGIC_OR);
+    } while (match(Q_MARK));
+
+    for (int i = chain.size() - 2; i >= 0; i -= 2)
+      expr = new Ternary(chain.get(i), chain.get(i + 1), expr);
 
     return expr;
   }
 
-  private Expression comparison() {
-    Expression expr = term();
-    while (match(GREATER, GREATER_EQUAL, LESS, LESS_EQUAL)) {
+  // Binary operators are parsed by precedence climbing: one loop for every
+  // level instead of a method per level. Operators of the same level are
+  // left associative, so the right operand only takes tighter operators.
+  private Expression binary(int minimum) {
+    Expression expr = unary();
+
+    for (;;) {
+      int precedence = PRECEDENCE[peekType().ordinal()];
+      if (precedence < minimum)
+        return expr;
+
+      advance();
       Token operator = previous();
-      Expression right = term();
-      expr = new Binary(expr, operator, right);
+      Expression right = binary(precedence + 1);
+      expr = operation(expr, operator, right);
     }
+  }
 
-    return expr;
+  // and/or get a node of their own, their right operand is evaluated lazily
+  private static Expression operation(Expression left, Token operator, Expression right) {
+    if (operator.type == AND || operator.type == OR)
+      return new Logical(left, operator, right);
+
+    return new Binary(left, operator, right);
   }
 
-  private Expression term() {
-    Expression expr = factor();
-    while (match(MINUS, PLUS)) {
-      Token operator = previous();
-      Expression right = factor();
-      expr = new Binary(expr, operator, right);
-    }
+  // Prefix operators are read in a loop, so a long run of them doesn't
+  // recurse. They are consecutive tokens and get applied right to left.
+  private Expression unary() {
+    TokenType type = peekType();
+    if (type != MINUS && type != BANG)
+      return primary();
 
-    return expr;
+    int first = current;
+    int operators = skipPrefix();
+    return applyPrefix(first, operators, primary());
   }
 
-  private Expression factor() {
-    Expression expr = unary();
-    while (match(SLASH, STAR)) {
-      Token operator = previous();
-      Expression right = unary();
-      expr = new Binary(expr, operator, right);
-    }
+  // Returns the number of operators skipped
+  private int skipPrefix() {
+    int first = current;
+    for (TokenType type = peekType(); type == MINUS || type == BANG; type = peekType())
+      advance();
 
-    return expr;
+    return current - first;
   }
 
-  private Expression unary() {
-    if (match(MINUS, BANG)) {
-      Token operator = previous();
-      Expression expr = unary();
-      return new Unary(operator, expr);
-    }
+  private Expression applyPrefix(int first, int operators, Expression expr) {
+    for (int i = operators - 1; i >= 0; i--)
+      expr = new Unary(tokens.token(first + i), expr);
 
-    return primary();
+    return expr;
   }
 
   private Expression primary() {
-    if (match(TRUE))
-      return new Literal(true);
-    if (match(FALSE))
-      return new Literal(false);
-    if (match(NIL))
-      return new Literal(null);
-
-    if (match(STRING, NUMBER)) {
-      Token token = previous();
-      return new Literal(token.literal);
+    switch (peekType()) {
+      case TRUE:
+        advance();
+        return new Literal(true);
+      case FALSE:
+        advance();
+        return new Literal(false);
+      case NIL:
+        advance();
+        return new Literal(null);
+      case STRING:
+      case NUMBER:
+        advance();
+        return new Literal(tokens.literal(current - 1));
+      case LEFT_PAREN:
+        advance();
+        Expression expr = expression();
+        consume(RIGHT_PAREN, "Expect ')' after expression.");
+        return expr;
+      default:
+        throw error(peek(), "Expect expression");
     }
+  }
 
-    if (match(LEFT_PAREN)) {
-      Expression expr = expression();
-      consume(RIGHT_PAREN, "Expect ')' after expression.");
-      return expr;
+  // What a frame of nested() stands for
+  private static final int TERNARY_FRAME = 0;
+  private static final int BINARY_FRAME = 1;
+  private static final int UNARY_FRAME = 2;
+  private static final int PRIMARY_FRAME = 3;
+  // Marks a ternary frame that doesn't count towards depth
+  private static final int ELSE_BRANCH = 1;
+
+  // Same grammar as expression() and the methods below it, but with the
+  // calls on an explicit stack, so nesting is only bounded by maxDepth. A
+  // frame's state says where its method continues once the call it made
+  // returns; the returned value is passed along in result.
+  private Expression nested() {
+    Frames frames = new Frames();
+    enter(frames);
+    Expression result = null;
+
+    while (frames.size > 0) {
+      int top = frames.size - 1;
+      int state = frames.states[top];
+
+      switch (frames.kinds[top]) {
+        case TERNARY_FRAME:
+          if (state == 0) {
+            frames.states[top] = 1;
+            frames.push(BINARY_FRAME, LOGIC_OR);
+          } else if (state == 1) {
+            if (!match(Q_MARK)) {
+              leave(frames);
+              break;
+            }
+            frames.values[top] = result;
+            frames.states[top] = 2;
+            enter(frames);
+          } else if (state == 2) {
+            frames.branches[top] = result;
+            consume(COLON, "Expected ':' after expression");
+            frames.states[top] = 3;
+            // Like the loop in ternary(), an else branch doesn't nest
+            frames.push(TERNARY_FRAME, ELSE_BRANCH);
+          } else {
+            result = new Ternary(frames.values[top], frames.branches[top], result);
+            leave(frames);
+          }
+          break;
+
+        case BINARY_FRAME:
+          if (state == 0) {
+            frames.states[top] = 1;
+            frames.push(UNARY_FRAME, 0);
+            break;
+          }
+
+          // result is the operand that was just parsed
+          Expression left = frames.values[top];
+          Expression expr = left == null ? result : operation(left, frames.operators[top], result);
+          int precedence = PRECEDENCE[peekType().ordinal()];
+          if (precedence < frames.numbers[top]) {
+            result = expr;
+            frames.pop();
+            break;
+          }
+
+          advance();
+          frames.values[top] = expr;
+          frames.operators[top] = previous();
+          frames.push(BINARY_FRAME, precedence + 1);
+          break;
+
+        case UNARY_FRAME:
+          if (state == 0) {
+            frames.numbers[top] = current;
+            frames.counts[top] = skipPrefix();
+            frames.states[top] = 1;
+            frames.push(PRIMARY_FRAME, 0);
+          } else {
+            result = applyPrefix(frames.numbers[top], frames.counts[top], result);
+            frames.pop();
+          }
+          break;
+
+        default:
+          if (state == 0) {
+            // primary() only recurses for parentheses
+            if (peekType() != LEFT_PAREN) {
+              result = primary();
+              frames.pop();
+              break;
+            }
+
+            advance();
+            frames.states[top] = 1;
+            enter(frames);
+          } else {
+            consume(RIGHT_PAREN, "Expect ')' after expression.");
+            frames.pop();
+          }
+      }
     }
 
-    throw error(peek(), "Expect expression");
+    return result;
   }
 
-  private Token consume(TokenType type, String message) {
-    if (check(type))
-      return advance();
+  // The explicit counterpart of a call to expression()
+  private void enter(Frames frames) {
+    if (depth >= maxDepth)
+      throw error(peek(), "Expression nested too deeply.");
 
-    throw error(peek(), message);
+    depth++;
+    frames.push(TERNARY_FRAME, 0);
   }
 
-  private ParseError error(Token token, String message) {
-    Lox.error(token, message);
-    return new ParseError();
+  private void leave(Frames frames) {
+    if (frames.numbers[frames.size - 1] != ELSE_BRANCH)
+      depth--;
+    frames.pop();
   }
 
-  // Discard unwanted tokens and continue parsing
-  private void synchronize() {
-    // Go to the next token
-    advance();
-
-    while (!isAtEnd()) {
-
-      // Statment boundary found, finish sync
-      if (peek().type == SEMICOLON)
-        return;
-
-      switch (peek().type) {
-        case FOR:
-        case IF:
-        case WHILE:
-        case VAR:
-        case FUN:
-        case PRINT:
-        case RETURN:
-          return;
-        default:
+  // Stack of nested(), one slot per frame in each array
+  private static class Frames {
+    int size = 0;
+    int[] kinds = new int[16];
+    int[] states = new int[16];
+    // Minimum precedence of a binary frame, first operator of a unary one,
+    // ELSE_BRANCH or 0 for a ternary one
+    int[] numbers = new int[16];
+    // Number of operators of a unary frame
+    int[] counts = new int[16];
+    // Condition of a ternary frame, left operand of a binary one
+    Expression[] values = new Expression[16];
+    // Then branch of a ternary frame
+    Expression[] branches = new Expression[16];
+    Token[] operators = new Token[16];
+
+    void push(int kind, int number) {
+      if (size == kinds.length) {
+        int grown = size * 2;
+        kinds = Arrays.copyOf(kinds, grown);
+        states = Arrays.copyOf(states, grown);
+        numbers = Arrays.copyOf(numbers, grown);
+        counts = Arrays.copyOf(counts, grown);
+        values = Arrays.copyOf(values, grown);
+        branches = Arrays.copyOf(branches, grown);
+        operators = Arrays.copyOf(operators, grown);
       }
 
+      kinds[size] = kind;
+      states[size] = 0;
+      numbers[size] = number;
+      size++;
+    }
+
+    void pop() {
+      size--;
+      // Don't keep finished subtrees alive
+      values[size] = null;
+      branches[size] = null;
+      operators[size] = null;
+    }
+  }
+
+  private void consume(TokenType type, String message) {
+    if (check(type)) {
       advance();
+      return;
     }
+
+    throw error(peek(), message);
   }
 
-  private boolean match(TokenType... types) {
+  private ParseError error(Token token, String message) {
+    diagnostics.error(token, message);
+    return new ParseError();
+  }
 
-    for (TokenType type : types) {
-      if (check(type)) {
-        advance();
-        return true;
-      }
+  // An element is followed by the next one or nothing, "1 2" is not a list
+  private ParseError leftOver() {
+    return error(peek(), "Expect ',' or end of input.");
+  }
+
+  // Discard unwanted tokens and continue parsing. The grammar has no
+  // statements yet, so the next comma is the only boundary to resume at.
+  // The failing token may be that comma, parseAll consumes it either way.
+  private void synchronize() {
+    while (!isAtEnd() && peekType() != COMMA)
+      advance();
+  }
+
+  // One type per call, a varargs match would allocate an array every time
+  private boolean match(TokenType type) {
+    if (check(type)) {
+      advance();
+      return true;
     }
 
     return false;
@@ -190,26 +473,29 @@ public class Parser {
   private boolean check(TokenType type) {
     if (isAtEnd())
       return false;
-    return peek().type == type;
+    return peekType() == type;
   }
 
+  private TokenType peekType() {
+    return tokens.type(current);
+  }
+
+  // Materializes a Token, only needed for operators and error reporting
   private Token peek() {
-    return tokens.get(current);
+    return tokens.token(current);
   }
 
   private boolean isAtEnd() {
-    return peek().type == EOF;
+    return peekType() == EOF;
   }
 
-  private Token advance() {
+  private void advance() {
     if (!isAtEnd())
       current++;
-
-    return previous();
   }
 
   private Token previous() {
-    return tokens.get(current - 1);
+    return tokens.token(current - 1);
   }
 
 }
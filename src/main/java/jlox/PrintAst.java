@@ -1,61 +1,187 @@
 package jlox;
 
+import java.util.ArrayDeque;
+import java.util.Arrays;
+
 import jlox.Expression.Binary;
 import jlox.Expression.Comma;
 import jlox.Expression.Grouping;
+import jlox.Expression.Invalid;
 import jlox.Expression.Literal;
+import jlox.Expression.Logical;
 import jlox.Expression.Ternary;
 import jlox.Expression.Unary;
 
 public class PrintAst {
 
-  public static class AstPrinter implements Expression.Visitor<String> {
+  // Prints with an explicit stack, so trees of any height fit. Visiting a
+  // node writes what comes first and leaves the rest, children and closing
+  // text, on the stack in the order it is printed.
+  public static class AstPrinter extends Expression.Dispatcher<Void> {
+    private final ArrayDeque<Object> pending = new ArrayDeque<>();
+    private StringBuilder builder;
+
+    public String print(Expression expression) {
+      builder = new StringBuilder();
+      pending.push(expression);
+      while (!pending.isEmpty()) {
+        Object next = pending.pop();
+        if (next instanceof String)
+          builder.append((String) next);
+        else
+          dispatch((Expression) next);
+      }
+
+      return builder.toString();
+    }
 
     @Override
-    public String visitBinaryExpression(Binary expression) {
+    public Void visitBinaryExpression(Binary expression) {
       return parenthesize(expression.operator.lexeme, expression.left, expression.right);
     }
 
     @Override
-    public String visitGroupingExpression(Grouping expression) {
+    public Void visitGroupingExpression(Grouping expression) {
       return parenthesize("group", expression.expression);
     }
 
     @Override
-    public String visitLiteralExpression(Literal expression) {
-      return expression.value == null ? "nill" : expression.value.toString();
+    public Void visitLiteralExpression(Literal expression) {
+      builder.append(expression.value == null ? "nill" : expression.value.toString());
+      return null;
     }
 
     @Override
-    public String visitUnaryExpression(Unary expression) {
+    public Void visitUnaryExpression(Unary expression) {
       return parenthesize(expression.operator.lexeme, expression.right);
     }
 
     @Override
-    public String visitCommaExpression(Comma expression) {
+    public Void visitCommaExpression(Comma expression) {
       Expression[] expressions = expression.expressions.toArray(new Expression[0]);
       return parenthesize("comma", expressions);
     }
 
     @Override
-    public String visitTernaryExpression(Ternary expression) {
+    public Void visitTernaryExpression(Ternary expression) {
       return parenthesize("ternary", expression.condition, expression.left, expression.right);
     }
 
-    private String parenthesize(String name, Expression... expressions) {
-      StringBuilder builder = new StringBuilder();
+    @Override
+    public Void visitInvalidExpression(Invalid expression) {
+      builder.append("<error>");
+      return null;
+    }
 
+    @Override
+    public Void visitLogicalExpression(Logical expression) {
+      return parenthesize(expression.operator.lexeme, expression.left, expression.right);
+    }
+
+    private Void parenthesize(String name, Expression... expressions) {
       builder.append("(").append(name);
-      for (Expression expression : expressions) {
-        builder.append(" ");
-        builder.append(expression.accept(this));
+
+      pending.push(")");
+      for (int i = expressions.length - 1; i >= 0; i--) {
+        pending.push(expressions[i]);
+        pending.push(" ");
       }
 
-      builder.append(")");
+      return null;
+    }
+
+  }
+
+  // Same output for a flattened tree. The stack holds node indices, each
+  // printed after a space, and CLOSE for the parenthesis after the last
+  // child of a node.
+  static class ArenaPrinter implements ExpressionArena.Visitor<Void> {
+    private static final int CLOSE = -1;
+
+    private ExpressionArena arena;
+    private StringBuilder builder;
+    private int[] pending = new int[16];
+    private int count = 0;
+
+    String print(ExpressionArena arena) {
+      this.arena = arena;
+      builder = new StringBuilder();
+      arena.accept(arena.root(), this);
+      while (count > 0) {
+        int next = pending[--count];
+        if (next == CLOSE) {
+          builder.append(")");
+        } else {
+          builder.append(" ");
+          arena.accept(next, this);
+        }
+      }
 
       return builder.toString();
     }
 
+    @Override
+    public Void visitBinary(int node) {
+      return parenthesize(arena.binaryOperator(node).lexeme, arena.binaryLeft(node), arena.binaryRight(node));
+    }
+
+    @Override
+    public Void visitGrouping(int node) {
+      return parenthesize("group", arena.groupingExpression(node));
+    }
+
+    @Override
+    public Void visitLiteral(int node) {
+      Object value = arena.literalValue(node);
+      builder.append(value == null ? "nill" : value.toString());
+      return null;
+    }
+
+    @Override
+    public Void visitUnary(int node) {
+      return parenthesize(arena.unaryOperator(node).lexeme, arena.unaryRight(node));
+    }
+
+    @Override
+    public Void visitComma(int node) {
+      int[] expressions = new int[arena.commaExpressionsSize(node)];
+      for (int i = 0; i < expressions.length; i++)
+        expressions[i] = arena.commaExpressions(node, i);
+      return parenthesize("comma", expressions);
+    }
+
+    @Override
+    public Void visitTernary(int node) {
+      return parenthesize("ternary", arena.ternaryCondition(node), arena.ternaryLeft(node), arena.ternaryRight(node));
+    }
+
+    @Override
+    public Void visitInvalid(int node) {
+      builder.append("<error>");
+      return null;
+    }
+
+    @Override
+    public Void visitLogical(int node) {
+      return parenthesize(arena.logicalOperator(node).lexeme, arena.logicalLeft(node), arena.logicalRight(node));
+    }
+
+    private Void parenthesize(String name, int... nodes) {
+      builder.append("(").append(name);
+
+      push(CLOSE);
+      for (int i = nodes.length - 1; i >= 0; i--)
+        push(nodes[i]);
+
+      return null;
+    }
+
+    private void push(int item) {
+      if (count == pending.length)
+        pending = Arrays.copyOf(pending, count * 2);
+      pending[count++] = item;
+    }
+
   }
 
   public static void main(String[] args) {
@@ -64,7 +190,7 @@ public class PrintAst {
         new Unary(new Token(TokenType.MINUS, "-", null, 0), new Literal(420)),
         new Token(TokenType.STAR, "*", null, 0), new Literal(69));
 
-    String result = exp.accept(printer);
+    String result = printer.print(exp);
     System.out.println(result);
   }
 }
@@ -0,0 +1,365 @@
+package jlox;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+
+import jlox.Expression.*;
+
+import static jlox.Expression.*;
+import static jlox.Interpreter.binary;
+import static jlox.Interpreter.isThruthy;
+import static jlox.Interpreter.shortCircuits;
+import static jlox.Interpreter.unary;
+import static jlox.Purity.isPure;
+import static jlox.TreeHeight.childCount;
+import static jlox.TreeHeight.heightOf;
+
+// Tree walker that times every node it evaluates, to find the subtrees a
+// slow script spends its time in. Times are kept per path from the root, a
+// calling context tree: an Entry is one node reached through one chain of
+// parents, with its evaluations, total time and self time, the part not
+// spent in its children. Evaluations of the same tree add up.
+//
+// Evaluation is Interpreter's: its operator semantics, explicit stacks as
+// in evaluateIteratively so trees of any height work, and pure comma
+// elements skipped as in the tree walker. Typed paths and JitCompiler are
+// left out, so times are those of the boxed walk, and every node pays for
+// two clock reads on top.
+public class Profiler {
+  // Deeper frames are folded into one in collapsed stacks, flame graphs of
+  // taller trees are unreadable anyway
+  static final int MAX_STACK_DEPTH = 256;
+
+  private final Map<Expression, Entry> roots = new IdentityHashMap<>();
+  // In creation order, so every parent comes before its children
+  private final List<Entry> entries = new ArrayList<>();
+
+  private static class Entry {
+    final Entry parent;
+    final Expression expression;
+    final int index;
+    final int depth;
+    // Line of the node's own token, 0 for nodes without one
+    final int line;
+    Entry[] children;
+    long calls = 0;
+    long total = 0;
+    long self = 0;
+
+    Entry(Entry parent, Expression expression, int index) {
+      this.parent = parent;
+      this.expression = expression;
+      this.index = index;
+      this.depth = parent == null ? 0 : parent.depth + 1;
+      this.line = line(expression);
+    }
+  }
+
+  // An evaluation in progress
+  private static class Frame {
+    final Entry entry;
+    final long started;
+    // Time of the children evaluated so far
+    long children = 0;
+    int done = 0;
+
+    Frame(Entry entry) {
+      this.entry = entry;
+      entry.calls++;
+      this.started = System.nanoTime();
+    }
+  }
+
+  public Object interpret(Expression expression) {
+    Entry root = roots.get(expression);
+    if (root == null) {
+      root = entry(null, expression);
+      roots.put(expression, root);
+    }
+
+    // Purity recurses, like the tree walker only shallow trees skip elements
+    boolean skipPure = heightOf(expression) <= Interpreter.RECURSION_LIMIT;
+
+    ArrayDeque<Frame> frames = new ArrayDeque<>();
+    // ArrayDeque doesn't take the nulls nil evaluates to
+    List<Object> values = new ArrayList<>();
+    frames.push(new Frame(root));
+
+    try {
+      while (!frames.isEmpty()) {
+        Frame frame = frames.peek();
+        Expression node = frame.entry.expression;
+        int done = frame.done++;
+
+        switch (node.kind) {
+          case LITERAL:
+            values.add(((Literal) node).value);
+            finish(frames);
+            break;
+          case BINARY: {
+            Binary binary = (Binary) node;
+            if (done < 2) {
+              push(frames, frame, done, done == 0 ? binary.left : binary.right);
+            } else {
+              Object right = values.remove(values.size() - 1);
+              Object left = values.remove(values.size() - 1);
+              values.add(binary(left, right, binary.operator));
+              finish(frames);
+            }
+            break;
+          }
+          case UNARY: {
+            Unary unary = (Unary) node;
+            if (done == 0) {
+              push(frames, frame, 0, unary.right);
+            } else {
+              values.add(unary(values.remove(values.size() - 1), unary.operator));
+              finish(frames);
+            }
+            break;
+          }
+          case TERNARY: {
+            Ternary ternary = (Ternary) node;
+            if (done == 0) {
+              push(frames, frame, 0, ternary.condition);
+            } else if (done == 1) {
+              boolean condition = isThruthy(values.remove(values.size() - 1));
+              push(frames, frame, condition ? 1 : 2, condition ? ternary.left : ternary.right);
+            } else {
+              finish(frames);
+            }
+            break;
+          }
+          case GROUPING:
+            if (done == 0)
+              push(frames, frame, 0, ((Grouping) node).expression);
+            else
+              finish(frames);
+            break;
+          case LOGICAL: {
+            Logical logical = (Logical) node;
+            if (done == 0) {
+              push(frames, frame, 0, logical.left);
+            } else if (done == 1 && !shortCircuits(logical.operator.type, isThruthy(values.get(values.size() - 1)))) {
+              values.remove(values.size() - 1);
+              push(frames, frame, 1, logical.right);
+            } else {
+              finish(frames);
+            }
+            break;
+          }
+          case COMMA: {
+            // done is one past the element evaluated last, the value of the
+            // last one is the result
+            List<Expression> expressions = ((Comma) node).expressions;
+            int last = expressions.size() - 1;
+            if (done > last) {
+              finish(frames);
+              break;
+            }
+
+            if (done > 0)
+              values.remove(values.size() - 1);
+            int next = done;
+            while (skipPure && next < last && isPure(expressions.get(next)))
+              next++;
+            frame.done = next + 1;
+            push(frames, frame, next, expressions.get(next));
+            break;
+          }
+          default:
+            throw new RuntimeError(((Invalid) node).token, "Invalid expression.");
+        }
+      }
+    } catch (RuntimeError error) {
+      // Evaluations cut short still count
+      while (!frames.isEmpty())
+        finish(frames);
+      throw error;
+    }
+
+    return Rope.flatten(values.get(0));
+  }
+
+  private void push(ArrayDeque<Frame> frames, Frame parent, int index, Expression child) {
+    Entry entry = parent.entry;
+    if (entry.children == null)
+      entry.children = new Entry[childCount(entry.expression)];
+
+    Entry childEntry = entry.children[index];
+    if (childEntry == null) {
+      childEntry = entry(entry, child);
+      entry.children[index] = childEntry;
+    }
+
+    frames.push(new Frame(childEntry));
+  }
+
+  private static void finish(ArrayDeque<Frame> frames) {
+    Frame frame = frames.pop();
+    long elapsed = System.nanoTime() - frame.started;
+    frame.entry.total += elapsed;
+    frame.entry.self += elapsed - frame.children;
+
+    Frame parent = frames.peek();
+    if (parent != null)
+      parent.children += elapsed;
+  }
+
+  private Entry entry(Entry parent, Expression expression) {
+    Entry entry = new Entry(parent, expression, entries.size());
+    entries.add(entry);
+    return entry;
+  }
+
+  // Collapsed stacks as read by flamegraph.pl and most flame graph tools:
+  // one line per path, frames from the root separated by semicolons, then
+  // the self time of the path in nanoseconds
+  public void writeCollapsed(Path path) throws IOException {
+    int[] lines = lines();
+    try (BufferedWriter out = Files.newBufferedWriter(path)) {
+      StringBuilder stack = new StringBuilder();
+      // Length of stack up to and including each depth
+      int[] lengths = new int[MAX_STACK_DEPTH];
+      ArrayDeque<Entry> pending = new ArrayDeque<>(roots.values());
+      while (!pending.isEmpty()) {
+        Entry entry = pending.pop();
+        stack.setLength(entry.depth == 0 ? 0 : lengths[entry.depth - 1]);
+        if (entry.depth > 0)
+          stack.append(';');
+        stack.append(name(entry, lines));
+        lengths[entry.depth] = stack.length();
+
+        if (entry.self > 0)
+          out.append(stack).append(' ').append(Long.toString(entry.self)).append('\n');
+
+        if (entry.children == null)
+          continue;
+
+        if (entry.depth == MAX_STACK_DEPTH - 1) {
+          // The self times below add up to what the children took
+          long below = entry.total - entry.self;
+          if (below > 0)
+            out.append(stack).append(";... ").append(Long.toString(below)).append('\n');
+          continue;
+        }
+
+        for (int i = entry.children.length - 1; i >= 0; i--) {
+          if (entry.children[i] != null)
+            pending.push(entry.children[i]);
+        }
+      }
+    }
+  }
+
+  // The top nodes by self time. The total column is the time of the whole
+  // subtree, high for a node whose children are the hot ones.
+  public String report(int top) {
+    int[] lines = lines();
+    long all = 0;
+    for (Entry root : roots.values())
+      all += root.total;
+
+    PriorityQueue<Entry> hottest = new PriorityQueue<>(Comparator.comparingLong((Entry entry) -> entry.self));
+    for (Entry entry : entries) {
+      hottest.add(entry);
+      if (hottest.size() > top)
+        hottest.poll();
+    }
+
+    List<Entry> sorted = new ArrayList<>(hottest);
+    sorted.sort(Comparator.comparingLong((Entry entry) -> entry.self).reversed());
+
+    StringBuilder report = new StringBuilder();
+    report.append(String.format("%7s %12s %12s %10s  %s%n", "self", "self ms", "total ms", "calls", "node"));
+    for (Entry entry : sorted) {
+      report.append(String.format("%6.1f%% %12.3f %12.3f %10d  %s%n", all == 0 ? 0.0 : 100.0 * entry.self / all,
+          entry.self / 1e6, entry.total / 1e6, entry.calls, name(entry, lines)));
+    }
+
+    return report.toString();
+  }
+
+  // Lines for every entry. A node without a token gets the line of its
+  // first evaluated child that has one, failing that the line of its
+  // parent, e.g. for literals.
+  private int[] lines() {
+    int[] lines = new int[entries.size()];
+    for (int i = 0; i < lines.length; i++)
+      lines[i] = entries.get(i).line;
+
+    // Children come after their parent, so going backwards each parent sees
+    // the lines of all its children before its own is used, the first
+    // child's last
+    for (int i = lines.length - 1; i >= 0; i--) {
+      Entry parent = entries.get(i).parent;
+      if (parent != null && parent.line == 0 && lines[i] != 0)
+        lines[parent.index] = lines[i];
+    }
+
+    for (int i = 0; i < lines.length; i++) {
+      Entry parent = entries.get(i).parent;
+      if (lines[i] == 0 && parent != null)
+        lines[i] = lines[parent.index];
+    }
+
+    return lines;
+  }
+
+  private static String name(Entry entry, int[] lines) {
+    Expression expression = entry.expression;
+    String name;
+    switch (expression.kind) {
+      case BINARY:
+        name = "Binary " + ((Binary) expression).operator.lexeme;
+        break;
+      case LOGICAL:
+        name = "Logical " + ((Logical) expression).operator.lexeme;
+        break;
+      case UNARY:
+        name = "Unary " + ((Unary) expression).operator.lexeme;
+        break;
+      case TERNARY:
+        name = "Ternary";
+        break;
+      case GROUPING:
+        name = "Grouping";
+        break;
+      case COMMA:
+        name = "Comma";
+        break;
+      case LITERAL:
+        name = "Literal";
+        break;
+      default:
+        name = "Invalid";
+    }
+
+    int line = lines[entry.index];
+    return line == 0 ? name : name + " (line " + line + ")";
+  }
+
+  private static int line(Expression expression) {
+    switch (expression.kind) {
+      case BINARY:
+        return ((Binary) expression).operator.line;
+      case LOGICAL:
+        return ((Logical) expression).operator.line;
+      case UNARY:
+        return ((Unary) expression).operator.line;
+      case INVALID:
+        return ((Invalid) expression).token.line;
+      default:
+        return 0;
+    }
+  }
+}
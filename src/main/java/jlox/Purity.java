@@ -0,0 +1,102 @@
+package jlox;
+
+import jlox.Expression.*;
+import jlox.TypeInference.Type;
+
+import static jlox.TypeInference.typeOf;
+
+// Works out which subtrees can be evaluated without a RuntimeError. Nothing
+// else in the language has side effects, so the value of a pure subtree is
+// all it produces and one whose value is thrown away, like every comma
+// element but the last, doesn't have to run. Like types, purity only
+// depends on the subtree and is stored on the node. The walk recurses, so
+// it is only used where trees are known to be shallow.
+class Purity extends Dispatcher<Boolean> {
+  private static final byte PURE = 1;
+  private static final byte IMPURE = 2;
+
+  private static final Purity INSTANCE = new Purity();
+
+  private Purity() {
+  }
+
+  static boolean isPure(Expression expression) {
+    byte purity = expression.purity;
+    if (purity == 0) {
+      // Racing threads compute the same value, so no locking is needed
+      purity = INSTANCE.dispatch(expression) ? PURE : IMPURE;
+      expression.purity = purity;
+    }
+
+    return purity == PURE;
+  }
+
+  // Subtree that can't fail and always produces a number
+  private static boolean isNumber(Expression expression) {
+    return isPure(expression) && typeOf(expression) == Type.NUMBER;
+  }
+
+  @Override
+  public Boolean visitBinaryExpression(Binary expression) {
+    switch (expression.operator.type) {
+      case EQUAL_EQUAL:
+      case BANG_EQUAL:
+      case PLUS:
+        // Operands of any type, + gives nil for ones it can't add
+        return isPure(expression.left) && isPure(expression.right);
+      case MINUS:
+      case SLASH:
+      case STAR:
+      case GREATER:
+      case GREATER_EQUAL:
+      case LESS:
+      case LESS_EQUAL:
+        return isNumber(expression.left) && isNumber(expression.right);
+      default:
+        return isPure(expression.left) && isPure(expression.right);
+    }
+  }
+
+  @Override
+  public Boolean visitGroupingExpression(Grouping expression) {
+    return isPure(expression.expression);
+  }
+
+  @Override
+  public Boolean visitLiteralExpression(Literal expression) {
+    return true;
+  }
+
+  @Override
+  public Boolean visitUnaryExpression(Unary expression) {
+    if (expression.operator.type == TokenType.MINUS)
+      return isNumber(expression.right);
+
+    return isPure(expression.right);
+  }
+
+  @Override
+  public Boolean visitCommaExpression(Comma expression) {
+    for (Expression element : expression.expressions) {
+      if (!isPure(element))
+        return false;
+    }
+
+    return true;
+  }
+
+  @Override
+  public Boolean visitTernaryExpression(Ternary expression) {
+    return isPure(expression.condition) && isPure(expression.left) && isPure(expression.right);
+  }
+
+  @Override
+  public Boolean visitInvalidExpression(Invalid expression) {
+    return false;
+  }
+
+  @Override
+  public Boolean visitLogicalExpression(Logical expression) {
+    return isPure(expression.left) && isPure(expression.right);
+  }
+}
@@ -1,57 +1,87 @@
 package jlox;
 
+import java.util.ArrayDeque;
+
 import jlox.Expression.Binary;
 import jlox.Expression.Comma;
 import jlox.Expression.Grouping;
+import jlox.Expression.Invalid;
 import jlox.Expression.Literal;
+import jlox.Expression.Logical;
 import jlox.Expression.Ternary;
 import jlox.Expression.Unary;
 
 public class RPNAst {
 
-  private static class AstPrinter implements Expression.Visitor<String> {
+  // Iterative like PrintAst.AstPrinter: operands go on the stack first and
+  // their operator after them
+  private static class AstPrinter extends Expression.Dispatcher<Void> {
+    private final ArrayDeque<Object> pending = new ArrayDeque<>();
+    private StringBuilder builder;
+
+    String print(Expression expression) {
+      builder = new StringBuilder();
+      pending.push(expression);
+      while (!pending.isEmpty()) {
+        Object next = pending.pop();
+        if (next instanceof String)
+          builder.append((String) next);
+        else
+          dispatch((Expression) next);
+      }
+
+      return builder.toString();
+    }
 
     @Override
-    public String visitBinaryExpression(Binary expression) {
-      return print(expression.operator.lexeme, expression.left, expression.right);
+    public Void visitBinaryExpression(Binary expression) {
+      return postfix(expression.operator.lexeme, expression.left, expression.right);
     }
 
     @Override
-    public String visitGroupingExpression(Grouping expression) {
-      return print("group", expression.expression);
+    public Void visitGroupingExpression(Grouping expression) {
+      return postfix("group", expression.expression);
     }
 
     @Override
-    public String visitLiteralExpression(Literal expression) {
-      return expression.value == null ? "nill" : expression.value.toString();
+    public Void visitLiteralExpression(Literal expression) {
+      builder.append(expression.value == null ? "nill" : expression.value.toString());
+      return null;
     }
 
     @Override
-    public String visitUnaryExpression(Unary expression) {
-      return print(expression.operator.lexeme, expression.right);
+    public Void visitUnaryExpression(Unary expression) {
+      return postfix(expression.operator.lexeme, expression.right);
     }
 
     @Override
-    public String visitCommaExpression(Comma expression) {
+    public Void visitCommaExpression(Comma expression) {
       Expression[] expressions = expression.expressions.toArray(new Expression[0]);
-      return print("comma", expressions);
+      return postfix("comma", expressions);
     }
 
     @Override
-    public String visitTernaryExpression(Ternary expression) {
-      return print("ternary", expression.left, expression.right);
+    public Void visitTernaryExpression(Ternary expression) {
+      return postfix("ternary", expression.left, expression.right);
     }
 
-    private String print(String literal, Expression... expressions) {
-      StringBuilder builder = new StringBuilder();
+    @Override
+    public Void visitInvalidExpression(Invalid expression) {
+      builder.append("<error> ");
+      return null;
+    }
 
-      for (Expression expression : expressions) {
-        builder.append(expression.accept(this));
-      }
-      builder.append(literal);
-      builder.append(" ");
+    @Override
+    public Void visitLogicalExpression(Logical expression) {
+      return postfix(expression.operator.lexeme, expression.left, expression.right);
+    }
 
-      return builder.toString();
+    private Void postfix(String literal, Expression... expressions) {
+      pending.push(literal + " ");
+      for (int i = expressions.length - 1; i >= 0; i--)
+        pending.push(expressions[i]);
+
+      return null;
     }
 
   }
@@ -63,7 +93,7 @@ public class RPNAst {
         new Token(TokenType.STAR, "*", printer, 0),
         new Binary(new Literal(1), new Token(TokenType.MINUS, "-", null, 0), new Literal(3)));
 
-    String result = exp.accept(printer);
+    String result = printer.print(exp);
     System.out.println(result);
   }
 }
@@ -0,0 +1,102 @@
+package jlox;
+
+import java.util.ArrayDeque;
+
+// A Lox string made by +, kept as its two halves instead of a copy. A chain
+// a + b + c + ... then copies every character once, when the result is
+// first looked at, rather than once per +. Short results are still copied
+// into a String right away, a rope only pays off once copying costs more
+// than the node.
+//
+// Ropes live inside one evaluation only: the interpreters, VM and compiled
+// code flatten what they return, so callers and literals only ever see
+// Strings. That also keeps the unsynchronized flattening safe.
+final class Rope {
+  // Results shorter than this are plain Strings
+  static final int MIN_LENGTH = 128;
+
+  // Strings or Ropes, dropped once flattened
+  private Object left;
+  private Object right;
+  private final int length;
+  private String flat;
+
+  private Rope(Object left, Object right, int length) {
+    this.left = left;
+    this.right = right;
+    this.length = length;
+  }
+
+  static boolean isString(Object value) {
+    return value instanceof String || value instanceof Rope;
+  }
+
+  // left and right are Strings or Ropes
+  static Object concat(Object left, Object right) {
+    int leftLength = length(left);
+    int rightLength = length(right);
+    if (leftLength == 0)
+      return right;
+    if (rightLength == 0)
+      return left;
+
+    int length = leftLength + rightLength;
+    if (length < 0)
+      // What String concatenation throws too
+      throw new OutOfMemoryError("Overflow: String length out of range");
+    if (length < MIN_LENGTH)
+      return left.toString().concat(right.toString());
+
+    return new Rope(left, right, length);
+  }
+
+  // For values leaving an evaluation
+  static Object flatten(Object value) {
+    return value instanceof Rope ? value.toString() : value;
+  }
+
+  static int length(Object string) {
+    return string instanceof Rope ? ((Rope) string).length : ((String) string).length();
+  }
+
+  // Either side may be a String or a Rope, lengths settle most unequal pairs
+  // without flattening anything
+  static boolean contentEquals(Object left, Object right) {
+    if (length(left) != length(right))
+      return false;
+
+    return left.toString().equals(right.toString());
+  }
+
+  @Override
+  public String toString() {
+    if (flat != null)
+      return flat;
+
+    // Left to right with an explicit stack, a long chain is as deep as it
+    // has pieces
+    StringBuilder builder = new StringBuilder(length);
+    ArrayDeque<Object> pending = new ArrayDeque<>();
+    pending.push(this);
+    while (!pending.isEmpty()) {
+      Object next = pending.pop();
+      if (next instanceof String) {
+        builder.append((String) next);
+        continue;
+      }
+
+      Rope rope = (Rope) next;
+      if (rope.flat != null) {
+        builder.append(rope.flat);
+      } else {
+        pending.push(rope.right);
+        pending.push(rope.left);
+      }
+    }
+
+    flat = builder.toString();
+    left = null;
+    right = null;
+    return flat;
+  }
+}
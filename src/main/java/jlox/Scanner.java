@@ -1,54 +1,118 @@
 package jlox;
 
-import java.util.ArrayList;
-import java.util.HashMap;
 import java.util.List;
-import java.util.Map;
 
 public class Scanner {
-  private final String source;
-  private final List<Token> tokens = new ArrayList<>();
+  private final CharSequence source;
+  private final int length;
+  // The source again if it is one of the types find() can search in bulk
+  private final String text;
+  private final MappedSource mapped;
+  private final TokenStream tokens;
+  private final Diagnostics diagnostics;
 
   private int start = 0;
   private int current = 0;
   private int line = 1;
 
-  private static final Map<String, TokenType> keywords;
-
-  static {
-    keywords = new HashMap<>();
-    keywords.put("and", TokenType.AND);
-    keywords.put("class", TokenType.CLASS);
-    keywords.put("else", TokenType.ELSE);
-    keywords.put("false", TokenType.FALSE);
-    keywords.put("for", TokenType.FOR);
-    keywords.put("fun", TokenType.FUN);
-    keywords.put("if", TokenType.IF);
-    keywords.put("nil", TokenType.NIL);
-    keywords.put("or", TokenType.OR);
-    keywords.put("print", TokenType.PRINT);
-    keywords.put("return", TokenType.RETURN);
-    keywords.put("super", TokenType.SUPER);
-    keywords.put("this", TokenType.THIS);
-    keywords.put("true", TokenType.TRUE);
-    keywords.put("var", TokenType.VAR);
-    keywords.put("while", TokenType.WHILE);
+  // Time spent in scanNext while streaming, only kept once timeScanning()
+  // was called so untimed runs don't read the clock per token
+  private boolean timed = false;
+  private long scanTime = 0;
+
+  public Scanner(CharSequence source) {
+    this(source, new Diagnostics());
   }
 
-  public Scanner(String source) {
+  public Scanner(CharSequence source, Diagnostics diagnostics) {
     this.source = source;
+    this.length = source.length();
+    this.text = source instanceof String ? (String) source : null;
+    this.mapped = source instanceof MappedSource ? (MappedSource) source : null;
+    this.tokens = new TokenStream(source);
+    this.diagnostics = diagnostics;
+    this.current = byteOrderMark();
   }
 
   public List<Token> scanTokens() {
+    return scanTokenStream().toList();
+  }
+
+  // Scan into the packed representation without allocating per token
+  public TokenStream scanTokenStream() {
     while (!isAtEnd()) {
       start = current;
       scanToken();
     }
 
-    tokens.add(new Token(TokenType.EOF, "", null, line));
+    tokens.add(TokenType.EOF, current, 0, line);
+    return tokens;
+  }
+
+  // Streaming mode: tokens are scanned as the stream is read, so parsing
+  // starts before the whole source has been looked at
+  public TokenStream streamTokens() {
+    tokens.produceFrom(this);
+    return tokens;
+  }
+
+  // Scan the tokens that start in [from, limit), counting lines from 1 at
+  // from and without adding EOF. Used by ParallelScanner, which checks
+  // position() afterwards: past limit means a token, string or comment
+  // crossed it.
+  TokenStream scanRange(int from, int limit) {
+    current = from == 0 ? byteOrderMark() : from;
+    while (!isAtEnd() && current < limit) {
+      start = current;
+      scanToken();
+    }
+
     return tokens;
   }
 
+  int position() {
+    return current;
+  }
+
+  int line() {
+    return line;
+  }
+
+  void timeScanning() {
+    timed = true;
+  }
+
+  // Nanoseconds spent lexing for the stream so far
+  long scanTime() {
+    return scanTime;
+  }
+
+  void scanNext() {
+    if (!timed) {
+      scanNextToken();
+      return;
+    }
+
+    long started = System.nanoTime();
+    scanNextToken();
+    scanTime += System.nanoTime() - started;
+  }
+
+  // Scan until the stream has grown by at least one token, adding EOF once
+  // the source is exhausted
+  private void scanNextToken() {
+    int size = tokens.size();
+    while (tokens.size() == size) {
+      if (isAtEnd()) {
+        tokens.add(TokenType.EOF, current, 0, line);
+        return;
+      }
+
+      start = current;
+      scanToken();
+    }
+  }
+
   private void scanToken() {
     char c = advance();
     switch (c) {
@@ -108,11 +172,13 @@ public class Scanner {
       case '/':
         if (match('/')) {
           // Comment goes to end of line
-          while (peek() != '\n' && !isAtEnd())
-            advance();
+          current = find('\n', '\n', '\n', current);
         } else if (match('*')) {
           int level = 1;
           while (level != 0) {
+            // Nothing but these three changes the state, skip the rest
+            current = find('\n', '*', '/', current);
+
             if (match('\n')) {
               line++;
               continue;
@@ -129,7 +195,7 @@ public class Scanner {
             }
 
             if (isAtEnd()) {
-              Lox.error(line, "Unterminated block comment");
+              error("Unterminated block comment");
               break;
             }
 
@@ -160,21 +226,110 @@ public class Scanner {
         } else if (isAlpha(c)) {
           identifier();
         } else {
-          Lox.error(line, "Unexpected character");
+          skipRestOfCharacter(c);
+          error("Unexpected character");
         }
         break;
     }
   }
 
+  // Length of a byte order mark at the start of source, some editors write
+  // one before the text
+  private int byteOrderMark() {
+    if (mapped != null)
+      return length >= 3 && source.charAt(0) == 0xef && source.charAt(1) == 0xbb && source.charAt(2) == 0xbf ? 3 : 0;
+
+    return length >= 1 && source.charAt(0) == '\ufeff' ? 1 : 0;
+  }
+
+  // Past the other chars of a character that takes several, so it gets one
+  // error: the continuation bytes of a MappedSource, a low surrogate
+  // otherwise
+  private void skipRestOfCharacter(char first) {
+    if (mapped != null) {
+      if (first < 0x80)
+        return;
+      while (!isAtEnd() && (source.charAt(current) & 0xc0) == 0x80)
+        current++;
+    } else if (Character.isHighSurrogate(first) && Character.isLowSurrogate(peek())) {
+      current++;
+    }
+  }
+
   private void identifier() {
     while (isAlphaNumeric(peek()))
       advance();
 
-    String identifier = source.substring(start, current);
-    TokenType type = keywords.get(identifier);
-    if (type == null)
-      type = TokenType.IDENTIFIER;
-    addToken(type);
+    addToken(keyword());
+  }
+
+  // Recognize keywords on the source range itself: the first one or two
+  // characters pick the only candidate, which is then compared in place
+  private TokenType keyword() {
+    switch (source.charAt(start)) {
+      case 'a':
+        return rest(1, "nd", TokenType.AND);
+      case 'c':
+        return rest(1, "lass", TokenType.CLASS);
+      case 'e':
+        return rest(1, "lse", TokenType.ELSE);
+      case 'f':
+        if (current - start > 1) {
+          switch (source.charAt(start + 1)) {
+            case 'a':
+              return rest(2, "lse", TokenType.FALSE);
+            case 'o':
+              return rest(2, "r", TokenType.FOR);
+            case 'u':
+              return rest(2, "n", TokenType.FUN);
+            default:
+          }
+        }
+        break;
+      case 'i':
+        return rest(1, "f", TokenType.IF);
+      case 'n':
+        return rest(1, "il", TokenType.NIL);
+      case 'o':
+        return rest(1, "r", TokenType.OR);
+      case 'p':
+        return rest(1, "rint", TokenType.PRINT);
+      case 'r':
+        return rest(1, "eturn", TokenType.RETURN);
+      case 's':
+        return rest(1, "uper", TokenType.SUPER);
+      case 't':
+        if (current - start > 1) {
+          switch (source.charAt(start + 1)) {
+            case 'h':
+              return rest(2, "is", TokenType.THIS);
+            case 'r':
+              return rest(2, "ue", TokenType.TRUE);
+            default:
+          }
+        }
+        break;
+      case 'v':
+        return rest(1, "ar", TokenType.VAR);
+      case 'w':
+        return rest(1, "hile", TokenType.WHILE);
+      default:
+    }
+
+    return TokenType.IDENTIFIER;
+  }
+
+  // type if the lexeme continues with rest after offset characters and ends there
+  private TokenType rest(int offset, String rest, TokenType type) {
+    if (current - start != offset + rest.length())
+      return TokenType.IDENTIFIER;
+
+    for (int i = 0; i < rest.length(); i++) {
+      if (source.charAt(start + offset + i) != rest.charAt(i))
+        return TokenType.IDENTIFIER;
+    }
+
+    return type;
   }
 
   private boolean isAlphaNumeric(char c) {
@@ -203,37 +358,35 @@ public class Scanner {
         advance();
     }
 
-    addToken(TokenType.NUMBER, Double.parseDouble(source.substring(start, current)));
+    // Value is decoded by TokenStream.literal on demand
+    addToken(TokenType.NUMBER);
   }
 
   private void string() {
-    while (peek() != '"' && !isAtEnd()) {
-      if (peek() == '\n')
-        line++;
-      advance();
+    for (;;) {
+      current = find('"', '\n', '"', current);
+      if (isAtEnd() || source.charAt(current) == '"')
+        break;
+
+      line++;
+      current++;
     }
 
     if (isAtEnd()) {
-      Lox.error(line, "Unterminated string");
+      error("Unterminated string");
       return;
     }
 
     // Advance the closing "
     advance();
 
-    // Trim the surronding quotes
-    String s = source.substring(start + 1, current - 1);
-    addToken(TokenType.STRING, s);
+    // Quotes are trimmed and the value interned by TokenStream.literal on
+    // demand
+    addToken(TokenType.STRING);
   }
 
-  // Helper methods for adding tokens
   private void addToken(TokenType type) {
-    addToken(type, null);
-  }
-
-  private void addToken(TokenType type, Object literal) {
-    String text = source.substring(start, current);
-    tokens.add(new Token(type, text, literal, line));
+    tokens.add(type, start, current - start, line);
   }
 
   // Get the next char from source and increment current pointer
@@ -248,7 +401,7 @@ public class Scanner {
 
   // Peek at the next char from source
   private char peekNext() {
-    return (current + 1) >= source.length() ? '\0' : source.charAt(current + 1);
+    return (current + 1) >= length ? '\0' : source.charAt(current + 1);
   }
 
   // Match and increment current pointer
@@ -260,8 +413,32 @@ public class Scanner {
     return true;
   }
 
+  private void error(String message) {
+    diagnostics.error(line, message);
+  }
+
+  // Index of the first a, b or c at or after from, or the source length
+  private int find(char a, char b, char c, int from) {
+    if (mapped != null)
+      return mapped.indexOfAny(a, b, c, from);
+
+    // String.indexOf is an intrinsic that compares many chars per instruction
+    if (text != null && a == b && b == c) {
+      int index = text.indexOf(a, from);
+      return index < 0 ? length : index;
+    }
+
+    for (int i = from; i < length; i++) {
+      char x = source.charAt(i);
+      if (x == a || x == b || x == c)
+        return i;
+    }
+
+    return length;
+  }
+
   private boolean isAtEnd() {
-    return current >= source.length();
+    return current >= length;
   }
 
 }
@@ -0,0 +1,196 @@
+package jlox;
+
+import java.io.IOException;
+import java.net.ConnectException;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.channels.Channels;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import jlox.PrintAst.AstPrinter;
+
+import static jlox.TreeHeight.heightOf;
+
+// Keeps a warmed up Engine resident and runs sources sent over a Unix domain
+// socket, so callers skip JVM startup, a cold JIT and parsing a source that
+// was seen before. The protocol is plain text, shell tools can speak it too:
+//
+//   printf 'eval\n1 + 2' | nc -UN /tmp/jlox.sock
+//
+// A request is a mode line (print, eval or vm) followed by the source up to
+// the end of the client's output. The reply is the exit status Lox would
+// use on a line of its own, then the result or the errors. A "metrics"
+// request gets the Metrics report instead, if the server has them on.
+public class Server {
+  static final int OK = 0;
+  static final int USAGE = 64;
+  static final int STATIC_ERROR = 65;
+  static final int RUNTIME_ERROR = 70;
+  static final int IO_ERROR = 74;
+
+  // Larger requests are refused rather than read into memory
+  private static final int MAX_REQUEST = 64 << 20;
+  // A client that hasn't finished sending by then is dropped, so it can't
+  // hold on to a thread
+  private static final long READ_TIMEOUT_SECONDS = 30;
+
+  private final Engine engine;
+  // VM reuses its stacks between runs and is not thread safe. Its stacks
+  // grow to the highest tree it ran and stay that size, so vm requests are
+  // limited to trees the recursive paths take too.
+  private final ThreadLocal<VM> vm = ThreadLocal.withInitial(VM::new);
+  // Closes clients that are too slow to send their request
+  private final ScheduledExecutorService timeouts = Executors.newSingleThreadScheduledExecutor(daemon("jlox-timeout"));
+
+  private Server(boolean optimize, int maxDepth) {
+    this.engine = new Engine(Engine.DEFAULT_CACHE_SIZE, optimize, maxDepth);
+  }
+
+  // Serves until the process is stopped. Every client gets a thread of its
+  // own, idle threads are kept around for the next ones. Only returns, with
+  // the exit status, if another server already has the socket.
+  static int serve(Path socket, boolean optimize, int maxDepth) throws IOException {
+    UnixDomainSocketAddress address = UnixDomainSocketAddress.of(socket);
+    if (Files.exists(socket)) {
+      // Left behind by a server that died, unless one still answers
+      try {
+        SocketChannel.open(address).close();
+        System.err.println("A server is already listening on " + socket + ".");
+        return IO_ERROR;
+      } catch (ConnectException e) {
+        Files.delete(socket);
+      }
+    }
+
+    Server server = new Server(optimize, maxDepth);
+    ExecutorService workers = Executors.newCachedThreadPool(daemon("jlox-server"));
+
+    try (ServerSocketChannel listener = ServerSocketChannel.open(StandardProtocolFamily.UNIX)) {
+      listener.bind(address);
+      Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+        try {
+          Files.deleteIfExists(socket);
+        } catch (IOException e) {
+          // Nothing left to report it to
+        }
+      }));
+
+      for (;;) {
+        SocketChannel client = listener.accept();
+        workers.execute(() -> server.handle(client));
+      }
+    }
+  }
+
+  private static ThreadFactory daemon(String name) {
+    return task -> {
+      Thread thread = new Thread(task, name);
+      thread.setDaemon(true);
+      return thread;
+    };
+  }
+
+  private void handle(SocketChannel client) {
+    try (client) {
+      // Channels of Unix domain sockets have no read timeout, closing one
+      // ends a blocked read with an IOException instead
+      ScheduledFuture<?> timeout = timeouts.schedule(() -> close(client), READ_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+      byte[] request;
+      try {
+        request = Channels.newInputStream(client).readNBytes(MAX_REQUEST + 1);
+      } finally {
+        timeout.cancel(false);
+      }
+
+      byte[] reply = reply(request).getBytes(StandardCharsets.UTF_8);
+      Channels.newOutputStream(client).write(reply);
+    } catch (IOException e) {
+      // The client went away or was too slow, there is no one to answer
+    }
+  }
+
+  private static void close(SocketChannel client) {
+    try {
+      client.close();
+    } catch (IOException e) {
+      // Closed anyway
+    }
+  }
+
+  // Bugs and trees too deep for the stack are reported to the client too,
+  // rather than ending the thread without a reply
+  private String reply(byte[] request) {
+    try {
+      return answer(request);
+    } catch (RuntimeException | StackOverflowError e) {
+      return RUNTIME_ERROR + "\nInternal error: " + e + "\n";
+    }
+  }
+
+  private String answer(byte[] request) {
+    if (request.length > MAX_REQUEST)
+      return USAGE + "\nRequest larger than " + MAX_REQUEST + " bytes.\n";
+
+    int newline = 0;
+    while (newline < request.length && request[newline] != '\n')
+      newline++;
+    if (newline == request.length)
+      return USAGE + "\nRequest has no mode line.\n";
+
+    String mode = new String(request, 0, newline, StandardCharsets.UTF_8);
+    if (mode.equals("metrics"))
+      return Metrics.enabled() ? OK + "\n" + Metrics.report() : USAGE + "\nServer runs without --metrics.\n";
+    if (!mode.equals("print") && !mode.equals("eval") && !mode.equals("vm"))
+      return USAGE + "\nUnknown mode '" + mode + "'.\n";
+
+    String source = new String(request, newline + 1, request.length - newline - 1, StandardCharsets.UTF_8);
+    Diagnostics diagnostics = new Diagnostics();
+    Expression expression = engine.parse(source, diagnostics);
+    if (expression == null) {
+      StringBuilder errors = new StringBuilder().append(STATIC_ERROR).append('\n');
+      for (Diagnostics.Diagnostic error : diagnostics.errors())
+        errors.append(error).append('\n');
+      return errors.toString();
+    }
+
+    if (mode.equals("vm") && heightOf(expression) > Interpreter.RECURSION_LIMIT)
+      return USAGE + "\nExpression too deep for vm mode, use eval.\n";
+
+    try {
+      String output;
+      switch (mode) {
+        case "eval":
+          Engine.Result result = engine.evaluate(expression);
+          if (result.runtimeError != null)
+            throw result.runtimeError;
+          output = Lox.stringify(result.value);
+          break;
+        case "vm":
+          Events.Evaluate evaluate = Metrics.beginEvaluate();
+          try {
+            output = Lox.stringify(vm.get().run(Compiler.compile(expression)));
+          } catch (RuntimeError error) {
+            Metrics.endEvaluate(evaluate, "vm", expression, null, true);
+            throw error;
+          }
+          Metrics.endEvaluate(evaluate, "vm", expression, null, false);
+          break;
+        default:
+          output = new AstPrinter().print(expression);
+      }
+      return OK + "\n" + output + "\n";
+    } catch (RuntimeError error) {
+      return RUNTIME_ERROR + "\n" + Lox.describe(error) + "\n";
+    }
+  }
+}
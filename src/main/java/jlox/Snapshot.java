@@ -0,0 +1,240 @@
+package jlox;
+
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.zip.CRC32C;
+
+// A parsed tree saved to disk, so a large script is only scanned and parsed
+// once. The file is an ExpressionArena as is: a header, the offsets and
+// operands, the node kinds and then the constant pool, every int little
+// endian. Loading maps the file and copies the arrays out in bulk when
+// they are first asked for, which costs little more than the page faults.
+//
+// Operands hold TokenType ordinals and node kinds, so the header records
+// a hash of both and a file written by a different build is rejected
+// instead of being misread. A checksum of the rest of the file and
+// ExpressionArena.check() catch damaged files before anything walks them.
+public class Snapshot {
+  // "JLXS" read as a little endian int
+  private static final int MAGIC = 0x53584c4a;
+  private static final int VERSION = 2;
+  private static final int HEADER_SIZE = 8 * Integer.BYTES;
+  private static final int CHECKSUM_OFFSET = 7 * Integer.BYTES;
+
+  private static final int TOKEN_LAYOUT = Arrays.toString(TokenType.values()).hashCode();
+
+  // Tags of the constant pool
+  private static final byte NIL = 0;
+  private static final byte FALSE = 1;
+  private static final byte TRUE = 2;
+  private static final byte NUMBER = 3;
+  private static final byte STRING = 4;
+
+  // The file was read but doesn't hold a snapshot this build can use, as
+  // opposed to one that couldn't be read at all
+  static class CorruptException extends IOException {
+    private static final long serialVersionUID = 1L;
+
+    CorruptException(String message) {
+      super(message);
+    }
+
+    CorruptException(String message, Throwable cause) {
+      super(message, cause);
+    }
+  }
+
+  private final Path path;
+  private final ByteBuffer buffer;
+  private ExpressionArena arena;
+  private Expression expression;
+
+  private Snapshot(Path path, ByteBuffer buffer) {
+    this.path = path;
+    this.buffer = buffer;
+  }
+
+  static void write(Expression expression, Path path) throws IOException {
+    write(ExpressionFlattener.flatten(expression), path);
+  }
+
+  // arena has to be trimmed, as the ones from ExpressionFlattener are
+  static void write(ExpressionArena arena, Path path) throws IOException {
+    byte[] kinds = arena.kinds();
+    int[] offsets = arena.offsets();
+    int[] operands = arena.operands();
+    Object[] constants = arena.constants();
+
+    // Strings are encoded first to know the size of the pool
+    byte[][] strings = new byte[constants.length][];
+    int poolSize = 0;
+    for (int i = 0; i < constants.length; i++) {
+      Object constant = constants[i];
+      if (constant instanceof String) {
+        strings[i] = ((String) constant).getBytes(StandardCharsets.UTF_8);
+        poolSize += 1 + Integer.BYTES + strings[i].length;
+      } else if (constant instanceof Double) {
+        poolSize += 1 + Double.BYTES;
+      } else if (constant == null || constant instanceof Boolean) {
+        poolSize += 1;
+      } else {
+        throw new IllegalArgumentException("Constant can't be saved: " + constant);
+      }
+    }
+
+    int size = HEADER_SIZE + (offsets.length + operands.length) * Integer.BYTES + kinds.length + poolSize;
+    ByteBuffer buffer = ByteBuffer.allocate(size).order(ByteOrder.LITTLE_ENDIAN);
+    buffer.putInt(MAGIC).putInt(VERSION).putInt(ExpressionArena.LAYOUT).putInt(TOKEN_LAYOUT);
+    buffer.putInt(kinds.length).putInt(operands.length).putInt(constants.length).putInt(0);
+    buffer.asIntBuffer().put(offsets).put(operands);
+    buffer.position(buffer.position() + (offsets.length + operands.length) * Integer.BYTES);
+    buffer.put(kinds);
+
+    for (int i = 0; i < constants.length; i++) {
+      Object constant = constants[i];
+      if (constant == null) {
+        buffer.put(NIL);
+      } else if (constant instanceof Boolean) {
+        buffer.put((boolean) constant ? TRUE : FALSE);
+      } else if (constant instanceof Double) {
+        buffer.put(NUMBER).putDouble((double) constant);
+      } else {
+        buffer.put(STRING).putInt(strings[i].length).put(strings[i]);
+      }
+    }
+
+    buffer.putInt(CHECKSUM_OFFSET, checksum(buffer, size));
+    buffer.flip();
+    try (FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+        StandardOpenOption.TRUNCATE_EXISTING)) {
+      while (buffer.hasRemaining())
+        channel.write(buffer);
+    }
+  }
+
+  // Whether path starts like a snapshot, anything else is taken for source
+  static boolean isSnapshot(Path path) throws IOException {
+    try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+      ByteBuffer magic = ByteBuffer.allocate(Integer.BYTES).order(ByteOrder.LITTLE_ENDIAN);
+      while (magic.hasRemaining() && channel.read(magic) >= 0)
+        ;
+      return !magic.hasRemaining() && magic.getInt(0) == MAGIC;
+    }
+  }
+
+  // Checks the header only, the rest is checked when it is first used
+  static Snapshot map(Path path) throws IOException {
+    try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+      long size = channel.size();
+      if (size > Integer.MAX_VALUE)
+        throw new IOException("File too large to map: " + path);
+
+      // The mapping stays valid after the channel is closed
+      ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, size).order(ByteOrder.LITTLE_ENDIAN);
+      if (size < HEADER_SIZE || buffer.getInt(0) != MAGIC)
+        throw new CorruptException("Not a snapshot: " + path);
+      if (buffer.getInt(4) != VERSION || buffer.getInt(8) != ExpressionArena.LAYOUT || buffer.getInt(12) != TOKEN_LAYOUT)
+        throw new CorruptException("Snapshot written by a different version, compile it again: " + path);
+
+      return new Snapshot(path, buffer);
+    }
+  }
+
+  synchronized ExpressionArena arena() throws IOException {
+    if (arena == null)
+      arena = read();
+
+    return arena;
+  }
+
+  // The arena inflated back into a tree, for code that only takes trees
+  synchronized Expression expression() throws IOException {
+    if (expression == null)
+      expression = ExpressionFlattener.inflate(arena());
+
+    return expression;
+  }
+
+  private ExpressionArena read() throws IOException {
+    ByteBuffer buffer = this.buffer.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+    if (checksum(buffer, buffer.limit()) != buffer.getInt(CHECKSUM_OFFSET))
+      throw new CorruptException("Corrupt snapshot: " + path + " (Checksum mismatch)");
+
+    try {
+      buffer.position(16);
+      int nodes = buffer.getInt();
+      int operandCount = buffer.getInt();
+      int constantCount = buffer.getInt();
+      // Every node takes an offset and a kind, every constant a tag
+      long needed = (long) nodes * (Integer.BYTES + 1) + (long) operandCount * Integer.BYTES + constantCount;
+      if (nodes < 0 || operandCount < 0 || constantCount < 0 || needed > buffer.limit() - HEADER_SIZE)
+        throw new CorruptException("Corrupt snapshot: " + path + " (Counts larger than the file)");
+      buffer.position(HEADER_SIZE);
+
+      int[] offsets = new int[nodes];
+      int[] operands = new int[operandCount];
+      buffer.asIntBuffer().get(offsets).get(operands);
+      buffer.position(buffer.position() + (nodes + operandCount) * Integer.BYTES);
+
+      byte[] kinds = new byte[nodes];
+      buffer.get(kinds);
+
+      Object[] constants = new Object[constantCount];
+      for (int i = 0; i < constantCount; i++)
+        constants[i] = constant(buffer);
+      if (buffer.hasRemaining())
+        throw new CorruptException("Corrupt snapshot: " + path + " (Data after the constants)");
+
+      ExpressionArena arena = new ExpressionArena(kinds, offsets, operands, constants);
+      String problem = arena.check();
+      if (problem != null)
+        throw new CorruptException("Corrupt snapshot: " + path + " (" + problem + ")");
+      // Only trees without syntax errors are saved, the VM won't compile one
+      for (byte kind : kinds)
+        if (kind == ExpressionArena.INVALID)
+          throw new CorruptException("Corrupt snapshot: " + path + " (Node for a syntax error)");
+
+      return arena;
+    } catch (BufferUnderflowException | IllegalArgumentException | NegativeArraySizeException e) {
+      throw new CorruptException("Corrupt snapshot: " + path, e);
+    }
+  }
+
+  // CRC32C of the first size bytes but the checksum itself
+  private static int checksum(ByteBuffer buffer, int size) {
+    CRC32C crc = new CRC32C();
+    crc.update(buffer.duplicate().position(0).limit(CHECKSUM_OFFSET));
+    crc.update(buffer.duplicate().limit(size).position(HEADER_SIZE));
+    return (int) crc.getValue();
+  }
+
+  private Object constant(ByteBuffer buffer) throws IOException {
+    byte tag = buffer.get();
+    switch (tag) {
+      case NIL:
+        return null;
+      case FALSE:
+        return false;
+      case TRUE:
+        return true;
+      case NUMBER:
+        return buffer.getDouble();
+      case STRING:
+        int length = buffer.getInt();
+        if (length < 0 || length > buffer.remaining())
+          throw new CorruptException("Corrupt snapshot: " + path + " (String longer than the file)");
+        byte[] bytes = new byte[length];
+        buffer.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+      default:
+        throw new CorruptException("Corrupt snapshot: " + path);
+    }
+  }
+}
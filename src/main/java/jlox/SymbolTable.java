@@ -0,0 +1,75 @@
+package jlox;
+
+// Interns identifiers and string literals straight from a source range.
+// Every occurrence of a name shares one String, and looking up a name that
+// was seen before allocates nothing. Open addressing with linear probing,
+// hashes match String.hashCode.
+//
+// Ranges are read with charAt, so their chars have to be the characters of
+// the symbol. For a MappedSource that means ASCII only, other text has to
+// be decoded and interned as a String.
+class SymbolTable {
+  private static final int INITIAL_CAPACITY = 64;
+
+  private String[] symbols = new String[INITIAL_CAPACITY];
+  private int[] hashes = new int[INITIAL_CAPACITY];
+  private int size = 0;
+
+  String intern(CharSequence source, int start, int length) {
+    int hash = 0;
+    for (int i = start; i < start + length; i++)
+      hash = 31 * hash + source.charAt(i);
+
+    int mask = symbols.length - 1;
+    int slot = hash & mask;
+    for (String symbol = symbols[slot]; symbol != null; symbol = symbols[slot]) {
+      if (hashes[slot] == hash && matches(symbol, source, start, length))
+        return symbol;
+      slot = (slot + 1) & mask;
+    }
+
+    String symbol = source.subSequence(start, start + length).toString();
+    symbols[slot] = symbol;
+    hashes[slot] = hash;
+    // Keep at least half the slots empty so probes stay short
+    if (++size * 2 > symbols.length)
+      grow();
+
+    return symbol;
+  }
+
+  int size() {
+    return size;
+  }
+
+  private static boolean matches(String symbol, CharSequence source, int start, int length) {
+    if (symbol.length() != length)
+      return false;
+
+    for (int i = 0; i < length; i++) {
+      if (symbol.charAt(i) != source.charAt(start + i))
+        return false;
+    }
+
+    return true;
+  }
+
+  private void grow() {
+    String[] oldSymbols = symbols;
+    int[] oldHashes = hashes;
+    symbols = new String[oldSymbols.length * 2];
+    hashes = new int[oldSymbols.length * 2];
+
+    int mask = symbols.length - 1;
+    for (int i = 0; i < oldSymbols.length; i++) {
+      if (oldSymbols[i] == null)
+        continue;
+
+      int slot = oldHashes[i] & mask;
+      while (symbols[slot] != null)
+        slot = (slot + 1) & mask;
+      symbols[slot] = oldSymbols[i];
+      hashes[slot] = oldHashes[i];
+    }
+  }
+}
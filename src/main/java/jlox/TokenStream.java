@@ -0,0 +1,303 @@
+package jlox;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+// Tokens packed into parallel primitive arrays. Lexemes, literals and Token
+// objects are only built when someone asks for them.
+public class TokenStream {
+  private static final TokenType[] TYPES = TokenType.values();
+  private static final int INITIAL_CAPACITY = 64;
+
+  // Lexemes of operators and keywords are always the same text, so share them
+  private static final String[] FIXED_LEXEMES = new String[TYPES.length];
+
+  // Powers of ten that are exact doubles
+  private static final double[] POWERS_OF_TEN = new double[23];
+
+  static {
+    String[] punctuation = { "(", ")", "{", "}", ",", ".", "-", "+", ";", "/", "*", ":", "?",
+        "!", "!=", "=", "==", ">", ">=", "<", "<=" };
+    for (int i = 0; i < punctuation.length; i++)
+      FIXED_LEXEMES[i] = punctuation[i];
+
+    for (int i = TokenType.AND.ordinal(); i <= TokenType.WHILE.ordinal(); i++)
+      FIXED_LEXEMES[i] = TYPES[i].name().toLowerCase();
+
+    POWERS_OF_TEN[0] = 1;
+    for (int i = 1; i < POWERS_OF_TEN.length; i++)
+      POWERS_OF_TEN[i] = POWERS_OF_TEN[i - 1] * 10;
+  }
+
+  // Only replaced by replace, when the source was edited
+  private CharSequence source;
+
+  private byte[] types;
+  private int[] starts;
+  private int[] lengths;
+  private int[] lines;
+  private int size = 0;
+
+  // Identifier lexemes and string literals, so each is materialized once
+  // per stream
+  private SymbolTable symbols;
+
+  // Materialized tokens, allocated on the first token() call
+  private Token[] tokens;
+
+  // Set while tokens are still being scanned on demand
+  private Scanner producer;
+
+  TokenStream(CharSequence source) {
+    this(source, INITIAL_CAPACITY);
+  }
+
+  TokenStream(CharSequence source, int capacity) {
+    this.source = source;
+    this.types = new byte[capacity];
+    this.starts = new int[capacity];
+    this.lengths = new int[capacity];
+    this.lines = new int[capacity];
+  }
+
+  // Wrap tokens that were already scanned into objects
+  static TokenStream of(List<Token> list) {
+    TokenStream stream = new TokenStream(null, Math.max(list.size(), 1));
+    stream.tokens = new Token[stream.types.length];
+    for (Token token : list) {
+      stream.tokens[stream.size] = token;
+      stream.add(token.type, -1, -1, token.line);
+    }
+
+    return stream;
+  }
+
+  void produceFrom(Scanner scanner) {
+    producer = scanner;
+  }
+
+  // Pull tokens from the producer until index is available or EOF was scanned
+  private void fill(int index) {
+    while (index >= size && producer != null) {
+      producer.scanNext();
+      if (types[size - 1] == TokenType.EOF.ordinal())
+        producer = null;
+    }
+  }
+
+  // Scan whatever is left, e.g. to report lexical errors after parsing stopped
+  public void fillAll() {
+    fill(Integer.MAX_VALUE);
+  }
+
+  void add(TokenType type, int start, int length, int line) {
+    if (size == types.length)
+      grow();
+
+    types[size] = (byte) type.ordinal();
+    starts[size] = start;
+    lengths[size] = length;
+    lines[size] = line;
+    size++;
+  }
+
+  // Copy every token of other, shifting its lines by lineOffset
+  void append(TokenStream other, int lineOffset) {
+    append(other, 0, other.size, 0, lineOffset);
+  }
+
+  // Copy tokens [from, to) of other, shifting starts and lines
+  void append(TokenStream other, int from, int to, int startOffset, int lineOffset) {
+    int count = to - from;
+    while (size + count > types.length)
+      grow();
+
+    System.arraycopy(other.types, from, types, size, count);
+    System.arraycopy(other.lengths, from, lengths, size, count);
+    for (int i = 0; i < count; i++) {
+      starts[size + i] = other.starts[from + i] + startOffset;
+      lines[size + i] = other.lines[from + i] + lineOffset;
+    }
+    size += count;
+  }
+
+  // Splice for an edited source: tokens [from, to) become the first count
+  // tokens of middle, shifted by lineOffset, and the tokens after them move
+  // by startDelta characters and lineDelta lines. Cached Tokens after the
+  // splice are kept unless their line changed.
+  void replace(CharSequence edited, int from, int to, TokenStream middle, int count, int lineOffset, int startDelta, int lineDelta) {
+    int tail = size - to;
+    int newSize = from + count + tail;
+    while (newSize > types.length)
+      grow();
+
+    int moved = from + count;
+    System.arraycopy(types, to, types, moved, tail);
+    System.arraycopy(starts, to, starts, moved, tail);
+    System.arraycopy(lengths, to, lengths, moved, tail);
+    System.arraycopy(lines, to, lines, moved, tail);
+    if (tokens != null)
+      System.arraycopy(tokens, to, tokens, moved, tail);
+
+    if (startDelta != 0) {
+      for (int i = moved; i < newSize; i++)
+        starts[i] += startDelta;
+    }
+
+    if (lineDelta != 0) {
+      for (int i = moved; i < newSize; i++)
+        lines[i] += lineDelta;
+      if (tokens != null)
+        Arrays.fill(tokens, moved, newSize, null);
+    }
+
+    System.arraycopy(middle.types, 0, types, from, count);
+    System.arraycopy(middle.starts, 0, starts, from, count);
+    System.arraycopy(middle.lengths, 0, lengths, from, count);
+    for (int i = 0; i < count; i++)
+      lines[from + i] = middle.lines[i] + lineOffset;
+    if (tokens != null)
+      Arrays.fill(tokens, from, moved, null);
+    // Tokens past the new end must not survive a shrink
+    if (tokens != null && newSize < size)
+      Arrays.fill(tokens, newSize, size, null);
+
+    size = newSize;
+    source = edited;
+  }
+
+  private void grow() {
+    int capacity = types.length * 2;
+    types = Arrays.copyOf(types, capacity);
+    starts = Arrays.copyOf(starts, capacity);
+    lengths = Arrays.copyOf(lengths, capacity);
+    lines = Arrays.copyOf(lines, capacity);
+    if (tokens != null)
+      tokens = Arrays.copyOf(tokens, capacity);
+  }
+
+  public int size() {
+    return size;
+  }
+
+  public TokenType type(int index) {
+    if (index >= size)
+      fill(index);
+
+    return TYPES[types[index]];
+  }
+
+  public int start(int index) {
+    return starts[index];
+  }
+
+  public int length(int index) {
+    return lengths[index];
+  }
+
+  public int line(int index) {
+    return lines[index];
+  }
+
+  public String lexeme(int index) {
+    if (tokens != null && tokens[index] != null)
+      return tokens[index].lexeme;
+
+    String fixed = FIXED_LEXEMES[types[index]];
+    if (fixed != null)
+      return fixed;
+
+    if (types[index] == TokenType.IDENTIFIER.ordinal()) {
+      if (symbols == null)
+        symbols = new SymbolTable();
+      return symbols.intern(source, starts[index], lengths[index]);
+    }
+
+    return text(starts[index], starts[index] + lengths[index]);
+  }
+
+  // Decode the literal value of a STRING or NUMBER token
+  public Object literal(int index) {
+    if (tokens != null && tokens[index] != null)
+      return tokens[index].literal;
+
+    switch (type(index)) {
+      case NUMBER:
+        return decodeNumber(starts[index], lengths[index]);
+      case STRING: {
+        // Trim the surrounding quotes. Interned, so equal literals are one
+        // String and compare by identity in Interpreter.isEqual.
+        if (symbols == null)
+          symbols = new SymbolTable();
+        int start = starts[index] + 1;
+        int end = starts[index] + lengths[index] - 1;
+        if (source instanceof MappedSource && !((MappedSource) source).isAscii(start, end)) {
+          // Bytes aren't characters here, intern the decoded text instead
+          String decoded = text(start, end);
+          return symbols.intern(decoded, 0, decoded.length());
+        }
+        return symbols.intern(source, start, end - start);
+      }
+      default:
+        return null;
+    }
+  }
+
+  // Scanner only produces digits with an optional fraction. Up to 15 digits fit
+  // exactly in a double, so a single division is rounded the same way as
+  // Double.parseDouble and no substring is needed.
+  private double decodeNumber(int start, int length) {
+    if (length > 16)
+      return Double.parseDouble(text(start, start + length));
+
+    long mantissa = 0;
+    int fraction = -1;
+    for (int i = start; i < start + length; i++) {
+      char c = source.charAt(i);
+      if (c == '.') {
+        fraction = 0;
+        continue;
+      }
+
+      mantissa = mantissa * 10 + (c - '0');
+      if (fraction >= 0)
+        fraction++;
+    }
+
+    if (fraction <= 0)
+      return mantissa;
+
+    return mantissa / POWERS_OF_TEN[fraction];
+  }
+
+  private String text(int start, int end) {
+    return source.subSequence(start, end).toString();
+  }
+
+  public Token token(int index) {
+    if (tokens == null)
+      tokens = new Token[types.length];
+
+    Token token = tokens[index];
+    if (token == null) {
+      token = newToken(index);
+      tokens[index] = token;
+    }
+
+    return token;
+  }
+
+  // Materialize every token without caching them in the stream
+  public List<Token> toList() {
+    List<Token> list = new ArrayList<>(size);
+    for (int i = 0; i < size; i++)
+      list.add(tokens != null && tokens[i] != null ? tokens[i] : newToken(i));
+
+    return list;
+  }
+
+  private Token newToken(int index) {
+    return new Token(type(index), lexeme(index), literal(index), lines[index]);
+  }
+}
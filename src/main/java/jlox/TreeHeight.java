@@ -0,0 +1,100 @@
+package jlox;
+
+import java.util.ArrayDeque;
+import java.util.List;
+
+import jlox.Expression.*;
+
+// Height of a tree: 1 for a leaf, one more than its highest child otherwise.
+// Recursive code like TypeInference or JitCompiler only gets trees that are
+// known to be shallow, so this one walks with an explicit stack. Like types,
+// heights only depend on the subtree and are stored on every node visited.
+// Stored heights stop at Short.MAX_VALUE, far above any limit they are
+// compared with. sizeOf() counts nodes the same way, e.g. for Events.
+class TreeHeight {
+  private TreeHeight() {
+  }
+
+  static int heightOf(Expression expression) {
+    if (expression.height != 0)
+      return expression.height;
+
+    ArrayDeque<Expression> pending = new ArrayDeque<>();
+    pending.push(expression);
+    while (!pending.isEmpty()) {
+      Expression node = pending.peek();
+      if (node.height != 0) {
+        // Shared subtree, measured through another parent
+        pending.pop();
+        continue;
+      }
+
+      // Children first, the node is revisited once they all have a height
+      int highest = 0;
+      boolean measured = true;
+      for (int i = 0, count = childCount(node); i < count; i++) {
+        Expression child = child(node, i);
+        if (child.height == 0) {
+          pending.push(child);
+          measured = false;
+        } else {
+          highest = Math.max(highest, child.height);
+        }
+      }
+
+      if (measured) {
+        // Racing threads compute the same value, so no locking is needed
+        node.height = (short) Math.min(highest + 1, Short.MAX_VALUE);
+        pending.pop();
+      }
+    }
+
+    return expression.height;
+  }
+
+  // Number of nodes, a subtree shared by two parents counts twice
+  static int sizeOf(Expression expression) {
+    int size = 0;
+    ArrayDeque<Expression> pending = new ArrayDeque<>();
+    pending.push(expression);
+    while (!pending.isEmpty()) {
+      Expression node = pending.pop();
+      size++;
+      for (int i = 0, count = childCount(node); i < count; i++)
+        pending.push(child(node, i));
+    }
+
+    return size;
+  }
+
+  static int childCount(Expression expression) {
+    if (expression instanceof Binary || expression instanceof Logical)
+      return 2;
+    if (expression instanceof Ternary)
+      return 3;
+    if (expression instanceof Unary || expression instanceof Grouping)
+      return 1;
+    if (expression instanceof Comma)
+      return ((Comma) expression).expressions.size();
+
+    return 0;
+  }
+
+  private static Expression child(Expression expression, int index) {
+    if (expression instanceof Binary)
+      return index == 0 ? ((Binary) expression).left : ((Binary) expression).right;
+    if (expression instanceof Logical)
+      return index == 0 ? ((Logical) expression).left : ((Logical) expression).right;
+    if (expression instanceof Ternary) {
+      Ternary ternary = (Ternary) expression;
+      return index == 0 ? ternary.condition : index == 1 ? ternary.left : ternary.right;
+    }
+    if (expression instanceof Unary)
+      return ((Unary) expression).right;
+    if (expression instanceof Grouping)
+      return ((Grouping) expression).expression;
+
+    List<Expression> expressions = ((Comma) expression).expressions;
+    return expressions.get(index);
+  }
+}
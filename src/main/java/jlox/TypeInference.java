@@ -0,0 +1,106 @@
+package jlox;
+
+import java.util.List;
+
+import jlox.Expression.*;
+
+// Works out which subtrees always produce a number or a boolean, so
+// Interpreter can evaluate them without boxing. A subtree only gets a type
+// when none of its operations can fail a type check, which keeps the order
+// of evaluation and errors the same as the boxed path. Types only depend on
+// the subtree, so they are computed once and stored on the node.
+class TypeInference extends Dispatcher<TypeInference.Type> {
+  enum Type {
+    NUMBER, BOOLEAN, UNKNOWN
+  }
+
+  private static final TypeInference INSTANCE = new TypeInference();
+
+  private TypeInference() {
+  }
+
+  static Type typeOf(Expression expression) {
+    Type type = expression.type;
+    if (type == null) {
+      // Racing threads compute the same value, so no locking is needed
+      type = INSTANCE.dispatch(expression);
+      expression.type = type;
+    }
+
+    return type;
+  }
+
+  @Override
+  public Type visitBinaryExpression(Binary expression) {
+    boolean numbers = typeOf(expression.left) == Type.NUMBER && typeOf(expression.right) == Type.NUMBER;
+
+    switch (expression.operator.type) {
+      case MINUS:
+      case SLASH:
+      case STAR:
+      case PLUS:
+        return numbers ? Type.NUMBER : Type.UNKNOWN;
+      case GREATER:
+      case GREATER_EQUAL:
+      case LESS:
+      case LESS_EQUAL:
+        return numbers ? Type.BOOLEAN : Type.UNKNOWN;
+      case EQUAL_EQUAL:
+      case BANG_EQUAL:
+        return Type.BOOLEAN;
+      default:
+        return Type.UNKNOWN;
+    }
+  }
+
+  @Override
+  public Type visitGroupingExpression(Grouping expression) {
+    return typeOf(expression.expression);
+  }
+
+  @Override
+  public Type visitLiteralExpression(Literal expression) {
+    if (expression.value instanceof Double)
+      return Type.NUMBER;
+    if (expression.value instanceof Boolean)
+      return Type.BOOLEAN;
+
+    return Type.UNKNOWN;
+  }
+
+  @Override
+  public Type visitUnaryExpression(Unary expression) {
+    switch (expression.operator.type) {
+      case MINUS:
+        return typeOf(expression.right) == Type.NUMBER ? Type.NUMBER : Type.UNKNOWN;
+      case BANG:
+        return Type.BOOLEAN;
+      default:
+        return Type.UNKNOWN;
+    }
+  }
+
+  @Override
+  public Type visitCommaExpression(Comma expression) {
+    List<Expression> expressions = expression.expressions;
+    return typeOf(expressions.get(expressions.size() - 1));
+  }
+
+  @Override
+  public Type visitTernaryExpression(Ternary expression) {
+    Type left = typeOf(expression.left);
+    return left == typeOf(expression.right) ? left : Type.UNKNOWN;
+  }
+
+  @Override
+  public Type visitInvalidExpression(Invalid expression) {
+    return Type.UNKNOWN;
+  }
+
+  // The value of either operand, so typed if both have the same type
+  @Override
+  public Type visitLogicalExpression(Logical expression) {
+    Type left = typeOf(expression.left);
+    return left == typeOf(expression.right) ? left : Type.UNKNOWN;
+  }
+}
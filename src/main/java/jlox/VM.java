@@ -0,0 +1,180 @@
+package jlox;
+
+import static jlox.Chunk.*;
+
+// Stack machine for chunks produced by Compiler. Numbers live unboxed in a
+// double stack, every other value in a parallel object stack. A slot holding
+// a number is marked with the NUMBER tag in the object stack, so nothing is
+// boxed until the result leaves the VM.
+public class VM {
+  private static final Object NUMBER = new Object();
+
+  private double[] numbers = new double[16];
+  private Object[] values = new Object[16];
+
+  public Object run(Chunk chunk) {
+    if (chunk.maxStack > values.length) {
+      numbers = new double[chunk.maxStack];
+      values = new Object[chunk.maxStack];
+    }
+
+    byte[] code = chunk.code;
+    double[] numbers = this.numbers;
+    Object[] values = this.values;
+    int ip = 0;
+    int sp = 0;
+
+    for (;;) {
+      byte op = code[ip++];
+      switch (op) {
+        case OP_NUMBER:
+          numbers[sp] = chunk.numbers[chunk.readInt(ip)];
+          values[sp++] = NUMBER;
+          ip += 4;
+          break;
+        case OP_CONSTANT:
+          values[sp++] = chunk.constants[chunk.readInt(ip)];
+          ip += 4;
+          break;
+        case OP_NIL:
+          values[sp++] = null;
+          break;
+        case OP_TRUE:
+          values[sp++] = Boolean.TRUE;
+          break;
+        case OP_FALSE:
+          values[sp++] = Boolean.FALSE;
+          break;
+        case OP_POP:
+          values[--sp] = null;
+          break;
+
+        case OP_NEGATE:
+          if (values[sp - 1] != NUMBER)
+            throw new RuntimeError(chunk.operators[ip - 1], "Operand must be a number.");
+          numbers[sp - 1] = -numbers[sp - 1];
+          break;
+        case OP_NOT:
+          values[sp - 1] = isFalsey(sp - 1) ? Boolean.TRUE : Boolean.FALSE;
+          break;
+
+        case OP_ADD:
+          sp--;
+          if (values[sp - 1] == NUMBER && values[sp] == NUMBER) {
+            numbers[sp - 1] += numbers[sp];
+          } else if (Rope.isString(values[sp - 1]) && Rope.isString(values[sp])) {
+            values[sp - 1] = Rope.concat(values[sp - 1], values[sp]);
+          } else {
+            values[sp - 1] = null;
+          }
+          values[sp] = null;
+          break;
+        case OP_SUBTRACT:
+          sp = checkNumbers(chunk, ip, sp);
+          numbers[sp - 1] -= numbers[sp];
+          break;
+        case OP_MULTIPLY:
+          sp = checkNumbers(chunk, ip, sp);
+          numbers[sp - 1] *= numbers[sp];
+          break;
+        case OP_DIVIDE:
+          sp = checkNumbers(chunk, ip, sp);
+          numbers[sp - 1] /= numbers[sp];
+          break;
+
+        case OP_GREATER:
+          sp = checkNumbers(chunk, ip, sp);
+          values[sp - 1] = numbers[sp - 1] > numbers[sp] ? Boolean.TRUE : Boolean.FALSE;
+          break;
+        case OP_GREATER_EQUAL:
+          sp = checkNumbers(chunk, ip, sp);
+          values[sp - 1] = numbers[sp - 1] >= numbers[sp] ? Boolean.TRUE : Boolean.FALSE;
+          break;
+        case OP_LESS:
+          sp = checkNumbers(chunk, ip, sp);
+          values[sp - 1] = numbers[sp - 1] < numbers[sp] ? Boolean.TRUE : Boolean.FALSE;
+          break;
+        case OP_LESS_EQUAL:
+          sp = checkNumbers(chunk, ip, sp);
+          values[sp - 1] = numbers[sp - 1] <= numbers[sp] ? Boolean.TRUE : Boolean.FALSE;
+          break;
+        case OP_EQUAL:
+          sp--;
+          values[sp - 1] = isEqual(sp - 1, sp) ? Boolean.TRUE : Boolean.FALSE;
+          values[sp] = null;
+          break;
+        case OP_NOT_EQUAL:
+          sp--;
+          values[sp - 1] = isEqual(sp - 1, sp) ? Boolean.FALSE : Boolean.TRUE;
+          values[sp] = null;
+          break;
+
+        case OP_JUMP:
+          ip = chunk.readInt(ip);
+          break;
+        case OP_JUMP_IF_FALSE:
+          sp--;
+          if (isFalsey(sp)) {
+            ip = chunk.readInt(ip);
+          } else {
+            ip += 4;
+          }
+          values[sp] = null;
+          break;
+
+        case OP_JUMP_IF_FALSE_OR_POP:
+          if (isFalsey(sp - 1)) {
+            ip = chunk.readInt(ip);
+          } else {
+            ip += 4;
+            values[--sp] = null;
+          }
+          break;
+        case OP_JUMP_IF_TRUE_OR_POP:
+          if (!isFalsey(sp - 1)) {
+            ip = chunk.readInt(ip);
+          } else {
+            ip += 4;
+            values[--sp] = null;
+          }
+          break;
+
+        case OP_RETURN:
+          Object result = Rope.flatten(box(sp - 1));
+          values[sp - 1] = null;
+          return result;
+
+        default:
+          throw new IllegalStateException("Unknown opcode " + op);
+      }
+    }
+  }
+
+  // Pops the right operand of a numeric binary operator, the left one
+  // stays where the result goes
+  private int checkNumbers(Chunk chunk, int ip, int sp) {
+    if (values[sp - 2] != NUMBER || values[sp - 1] != NUMBER)
+      throw new RuntimeError(chunk.operators[ip - 1], "Operands must be numbers.");
+
+    return sp - 1;
+  }
+
+  private boolean isFalsey(int slot) {
+    if (values[slot] == NUMBER)
+      return !Interpreter.isThruthy(numbers[slot]);
+
+    return !Interpreter.isThruthy(values[slot]);
+  }
+
+  private boolean isEqual(int left, int right) {
+    if (values[left] == NUMBER && values[right] == NUMBER)
+      // Same as Double.equals, which Interpreter uses
+      return Double.doubleToLongBits(numbers[left]) == Double.doubleToLongBits(numbers[right]);
+
+    return Interpreter.isEqual(box(left), box(right));
+  }
+
+  private Object box(int slot) {
+    return values[slot] == NUMBER ? (Object) numbers[slot] : values[slot];
+  }
+}
@@ -2,6 +2,7 @@ package tools;
 
 import java.io.IOException;
 import java.io.PrintWriter;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
 
@@ -14,13 +15,18 @@ public class GenerateAst {
 
     String outputDir = args[0];
 
-    defineAst(outputDir, "Expression", Arrays.asList(
+    List<String> types = Arrays.asList(
         "Binary: Expression left, Token operator, Expression right",
         "Grouping:Expression expression",
         "Literal: Object value",
         "Unary: Token operator, Expression right",
         "Comma: List<Expression> expressions",
-        "Ternary: Expression condition, Expression left, Expression right"));
+        "Ternary: Expression condition, Expression left, Expression right",
+        "Invalid: Token token",
+        "Logical: Expression left, Token operator, Expression right");
+
+    defineAst(outputDir, "Expression", types);
+    defineArena(outputDir, "Expression", types);
   }
 
   private static void defineAst(String outputDir, String baseName, List<String> types) throws IOException {
@@ -32,60 +38,527 @@ public class GenerateAst {
     writer.println("import java.util.List;");
     writer.println();
     writer.println("abstract class " + baseName + " {");
+    writer.println();
+    writer.println("  // Node kinds, one per subclass, see Dispatcher");
+    for (int i = 0; i < types.size(); i++) {
+      String typeName = types.get(i).split(":")[0].trim();
+      writer.println("  static final byte " + typeName.toUpperCase() + " = " + i + ";");
+    }
+    writer.println();
+    writer.println("  // Static type, filled in by TypeInference the first time it is asked");
+    writer.println("  TypeInference.Type type;");
+    writer.println();
+    writer.println("  // Longest path down to a leaf, filled in by TreeHeight the first time it is");
+    writer.println("  // asked. A short next to kind keeps nodes as small as with type alone.");
+    writer.println("  short height;");
+    writer.println();
+    writer.println("  // Whether evaluating can fail, filled in by Purity the first time it is asked");
+    writer.println("  byte purity;");
+    writer.println();
+    writer.println("  final byte kind;");
+    writer.println();
+    writer.println("  " + baseName + "(byte kind) {");
+    writer.println("    this.kind = kind;");
+    writer.println("  }");
+    writer.println();
+    writer.println("  abstract <R> R accept(Visitor<R> visitor);");
+    writer.println();
 
     defineVisitor(writer, baseName, types);
+    defineDispatcher(writer, baseName, types);
 
     for (String type : types) {
       String className = type.split(":")[0].trim();
       String fields = type.split(":")[1].trim();
 
+      writer.println();
       defineType(writer, baseName, className, fields);
     }
 
-    writer.println();
-    writer.println("  abstract <R> R accept(Visitor<R> visitor);");
-
     writer.println("}");
     writer.close();
   }
 
   private static void defineVisitor(PrintWriter writer, String baseName, List<String> types) {
-    writer.println("   interface Visitor<R> {");
+    writer.println("  interface Visitor<R> {");
 
     for (String type : types) {
       String typeName = type.split(":")[0].trim();
-      writer.println("     R visit" + typeName + baseName + "(" + typeName + " " + baseName.toLowerCase() + ");");
+      writer.println("    R visit" + typeName + baseName + "(" + typeName + " " + baseName.toLowerCase() + ");");
       writer.println();
     }
 
     writer.println("  }");
   }
 
+  private static void defineDispatcher(PrintWriter writer, String baseName, List<String> types) {
+    String argument = baseName.toLowerCase();
+
+    writer.println();
+    writer.println("  // Visitor whose dispatch() picks the visit method with a switch on kind.");
+    writer.println("  // Every node type goes through the one accept() call site, which the JIT");
+    writer.println("  // can't inline; once dispatch() is inlined into a subclass each case");
+    writer.println("  // calls a single known method.");
+    writer.println("  abstract static class Dispatcher<R> implements Visitor<R> {");
+    writer.println("    R dispatch(" + baseName + " " + argument + ") {");
+    writer.println("      switch (" + argument + ".kind) {");
+    for (String type : types) {
+      String typeName = type.split(":")[0].trim();
+      writer.println("        case " + typeName.toUpperCase() + ":");
+      writer.println("          return visit" + typeName + baseName + "((" + typeName + ") " + argument + ");");
+    }
+    writer.println("        default:");
+    writer.println("          throw new IllegalStateException(\"Unknown kind \" + " + argument + ".kind);");
+    writer.println("      }");
+    writer.println("    }");
+    writer.println("  }");
+  }
+
   private static void defineType(PrintWriter writer, String baseName, String className, String fields) {
     writer.println("  static class " + className + " extends " + baseName + " {");
     writer.println();
     writer.println("    " + className + "(" + fields + ") {");
+    writer.println("      super(" + className.toUpperCase() + ");");
 
     String[] fieldsArray = fields.split(", ");
     for (String field : fieldsArray) {
       String name = field.split(" ")[1];
-      writer.println("    this." + name + " = " + name + ";");
+      writer.println("      this." + name + " = " + name + ";");
     }
 
     writer.println("    }");
 
     writer.println();
-    writer.println("  @Override");
-    writer.println("  <R> R accept(Visitor<R> visitor) {");
-    writer.println("    return visitor.visit" + className + baseName + "(this);");
-    writer.println("  }");
+    writer.println("    @Override");
+    writer.println("    <R> R accept(Visitor<R> visitor) {");
+    writer.println("      return visitor.visit" + className + baseName + "(this);");
+    writer.println("    }");
 
     writer.println();
     for (String field : fieldsArray) {
-      writer.println("  final " + field + ";");
+      writer.println("    final " + field + ";");
+    }
+
+    writer.println("  }");
+  }
+
+  // The same node types in struct-of-arrays form, see the class comment
+  // written below. Node fields become operands: an index for a child, three
+  // for a token and a constant pool index for anything else. A list takes
+  // its length followed by the indices and has to be the last field.
+  private static void defineArena(String outputDir, String baseName, List<String> types) throws IOException {
+    String className = baseName + "Arena";
+    String path = outputDir + "/" + className + ".java";
+    PrintWriter writer = new PrintWriter(path, "UTF-8");
+
+    writer.println("package jlox;");
+    writer.println();
+    writer.println("import java.util.Arrays;");
+    writer.println("import java.util.HashMap;");
+    writer.println("import java.util.Map;");
+    writer.println();
+    writer.println("// " + baseName + " trees in struct-of-arrays form, generated by GenerateAst.");
+    writer.println("// A node is an index into kinds and offsets, offsets points at its");
+    writer.println("// operands in one shared int array. Children are node indices, a token");
+    writer.println("// takes three operands (type, line and lexeme) and other values go to");
+    writer.println("// a pool of constants, shared between equal values. Nodes are added");
+    writer.println("// after their children, so the last one is the root.");
+    writer.println("class " + className + " {");
+
+    for (int i = 0; i < types.size(); i++) {
+      String typeName = types.get(i).split(":")[0].trim();
+      writer.println("  static final byte " + typeName.toUpperCase() + " = " + i + ";");
+    }
+
+    writer.println();
+    writer.println("  // Changes with the node types and their fields, see Snapshot");
+    writer.println("  static final int LAYOUT = " + String.join("; ", types).hashCode() + ";");
+    writer.println();
+    writer.println("  private static final TokenType[] TOKEN_TYPES = TokenType.values();");
+    writer.println();
+    writer.println("  interface Visitor<R> {");
+    for (String type : types) {
+      String typeName = type.split(":")[0].trim();
+      writer.println("    R visit" + typeName + "(int node);");
+      writer.println();
     }
+    writer.println("  }");
+    writer.println();
 
+    writer.println("  private byte[] kinds = new byte[16];");
+    writer.println("  private int[] offsets = new int[16];");
+    writer.println("  private int[] operands = new int[64];");
+    writer.println("  private Object[] constants = new Object[16];");
+    writer.println("  private Map<Object, Integer> constantIndices = new HashMap<>();");
+    writer.println("  private int size = 0;");
+    writer.println("  private int operandCount = 0;");
+    writer.println("  private int constantCount = 0;");
+    writer.println("  // Built on first use from the child operands, see parents()");
+    writer.println("  private volatile int[] parents;");
+    writer.println();
+    writer.println("  " + className + "() {");
+    writer.println("  }");
+    writer.println();
+    writer.println("  // A trimmed arena over arrays read back by Snapshot");
+    writer.println("  " + className + "(byte[] kinds, int[] offsets, int[] operands, Object[] constants) {");
+    writer.println("    this.kinds = kinds;");
+    writer.println("    this.offsets = offsets;");
+    writer.println("    this.operands = operands;");
+    writer.println("    this.constants = constants;");
+    writer.println("    this.constantIndices = null;");
+    writer.println("    this.size = kinds.length;");
+    writer.println("    this.operandCount = operands.length;");
+    writer.println("    this.constantCount = constants.length;");
+    writer.println("  }");
+    writer.println();
+    writer.println("  int size() {");
+    writer.println("    return size;");
     writer.println("  }");
+    writer.println();
+    writer.println("  int root() {");
+    writer.println("    return size - 1;");
+    writer.println("  }");
+    writer.println();
+    writer.println("  byte kind(int node) {");
+    writer.println("    return kinds[node];");
+    writer.println("  }");
+    writer.println();
+
+    writer.println("  <R> R accept(int node, Visitor<R> visitor) {");
+    writer.println("    switch (kinds[node]) {");
+    for (String type : types) {
+      String typeName = type.split(":")[0].trim();
+      writer.println("      case " + typeName.toUpperCase() + ":");
+      writer.println("        return visitor.visit" + typeName + "(node);");
+    }
+    writer.println("      default:");
+    writer.println("        throw new IllegalStateException(\"Unknown kind \" + kinds[node]);");
+    writer.println("    }");
+    writer.println("  }");
+
+    for (String type : types) {
+      String typeName = type.split(":")[0].trim();
+      String[] fields = type.split(":")[1].trim().split(", ");
+      defineArenaType(writer, baseName, typeName, fields);
+    }
+
+    defineParents(writer, baseName, types);
+    defineCheck(writer, baseName, types);
+
+    writer.println();
+    writer.println("  // Cuts the arrays down to what is used, no more nodes can be added after");
+    writer.println("  void trim() {");
+    writer.println("    kinds = Arrays.copyOf(kinds, size);");
+    writer.println("    offsets = Arrays.copyOf(offsets, size);");
+    writer.println("    operands = Arrays.copyOf(operands, operandCount);");
+    writer.println("    constants = Arrays.copyOf(constants, constantCount);");
+    writer.println("    constantIndices = null;");
+    writer.println("    parents = null;");
+    writer.println("  }");
+    writer.println();
+    writer.println("  // Storage of a trimmed arena for Snapshot, callers must not change it");
+    writer.println("  byte[] kinds() {");
+    writer.println("    return kinds;");
+    writer.println("  }");
+    writer.println();
+    writer.println("  int[] offsets() {");
+    writer.println("    return offsets;");
+    writer.println("  }");
+    writer.println();
+    writer.println("  int[] operands() {");
+    writer.println("    return operands;");
+    writer.println("  }");
+    writer.println();
+    writer.println("  Object[] constants() {");
+    writer.println("    return constants;");
+    writer.println("  }");
+    writer.println();
+    writer.println("  private int node(byte kind, int operandsNeeded) {");
+    writer.println("    if (size == kinds.length) {");
+    writer.println("      kinds = Arrays.copyOf(kinds, size * 2);");
+    writer.println("      offsets = Arrays.copyOf(offsets, size * 2);");
+    writer.println("    }");
+    writer.println("    if (operandCount + operandsNeeded > operands.length)");
+    writer.println("      operands = Arrays.copyOf(operands, Math.max(operands.length * 2, operandCount + operandsNeeded));");
+    writer.println();
+    writer.println("    kinds[size] = kind;");
+    writer.println("    offsets[size] = operandCount;");
+    writer.println("    return size++;");
+    writer.println("  }");
+    writer.println();
+    writer.println("  private void operand(int value) {");
+    writer.println("    operands[operandCount++] = value;");
+    writer.println("  }");
+    writer.println();
+    writer.println("  private void token(Token token) {");
+    writer.println("    operand(token.type.ordinal());");
+    writer.println("    operand(token.line);");
+    writer.println("    operand(constant(token.lexeme));");
+    writer.println("  }");
+    writer.println();
+    writer.println("  // Known type and a String lexeme, the line can be anything");
+    writer.println("  private boolean validToken(int offset) {");
+    writer.println("    int type = operands[offset];");
+    writer.println("    int lexeme = operands[offset + 2];");
+    writer.println("    return type >= 0 && type < TOKEN_TYPES.length && validConstant(lexeme) && constants[lexeme] instanceof String;");
+    writer.println("  }");
+    writer.println();
+    writer.println("  private boolean validConstant(int index) {");
+    writer.println("    return index >= 0 && index < constantCount;");
+    writer.println("  }");
+    writer.println();
+    writer.println("  // Tokens are rebuilt on every call, without their literal");
+    writer.println("  private Token token(int offset) {");
+    writer.println("    return new Token(TOKEN_TYPES[operands[offset]], (String) constants[operands[offset + 2]], null, operands[offset + 1]);");
+    writer.println("  }");
+    writer.println();
+    writer.println("  private int constant(Object value) {");
+    writer.println("    Integer index = constantIndices.get(value);");
+    writer.println("    if (index != null)");
+    writer.println("      return index;");
+    writer.println();
+    writer.println("    if (constantCount == constants.length)");
+    writer.println("      constants = Arrays.copyOf(constants, constantCount * 2);");
+    writer.println("    constants[constantCount] = value;");
+    writer.println("    constantIndices.put(value, constantCount);");
+    writer.println("    return constantCount++;");
+    writer.println("  }");
+    writer.println("}");
+    writer.close();
+  }
+
+  private static void defineParents(PrintWriter writer, String baseName, List<String> types) {
+    writer.println();
+    writer.println("  // Parent of every node, -1 for a root. Shared, callers must not change it.");
+    writer.println("  int[] parents() {");
+    writer.println("    int[] parents = this.parents;");
+    writer.println("    if (parents != null)");
+    writer.println("      return parents;");
+    writer.println();
+    writer.println("    parents = new int[size];");
+    writer.println("    Arrays.fill(parents, -1);");
+    writer.println("    for (int node = 0; node < size; node++) {");
+    writer.println("      switch (kinds[node]) {");
+    for (String type : types) {
+      String typeName = type.split(":")[0].trim();
+      String prefix = Character.toLowerCase(typeName.charAt(0)) + typeName.substring(1);
+      List<String> lines = new ArrayList<>();
+      for (String field : type.split(":")[1].trim().split(", ")) {
+        String fieldType = field.split(" ")[0];
+        String name = field.split(" ")[1];
+        String accessor = prefix + Character.toUpperCase(name.charAt(0)) + name.substring(1);
+        if (fieldType.equals(baseName)) {
+          lines.add("          parents[" + accessor + "(node)] = node;");
+        } else if (fieldType.equals("List<" + baseName + ">")) {
+          lines.add("          for (int i = 0; i < " + accessor + "Size(node); i++)");
+          lines.add("            parents[" + accessor + "(node, i)] = node;");
+        }
+      }
+      if (lines.isEmpty())
+        continue;
+
+      writer.println("        case " + typeName.toUpperCase() + ":");
+      for (String line : lines)
+        writer.println(line);
+      writer.println("          break;");
+    }
+    writer.println("        default:");
+    writer.println("      }");
+    writer.println("    }");
+    writer.println();
+    writer.println("    // Racing threads build the same array");
+    writer.println("    this.parents = parents;");
+    writer.println("    return parents;");
+    writer.println("  }");
+  }
+
+  // Operands are checked field by field in the order add writes them.
+  // Children have to be the trees finished last, as add leaves them, so
+  // ExpressionFlattener.inflate and the arena walkers see the same tree.
+  private static void defineCheck(PrintWriter writer, String baseName, List<String> types) {
+    writer.println();
+    writer.println("  // Why the arena isn't a tree the walkers can follow, null if it is: kinds,");
+    writer.println("  // operands, constants and token types in range, and children in the");
+    writer.println("  // order nodes are added, each used once and the last node the root. For");
+    writer.println("  // arrays that were read back rather than built.");
+    writer.println("  String check() {");
+    writer.println("    if (size == 0)");
+    writer.println("      return \"No nodes\";");
+    writer.println();
+    writer.println("    // Finished trees not yet taken by a parent");
+    writer.println("    int[] trees = new int[size];");
+    writer.println("    int count = 0;");
+    writer.println("    for (int node = 0; node < size; node++) {");
+    writer.println("      int at = offsets[node];");
+    writer.println("      switch (kinds[node]) {");
+    for (String type : types) {
+      String typeName = type.split(":")[0].trim();
+      String[] fields = type.split(":")[1].trim().split(", ");
+
+      int operandsNeeded = 0;
+      int children = 0;
+      int listAt = -1;
+      List<String> checks = new ArrayList<>();
+      List<Integer> childAt = new ArrayList<>();
+      for (String field : fields) {
+        String fieldType = field.split(" ")[0];
+        if (fieldType.equals(baseName)) {
+          childAt.add(operandsNeeded);
+          children++;
+          operandsNeeded += 1;
+        } else if (fieldType.equals("List<" + baseName + ">")) {
+          listAt = operandsNeeded;
+          operandsNeeded += 1;
+        } else if (fieldType.equals("Token")) {
+          checks.add("validToken(" + (operandsNeeded == 0 ? "at" : "at + " + operandsNeeded) + ")");
+          operandsNeeded += 3;
+        } else {
+          checks.add("validConstant(operands[" + (operandsNeeded == 0 ? "at" : "at + " + operandsNeeded) + "])");
+          operandsNeeded += 1;
+        }
+      }
+
+      writer.println("        case " + typeName.toUpperCase() + ": {");
+      writer.println("          if (at < 0 || at > operandCount - " + operandsNeeded + ")");
+      writer.println("            return \"Operands of node \" + node + \" out of range\";");
+      String taken = String.valueOf(children);
+      if (listAt >= 0) {
+        String size = "operands[" + (listAt == 0 ? "at" : "at + " + listAt) + "]";
+        writer.println("          int elements = " + size + ";");
+        writer.println("          if (elements < 1 || elements > operandCount - at - " + operandsNeeded + ")");
+        writer.println("            return \"Elements of node \" + node + \" out of range\";");
+        taken = children == 0 ? "elements" : children + " + elements";
+      }
+      if (!taken.equals("0")) {
+        writer.println("          int first = count - " + (taken.contains(" ") ? "(" + taken + ")" : taken) + ";");
+        writer.println("          if (first < 0)");
+        writer.println("            return \"Children of node \" + node + \" missing\";");
+      }
+      for (int i = 0; i < childAt.size(); i++) {
+        String at = childAt.get(i) == 0 ? "at" : "at + " + childAt.get(i);
+        writer.println("          if (operands[" + at + "] != trees[first" + (i == 0 ? "" : " + " + i) + "])");
+        writer.println("            return \"Children of node \" + node + \" out of order\";");
+      }
+      if (listAt >= 0) {
+        writer.println("          for (int i = 0; i < elements; i++) {");
+        writer.println("            if (operands[at + " + (listAt + 1) + " + i] != trees[first + " + (children == 0 ? "" : children + " + ") + "i])");
+        writer.println("              return \"Children of node \" + node + \" out of order\";");
+        writer.println("          }");
+      }
+      for (String check : checks) {
+        writer.println("          if (!" + check + ")");
+        writer.println("            return \"Bad operand in node \" + node;");
+      }
+      if (!taken.equals("0"))
+        writer.println("          count = first;");
+      writer.println("          break;");
+      writer.println("        }");
+    }
+    writer.println("        default:");
+    writer.println("          return \"Unknown kind \" + kinds[node] + \" of node \" + node;");
+    writer.println("      }");
+    writer.println("      trees[count++] = node;");
+    writer.println("    }");
+    writer.println();
+    writer.println("    return count == 1 ? null : \"Nodes outside the tree\";");
+    writer.println("  }");
+  }
+
+  private static void defineArenaType(PrintWriter writer, String baseName, String className, String[] fields) {
+    String kind = className.toUpperCase();
+    String prefix = Character.toLowerCase(className.charAt(0)) + className.substring(1);
+
+    StringBuilder parameters = new StringBuilder();
+    int operandsNeeded = 0;
+    String listName = null;
+    for (String field : fields) {
+      String type = field.split(" ")[0];
+      String name = field.split(" ")[1];
+      if (parameters.length() > 0)
+        parameters.append(", ");
+
+      if (type.equals(baseName)) {
+        parameters.append("int ").append(name);
+        operandsNeeded += 1;
+      } else if (type.equals("List<" + baseName + ">")) {
+        parameters.append("int[] ").append(name);
+        operandsNeeded += 1;
+        listName = name;
+      } else if (type.equals("Token")) {
+        parameters.append("Token ").append(name);
+        operandsNeeded += 3;
+      } else {
+        parameters.append(field);
+        operandsNeeded += 1;
+      }
+    }
+
+    writer.println();
+    writer.println("  int add" + className + "(" + parameters + ") {");
+    writer.println("    int node = node(" + kind + ", " + operandsNeeded + (listName == null ? "" : " + " + listName + ".length") + ");");
+    for (String field : fields) {
+      String type = field.split(" ")[0];
+      String name = field.split(" ")[1];
+      if (type.equals(baseName)) {
+        writer.println("    operand(" + name + ");");
+      } else if (type.equals("List<" + baseName + ">")) {
+        writer.println("    operand(" + name + ".length);");
+        writer.println("    for (int element : " + name + ")");
+        writer.println("      operand(element);");
+      } else if (type.equals("Token")) {
+        writer.println("    token(" + name + ");");
+      } else {
+        writer.println("    operand(constant(" + name + "));");
+      }
+    }
+    writer.println("    return node;");
+    writer.println("  }");
+
+    int position = 0;
+    for (String field : fields) {
+      String type = field.split(" ")[0];
+      String name = field.split(" ")[1];
+      String accessor = prefix + Character.toUpperCase(name.charAt(0)) + name.substring(1);
+      String at = position == 0 ? "offsets[node]" : "offsets[node] + " + position;
+
+      writer.println();
+      if (type.equals(baseName)) {
+        writer.println("  int " + accessor + "(int node) {");
+        writer.println("    return operands[" + at + "];");
+        writer.println("  }");
+        position += 1;
+      } else if (type.equals("List<" + baseName + ">")) {
+        if (!name.equals(listName) || !field.equals(fields[fields.length - 1]))
+          throw new IllegalArgumentException("A list has to be the last field: " + className);
+
+        writer.println("  int " + accessor + "Size(int node) {");
+        writer.println("    return operands[" + at + "];");
+        writer.println("  }");
+        writer.println();
+        writer.println("  int " + accessor + "(int node, int index) {");
+        writer.println("    return operands[" + at + " + 1 + index];");
+        writer.println("  }");
+        position += 1;
+      } else if (type.equals("Token")) {
+        writer.println("  Token " + accessor + "(int node) {");
+        writer.println("    return token(" + at + ");");
+        writer.println("  }");
+        writer.println();
+        writer.println("  TokenType " + accessor + "Type(int node) {");
+        writer.println("    return TOKEN_TYPES[operands[" + at + "]];");
+        writer.println("  }");
+        writer.println();
+        writer.println("  int " + accessor + "Line(int node) {");
+        writer.println("    return operands[offsets[node] + " + (position + 1) + "];");
+        writer.println("  }");
+        position += 3;
+      } else {
+        writer.println("  " + type + " " + accessor + "(int node) {");
+        writer.println("    return " + (type.equals("Object") ? "" : "(" + type + ") ") + "constants[operands[" + at + "]];");
+        writer.println("  }");
+        position += 1;
+      }
+    }
   }
 
 }
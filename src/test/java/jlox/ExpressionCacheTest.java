@@ -0,0 +1,47 @@
+package jlox;
+
+import junit.framework.TestCase;
+
+public class ExpressionCacheTest extends TestCase {
+  private static final Expression TREE = new Expression.Literal(1.0);
+
+  // Every capacity is used in full, also below one entry per segment
+  public void testSmallCapacities() {
+    for (int maxEntries = 1; maxEntries <= 40; maxEntries++) {
+      ExpressionCache cache = new ExpressionCache(maxEntries);
+      for (int i = 0; i < 1000; i++) {
+        String source = String.valueOf(i);
+        cache.put(source, TREE);
+        assertSame("capacity " + maxEntries + ", source " + i, TREE, cache.get(source));
+        assertTrue("capacity " + maxEntries, cache.size() <= maxEntries);
+      }
+
+      assertEquals(maxEntries, cache.size());
+      assertEquals(1000 - maxEntries, cache.stats().evictions);
+    }
+  }
+
+  public void testSingleEntryIsLeastRecentlyUsed() {
+    ExpressionCache cache = new ExpressionCache(1);
+    cache.put("1", TREE);
+    cache.put("2", TREE);
+    assertNull(cache.get("1"));
+    assertSame(TREE, cache.get("2"));
+  }
+
+  public void testNoCapacity() {
+    try {
+      new ExpressionCache(0);
+      fail();
+    } catch (IllegalArgumentException e) {
+    }
+  }
+
+  public void testEngineWithOneEntry() {
+    Engine engine = new Engine(1, false);
+    assertEquals(3.0, engine.evaluate("1 + 2").value);
+    assertEquals(3.0, engine.evaluate("1 + 2").value);
+    assertEquals(1, engine.cacheStats().hits);
+    assertEquals(1, engine.cacheStats().size);
+  }
+}
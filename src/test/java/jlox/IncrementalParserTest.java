@@ -0,0 +1,138 @@
+package jlox;
+
+import java.util.Random;
+
+import jlox.Expression.*;
+import jlox.PrintAst.AstPrinter;
+import junit.framework.TestCase;
+
+import static jlox.Expression.*;
+
+// Differential check of IncrementalParser: random edits to random comma
+// lists, after each one the buffer must match a full scan and parse of its
+// text in tree, token lines, diagnostics and tokens.
+public class IncrementalParserTest extends TestCase {
+  // Inserted text, picked to split and join tokens, open and close strings
+  // and comments and add or remove lines
+  private static final String[] PIECES = { "1", "2.5", "\"s\ntr\"", "true", "nil", "+", "-", "*", "/", "==", "<",
+      "?", ":", "(", ")", "!", ",", ",", ",", "\n", " ", "/* c */", "// x\n", "\"", "/*", "*/", "$", "12", "3.",
+      "=", "!=", "and", "or", " and ", " or " };
+
+  private static final int BUFFERS = 300;
+  private static final int EDITS = 60;
+
+  public void testEditsMatchFullParse() {
+    Random random = new Random(13);
+    int valid = 0;
+    for (int buffer = 0; buffer < BUFFERS; buffer++) {
+      String initial = buffer(random);
+      IncrementalParser parser = new IncrementalParser(initial);
+      for (int edit = 0; edit < EDITS; edit++) {
+        String before = parser.source();
+        int offset = random.nextInt(before.length() + 1);
+        int removed = Math.min(random.nextInt(4), before.length() - offset);
+        String inserted = random.nextInt(3) == 0 ? "" : PIECES[random.nextInt(PIECES.length)];
+
+        Expression tree = parser.edit(offset, removed, inserted);
+        String context = "buffer " + buffer + ", edit " + edit + ": " + offset + "+" + removed + " [" + inserted
+            + "] in\n" + before;
+        boolean checked = check(parser, tree, context);
+        if (checked)
+          valid++;
+
+        // Start over now and then, so edits don't drift into one long error.
+        // Most single tokens inserted between two others leave a token over,
+        // so a broken buffer starts over sooner.
+        if (random.nextInt(checked ? 10 : 4) == 0)
+          parser = new IncrementalParser(initial);
+      }
+    }
+
+    // The edits must keep enough buffers valid to exercise reuse
+    assertTrue("only " + valid + " valid buffers", valid > BUFFERS * EDITS / 10);
+  }
+
+  public void testEditOutsideBuffer() {
+    IncrementalParser parser = new IncrementalParser("1 + 2");
+    try {
+      parser.edit(3, 3, "");
+      fail();
+    } catch (IndexOutOfBoundsException e) {
+      assertEquals("1 + 2", parser.source());
+    }
+  }
+
+  // Returns whether the buffer is free of errors
+  private static boolean check(IncrementalParser parser, Expression tree, String context) {
+    Diagnostics diagnostics = new Diagnostics();
+    TokenStream tokens = new Scanner(parser.source(), diagnostics).scanTokenStream();
+    Expression expected = new Parser(tokens, diagnostics).parseAll();
+
+    assertEquals(context, diagnostics.errors().toString(), parser.diagnostics().errors().toString());
+    if (diagnostics.hadError()) {
+      assertNull(context, tree);
+      return false;
+    }
+
+    assertNotNull(context, tree);
+    assertEquals(context, new AstPrinter().print(expected), new AstPrinter().print(tree));
+    assertEquals(context, lines(expected), lines(tree));
+    assertEquals(context, tokens.toList().toString(), parser.tokens().toList().toString());
+    return true;
+  }
+
+  private static String buffer(Random random) {
+    StringBuilder buffer = new StringBuilder();
+    for (int i = 0; i < 40; i++) {
+      buffer.append(random.nextInt(100)).append(random.nextBoolean() ? " + " : " == ").append(random.nextInt(9));
+      buffer.append(random.nextInt(5) == 0 ? ",\n" : ", ");
+    }
+    return buffer.append('7').toString();
+  }
+
+  // Operator lines in tree order, reused elements must have theirs shifted
+  private static String lines(Expression expression) {
+    StringBuilder lines = new StringBuilder();
+    appendLines(expression, lines);
+    return lines.toString();
+  }
+
+  private static void appendLines(Expression expression, StringBuilder lines) {
+    switch (expression.kind) {
+      case BINARY: {
+        Binary binary = (Binary) expression;
+        appendLines(binary.left, lines);
+        lines.append(binary.operator.line).append(' ');
+        appendLines(binary.right, lines);
+        break;
+      }
+      case LOGICAL: {
+        Logical logical = (Logical) expression;
+        appendLines(logical.left, lines);
+        lines.append(logical.operator.line).append(' ');
+        appendLines(logical.right, lines);
+        break;
+      }
+      case UNARY:
+        lines.append(((Unary) expression).operator.line).append(' ');
+        appendLines(((Unary) expression).right, lines);
+        break;
+      case TERNARY: {
+        Ternary ternary = (Ternary) expression;
+        appendLines(ternary.condition, lines);
+        appendLines(ternary.left, lines);
+        appendLines(ternary.right, lines);
+        break;
+      }
+      case GROUPING:
+        appendLines(((Grouping) expression).expression, lines);
+        break;
+      case COMMA:
+        for (Expression element : ((Comma) expression).expressions)
+          appendLines(element, lines);
+        break;
+      default:
+        break;
+    }
+  }
+}
@@ -0,0 +1,54 @@
+package jlox;
+
+import static jlox.RandomExpressions.*;
+
+import junit.framework.TestCase;
+
+// Differential check of the JIT tier against the tree walker on random
+// trees, both the generated classes directly and the Interpreter switching
+// over to them
+public class JitCompilerTest extends TestCase {
+  private static final int SOURCES = 3000;
+
+  public void testRandomTreesMatchTreeWalker() {
+    RandomExpressions expressions = new RandomExpressions(7);
+    for (int i = 0; i < SOURCES; i++) {
+      String source = expressions.source(6);
+      Expression expression = parse(source);
+
+      CompiledExpression compiled = JitCompiler.tryCompile(expression);
+      assertNotNull(source, compiled);
+      String expected = walk(expression);
+      assertEquals(source, expected, outcome(compiled::eval));
+      // Generated code keeps no state between calls
+      assertEquals(source, expected, outcome(compiled::eval));
+    }
+  }
+
+  // The tier compiles a tree on its third evaluation, every evaluation
+  // before and after must agree
+  public void testTierSwitchesOver() {
+    RandomExpressions expressions = new RandomExpressions(8);
+    Interpreter interpreter = new Interpreter(3);
+    for (int i = 0; i < 300; i++) {
+      String source = expressions.source(5);
+      Expression expression = parse(source);
+      String expected = walk(expression);
+      for (int evaluation = 0; evaluation < 5; evaluation++)
+        assertEquals(source + ", evaluation " + evaluation, expected,
+            outcome(() -> interpreter.interpret(expression)));
+    }
+  }
+
+  // Trees too high to compile stay in the iterative walker
+  public void testTallTreesMatchTreeWalker() {
+    RandomExpressions expressions = new RandomExpressions(9);
+    Interpreter interpreter = new Interpreter(1);
+    for (int i = 0; i < 10; i++) {
+      Expression expression = parse(expressions.tall(3 * Interpreter.RECURSION_LIMIT));
+      String expected = walk(expression);
+      assertEquals("tree " + i, expected, outcome(() -> interpreter.interpret(expression)));
+      assertEquals("tree " + i, expected, outcome(() -> interpreter.interpret(expression)));
+    }
+  }
+}
@@ -0,0 +1,75 @@
+package jlox;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+// Scanning a mapped file has to see the same characters as scanning its
+// decoded text, although MappedSource hands out bytes
+public class MappedSourceTest extends TestCase {
+  private Path file;
+
+  @Override
+  protected void setUp() throws IOException {
+    file = Files.createTempFile("jlox", ".lox");
+  }
+
+  @Override
+  protected void tearDown() throws IOException {
+    Files.deleteIfExists(file);
+  }
+
+  public void testOneErrorPerCharacter() throws IOException {
+    // Two, three and four byte characters
+    String source = "1 + é + 日😀, 2";
+    assertEquals(3, mappedErrors(source).size());
+    assertEquals(3, errors(source).size());
+  }
+
+  public void testByteOrderMarkIsSkipped() throws IOException {
+    String source = "﻿1 + 2";
+    assertEquals(List.of(), mappedErrors(source));
+    assertEquals(List.of(), errors(source));
+    assertEquals(3.0, new Engine().evaluate(source).value);
+  }
+
+  public void testByteOrderMarkInParallelScan() throws IOException {
+    StringBuilder source = new StringBuilder("﻿");
+    while (source.length() < ParallelScanner.MIN_PARALLEL_LENGTH)
+      source.append("1 + 1,\n");
+    source.append("é 2");
+
+    Files.write(file, source.toString().getBytes(StandardCharsets.UTF_8));
+    Diagnostics diagnostics = new Diagnostics();
+    ParallelScanner.scan(MappedSource.map(file), diagnostics);
+    assertEquals(1, diagnostics.errors().size());
+  }
+
+  public void testNonAsciiStringLiterals() throws IOException {
+    String source = "\"é\" == \"é\", \"日本語 and a longer tail\"";
+    Files.write(file, source.getBytes(StandardCharsets.UTF_8));
+    TokenStream tokens = new Scanner(MappedSource.map(file)).scanTokenStream();
+
+    assertEquals("é", tokens.literal(0));
+    // Interned, equal literals are one String
+    assertSame(tokens.literal(0), tokens.literal(2));
+    assertEquals("日本語 and a longer tail", tokens.literal(4));
+  }
+
+  private List<Diagnostics.Diagnostic> mappedErrors(String source) throws IOException {
+    Files.write(file, source.getBytes(StandardCharsets.UTF_8));
+    Diagnostics diagnostics = new Diagnostics();
+    new Scanner(MappedSource.map(file), diagnostics).scanTokenStream();
+    return diagnostics.errors();
+  }
+
+  private static List<Diagnostics.Diagnostic> errors(String source) {
+    Diagnostics diagnostics = new Diagnostics();
+    new Scanner(source, diagnostics).scanTokenStream();
+    return diagnostics.errors();
+  }
+}
@@ -0,0 +1,48 @@
+package jlox;
+
+import static jlox.RandomExpressions.*;
+
+import jlox.PrintAst.AstPrinter;
+import junit.framework.TestCase;
+
+// Differential check of Optimizer against the tree walker on random trees:
+// the optimized tree must give the same value or fail with the same error
+public class OptimizerTest extends TestCase {
+  private static final int SOURCES = 5000;
+
+  public void testRandomTreesMatchTreeWalker() {
+    RandomExpressions expressions = new RandomExpressions(6);
+    int folded = 0;
+    for (int i = 0; i < SOURCES; i++) {
+      String source = expressions.source(6);
+      Expression expression = parse(source);
+      String printed = new AstPrinter().print(expression);
+
+      Expression optimized = Optimizer.optimize(expression);
+      String expected = walk(expression);
+      assertEquals(source, expected, walk(optimized));
+      // Folding builds new nodes, the input is never changed
+      assertEquals(source, printed, new AstPrinter().print(expression));
+
+      // Every tree is constant, only a subtree that fails keeps it from
+      // becoming one literal
+      if (!expected.startsWith("error")) {
+        assertTrue(source, optimized instanceof Expression.Literal);
+        folded++;
+      }
+
+      Expression again = Optimizer.optimize(optimized);
+      assertEquals(source, new AstPrinter().print(optimized), new AstPrinter().print(again));
+    }
+
+    assertTrue("only " + folded + " folded", folded > SOURCES / 20);
+    assertTrue("only " + (SOURCES - folded) + " errors", folded < SOURCES * 19 / 20);
+  }
+
+  // Trees too high for the visitor come back as they are
+  public void testTallTreesAreLeftAlone() {
+    RandomExpressions expressions = new RandomExpressions(7);
+    Expression expression = parse(expressions.tall(3 * Interpreter.RECURSION_LIMIT));
+    assertSame(expression, Optimizer.optimize(expression));
+  }
+}
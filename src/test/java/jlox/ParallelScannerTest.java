@@ -0,0 +1,93 @@
+package jlox;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+
+import junit.framework.TestCase;
+
+// Differential check of ParallelScanner against one Scanner pass on random
+// sources just past the parallel threshold, with strings and nested block
+// comments running over the newlines the source is cut at
+public class ParallelScannerTest extends TestCase {
+  private static final String[] TOKENS = { "1", "2.5", "true", "nil", "+", "-", "*", "/", "==", "<", "?", ":", "(",
+      ")", "!", ",", "and", "or", "\"s\"", "// x", "/* c */", "$" };
+  // Strings and comments over several lines, nested comments included
+  private static final String[] SPANS = { "\"a\nb\n\"", "/* x\n/* y */\n*/", "/* /* /*\n*/ */\n*/", "\"\n\n\n\"" };
+
+  private static final int SOURCES = 6;
+
+  private ForkJoinPool pool;
+
+  @Override
+  protected void setUp() {
+    // Enough parallelism to cut the source even on a single core machine
+    pool = new ForkJoinPool(4);
+  }
+
+  @Override
+  protected void tearDown() {
+    pool.shutdown();
+  }
+
+  public void testRandomSourcesMatchScanner() {
+    Random random = new Random(11);
+    for (int i = 0; i < SOURCES; i++)
+      check(source(random), "source " + i);
+  }
+
+  // A string or comment left open runs to the end, over every later cut
+  public void testUnterminated() {
+    Random random = new Random(12);
+    String source = source(random);
+    int middle = source.indexOf('\n', source.length() / 3) + 1;
+    check(source.substring(0, middle) + "\"" + source.substring(middle), "string");
+    check(source.substring(0, middle) + "/*" + source.substring(middle), "comment");
+  }
+
+  public void testMappedSource() throws IOException {
+    String source = source(new Random(13));
+    Path file = Files.createTempFile("jlox", ".lox");
+    try {
+      Files.write(file, source.getBytes(StandardCharsets.UTF_8));
+      check(MappedSource.map(file), "mapped");
+    } finally {
+      Files.delete(file);
+    }
+  }
+
+  private void check(CharSequence source, String context) {
+    Diagnostics expectedDiagnostics = new Diagnostics();
+    TokenStream expected = new Scanner(source, expectedDiagnostics).scanTokenStream();
+    Diagnostics diagnostics = new Diagnostics();
+    TokenStream tokens = ParallelScanner.scan(source, diagnostics, pool);
+
+    assertEquals(context, expected.size(), tokens.size());
+    for (int i = 0; i < expected.size(); i++) {
+      String token = context + ", token " + i;
+      assertEquals(token, expected.type(i), tokens.type(i));
+      assertEquals(token, expected.start(i), tokens.start(i));
+      assertEquals(token, expected.length(i), tokens.length(i));
+      assertEquals(token, expected.line(i), tokens.line(i));
+    }
+    assertEquals(context, expectedDiagnostics.errors().toString(), diagnostics.errors().toString());
+  }
+
+  private static String source(Random random) {
+    int length = ParallelScanner.MIN_PARALLEL_LENGTH + random.nextInt(ParallelScanner.MIN_PARALLEL_LENGTH / 2);
+    StringBuilder source = new StringBuilder(length + 16);
+    while (source.length() < length) {
+      int piece = random.nextInt(100);
+      if (piece < 15)
+        source.append('\n');
+      else if (piece < 17)
+        source.append(SPANS[random.nextInt(SPANS.length)]);
+      else
+        source.append(TOKENS[random.nextInt(TOKENS.length)]).append(' ');
+    }
+    return source.toString();
+  }
+}
@@ -0,0 +1,54 @@
+package jlox;
+
+import java.util.List;
+
+import jlox.PrintAst.AstPrinter;
+import junit.framework.TestCase;
+
+public class ParserTest extends TestCase {
+  // Tokens after an element that aren't a comma are reported, parsing goes
+  // on with the next element
+  public void testLeftOverTokens() {
+    Diagnostics diagnostics = new Diagnostics();
+    Expression expression = parseAll("1 2, 3 +", diagnostics);
+
+    assertEquals(List.of("[line 1] Error at '2': Expect ',' or end of input.", "[line 1] Error at end: Expect expression"),
+        errors(diagnostics));
+    assertEquals("(comma <error> <error>)", new AstPrinter().print(expression));
+  }
+
+  public void testLeftOverTokensInLastElement() {
+    Diagnostics diagnostics = new Diagnostics();
+    parseAll("1, 2 3 4, 5 (6)", diagnostics);
+
+    assertEquals(List.of("[line 1] Error at '3': Expect ',' or end of input.",
+        "[line 1] Error at '(': Expect ',' or end of input."), errors(diagnostics));
+  }
+
+  public void testLeftOverTokensWithoutRecovery() {
+    Diagnostics diagnostics = new Diagnostics();
+    assertNull(new Parser(new Scanner("1 2").scanTokenStream(), diagnostics).parse());
+    assertEquals(List.of("[line 1] Error at '2': Expect ',' or end of input."), errors(diagnostics));
+  }
+
+  public void testCompleteList() {
+    Diagnostics diagnostics = new Diagnostics();
+    Expression expression = parseAll("1 + 2, 3 ? 4 : 5", diagnostics);
+    assertFalse(diagnostics.hadError());
+    assertEquals("(comma (+ 1.0 2.0) (ternary 3.0 4.0 5.0))", new AstPrinter().print(expression));
+  }
+
+  public void testEngineReportsLeftOverTokens() {
+    Engine.Result result = new Engine().evaluate("1 2, 3");
+    assertNull(result.value);
+    assertEquals(1, result.errors.size());
+  }
+
+  private static Expression parseAll(String source, Diagnostics diagnostics) {
+    return new Parser(new Scanner(source, diagnostics).scanTokenStream(), diagnostics).parseAll();
+  }
+
+  private static List<String> errors(Diagnostics diagnostics) {
+    return diagnostics.errors().stream().map(Object::toString).toList();
+  }
+}
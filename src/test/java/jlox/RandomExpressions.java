@@ -0,0 +1,97 @@
+package jlox;
+
+import java.util.Random;
+import java.util.function.Supplier;
+
+// Random sources for the differential tests: every backend has to agree
+// with the tree walker on them, runtime errors included
+final class RandomExpressions {
+  private static final String[] OPERATORS = { "+", "-", "*", "/", "<", "<=", ">", ">=", "==", "!=", "and", "or" };
+  private static final String[][] LEVELS = { { "+", "-" }, { "*", "/" }, { "==", "!=" }, { "and" }, { "or" } };
+
+  private final Random random;
+
+  RandomExpressions(long seed) {
+    this.random = new Random(seed);
+  }
+
+  Random random() {
+    return random;
+  }
+
+  // A comma list of one to three trees of at most depth levels
+  String source(int depth) {
+    StringBuilder source = new StringBuilder(expression(depth));
+    for (int elements = random.nextInt(3); elements > 0; elements--)
+      source.append(random.nextBoolean() ? ", " : ",\n").append(expression(depth - 1));
+    return source.toString();
+  }
+
+  String expression(int depth) {
+    if (depth <= 0 || random.nextInt(4) == 0)
+      return operand();
+
+    switch (random.nextInt(6)) {
+      case 0:
+        return (random.nextBoolean() ? "-" : "!") + expression(depth - 1);
+      case 1:
+        return expression(depth - 1) + " ? " + expression(depth - 1) + " : " + expression(depth - 1);
+      case 2:
+        return "(" + expression(depth - 1) + ")";
+      default: {
+        // Newlines now and then, errors report the operator's line
+        String operator = OPERATORS[random.nextInt(OPERATORS.length)];
+        String left = expression(depth - 1) + (random.nextInt(8) == 0 ? "\n" : " ");
+        return "(" + left + operator + " " + expression(depth - 1) + ")";
+      }
+    }
+  }
+
+  String operand() {
+    switch (random.nextInt(9)) {
+      case 0:
+        return "nil";
+      case 1:
+        return "true";
+      case 2:
+        return "false";
+      case 3:
+        return "\"s" + random.nextInt(3) + "\"";
+      case 4:
+        return "\"\"";
+      default:
+        return random.nextInt(3) + (random.nextBoolean() ? ".5" : "");
+    }
+  }
+
+  // A left leaning chain as high as it has operands, without nesting the
+  // parser would have to recurse into. The operators share one precedence
+  // level so the chain is not cut into lower subtrees.
+  String tall(int operands) {
+    String[] level = LEVELS[random.nextInt(LEVELS.length)];
+    StringBuilder source = new StringBuilder(operand());
+    for (int i = 1; i < operands; i++)
+      source.append(' ').append(level[random.nextInt(level.length)]).append(' ').append(operand());
+    return source.toString();
+  }
+
+  // A fresh tree on every call, backends that annotate or cache by tree must
+  // not see each other's
+  static Expression parse(String source) {
+    return new Parser(new Scanner(source).scanTokenStream()).parse();
+  }
+
+  // The value with its type or the runtime error with where it was found
+  static String outcome(Supplier<Object> evaluation) {
+    try {
+      Object value = evaluation.get();
+      return value == null ? "nil" : value.getClass().getSimpleName() + " " + value;
+    } catch (RuntimeError error) {
+      return "error " + error.getMessage() + " at '" + error.token.lexeme + "' [line " + error.token.line + "]";
+    }
+  }
+
+  static String walk(Expression expression) {
+    return outcome(() -> new Interpreter(-1).interpret(expression));
+  }
+}
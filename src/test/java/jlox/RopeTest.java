@@ -0,0 +1,114 @@
+package jlox;
+
+import static jlox.RandomExpressions.*;
+
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+// Differential check of Rope against plain String concatenation: random
+// texts split into random + trees, around Rope.MIN_LENGTH, evaluated by
+// every backend, and compared with == to texts split differently
+public class RopeTest extends TestCase {
+  private static final int TEXTS = 1000;
+
+  public void testConcatenationMatchesStrings() {
+    Random random = new Random(25);
+    for (int i = 0; i < TEXTS; i++) {
+      String text = text(random);
+      String source = split(random, text);
+      checkBackends(source, "String " + text);
+    }
+  }
+
+  // Equal texts split at different places, texts that differ in one
+  // character or in length
+  public void testEqualityMatchesStrings() {
+    Random random = new Random(26);
+    for (int i = 0; i < TEXTS; i++) {
+      String left = text(random);
+      String right = left;
+      if (random.nextBoolean() && !left.isEmpty()) {
+        int at = random.nextInt(left.length());
+        right = random.nextBoolean()
+            ? left.substring(0, at) + (left.charAt(at) == 'a' ? 'b' : 'a') + left.substring(at + 1)
+            : left.substring(0, at);
+      }
+
+      String operator = random.nextBoolean() ? " == " : " != ";
+      boolean expected = left.equals(right) == operator.equals(" == ");
+      checkBackends(split(random, left) + operator + split(random, right), "Boolean " + expected);
+    }
+  }
+
+  public void testRopesDirectly() {
+    Random random = new Random(27);
+    for (int i = 0; i < TEXTS; i++) {
+      String text = text(random);
+      Object rope = concat(random, text);
+      assertEquals(text.length(), Rope.length(rope));
+      assertTrue(Rope.contentEquals(rope, text));
+      assertTrue(Rope.contentEquals(rope, concat(random, text)));
+      assertFalse(Rope.contentEquals(rope, text + "a"));
+      // Flattened twice, the second time from the cached copy
+      assertEquals(text, Rope.flatten(rope));
+      assertEquals(text, Rope.flatten(rope));
+    }
+  }
+
+  // A chain much longer than the recursion limits, flattened without
+  // recursing once per piece
+  public void testLongChain() {
+    StringBuilder source = new StringBuilder("\"\"");
+    StringBuilder text = new StringBuilder();
+    for (int i = 0; i < 4 * Interpreter.RECURSION_LIMIT; i++) {
+      String piece = "p" + i;
+      source.append(" + \"").append(piece).append('"');
+      text.append(piece);
+    }
+    checkBackends(source.toString(), "String " + text);
+  }
+
+  private static void checkBackends(String source, String expected) {
+    Expression expression = parse(source);
+    assertNotNull(source, expression);
+
+    assertEquals(source, expected, walk(expression));
+    assertEquals(source, expected, outcome(() -> new VM().run(Compiler.compile(expression))));
+    assertEquals(source, expected, outcome(() -> new Interpreter().interpret(ExpressionFlattener.flatten(expression))));
+    if (TreeHeight.heightOf(expression) <= Interpreter.RECURSION_LIMIT) {
+      CompiledExpression compiled = JitCompiler.tryCompile(expression);
+      assertNotNull(source, compiled);
+      assertEquals(source, expected, outcome(compiled::eval));
+    }
+  }
+
+  // Mostly around MIN_LENGTH, so results are sometimes Ropes and sometimes
+  // copied into Strings
+  private static String text(Random random) {
+    int length = random.nextInt(4) == 0 ? random.nextInt(16) : random.nextInt(3 * Rope.MIN_LENGTH);
+    StringBuilder text = new StringBuilder(length);
+    for (int i = 0; i < length; i++)
+      text.append(random.nextInt(8) == 0 ? 'b' : 'a');
+    return text.toString();
+  }
+
+  // text as a + tree of string literals cut at random places
+  private static String split(Random random, String text) {
+    if (text.length() < 2 || random.nextInt(5) == 0)
+      return "\"" + text + "\"";
+
+    int at = random.nextInt(text.length() + 1);
+    String left = split(random, text.substring(0, at));
+    String right = split(random, text.substring(at));
+    return random.nextBoolean() ? "(" + left + " + " + right + ")" : left + " + " + right;
+  }
+
+  private static Object concat(Random random, String text) {
+    if (text.length() < 2 || random.nextInt(5) == 0)
+      return text;
+
+    int at = random.nextInt(text.length() + 1);
+    return Rope.concat(concat(random, text.substring(0, at)), concat(random, text.substring(at)));
+  }
+}
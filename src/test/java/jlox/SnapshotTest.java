@@ -0,0 +1,137 @@
+package jlox;
+
+import static jlox.RandomExpressions.*;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.zip.CRC32C;
+
+import jlox.PrintAst.AstPrinter;
+import junit.framework.TestCase;
+
+public class SnapshotTest extends TestCase {
+  // Where the header keeps the CRC32C of the rest of the file
+  private static final int CHECKSUM_OFFSET = 28;
+  private static final int HEADER_SIZE = 32;
+
+  private Path file;
+
+  @Override
+  protected void setUp() throws IOException {
+    file = Files.createTempFile("jlox", ".loxc");
+  }
+
+  @Override
+  protected void tearDown() throws IOException {
+    Files.deleteIfExists(file);
+  }
+
+  // Differential check of random trees written and mapped back: the same
+  // tree, and the same outcome from the arena and the inflated tree
+  public void testRoundTrip() throws IOException {
+    RandomExpressions expressions = new RandomExpressions(21);
+    for (int i = 0; i < 500; i++) {
+      String source = expressions.source(5) + (i % 10 == 0 ? ", \"é日\"" : "");
+      Expression expression = parse(source);
+      Snapshot.write(expression, file);
+
+      Snapshot snapshot = Snapshot.map(file);
+      assertEquals(source, new AstPrinter().print(expression), new AstPrinter().print(snapshot.expression()));
+      String expected = walk(expression);
+      ExpressionArena arena = snapshot.arena();
+      assertEquals(source, expected, outcome(() -> new Interpreter(-1).interpret(arena)));
+      assertEquals(source, expected, walk(snapshot.expression()));
+    }
+  }
+
+  public void testTruncated() throws IOException {
+    byte[] bytes = write("1 + 2, \"three\"");
+    for (int length = HEADER_SIZE; length < bytes.length; length++) {
+      Files.write(file, Arrays.copyOf(bytes, length));
+      assertCorrupt("length " + length, "Checksum mismatch");
+    }
+  }
+
+  public void testBadChecksum() throws IOException {
+    byte[] bytes = write("1 + 2, \"three\"");
+    bytes[bytes.length - 1] ^= 1;
+    Files.write(file, bytes);
+    assertCorrupt("flipped bit", "Checksum mismatch");
+  }
+
+  public void testNotASnapshot() throws IOException {
+    Files.write(file, new byte[] { 'J', 'L', 'X' });
+    try {
+      Snapshot.map(file);
+      fail();
+    } catch (Snapshot.CorruptException e) {
+      assertTrue(e.getMessage(), e.getMessage().startsWith("Not a snapshot"));
+    }
+  }
+
+  // Damage that keeps the checksum right still has to be caught before the
+  // arena is walked, only CorruptException may come out
+  public void testDamagedContent() throws IOException {
+    RandomExpressions expressions = new RandomExpressions(22);
+    Random random = expressions.random();
+    int accepted = 0;
+    for (int i = 0; i < 200; i++) {
+      byte[] bytes = write(expressions.source(4));
+      for (int mutant = 0; mutant < 20; mutant++) {
+        byte[] damaged = bytes.clone();
+        int at = 16 + random.nextInt(damaged.length - 16);
+        if (at >= CHECKSUM_OFFSET && at < HEADER_SIZE)
+          at = 16;
+        damaged[at] ^= 1 << random.nextInt(8);
+        ByteBuffer buffer = ByteBuffer.wrap(damaged).order(ByteOrder.LITTLE_ENDIAN);
+        buffer.putInt(CHECKSUM_OFFSET, checksum(damaged));
+        Files.write(file, damaged);
+
+        ExpressionArena arena;
+        Expression expression;
+        try {
+          Snapshot snapshot = Snapshot.map(file);
+          arena = snapshot.arena();
+          expression = snapshot.expression();
+        } catch (Snapshot.CorruptException e) {
+          continue;
+        }
+
+        // Changed constants and operators still make a valid tree
+        accepted++;
+        String context = "tree " + i + ", byte " + at;
+        assertEquals(context, walk(expression), outcome(() -> new Interpreter(-1).interpret(arena)));
+        assertEquals(context, walk(expression), outcome(() -> new VM().run(Compiler.compile(expression))));
+      }
+    }
+
+    assertTrue("only " + accepted + " accepted", accepted > 0);
+  }
+
+  private byte[] write(String source) throws IOException {
+    Snapshot.write(parse(source), file);
+    return Files.readAllBytes(file);
+  }
+
+  private void assertCorrupt(String context, String problem) throws IOException {
+    Snapshot snapshot = Snapshot.map(file);
+    try {
+      snapshot.arena();
+      fail(context);
+    } catch (Snapshot.CorruptException e) {
+      assertTrue(context + ": " + e.getMessage(), e.getMessage().contains(problem));
+    }
+  }
+
+  private static int checksum(byte[] bytes) {
+    CRC32C crc = new CRC32C();
+    crc.update(bytes, 0, CHECKSUM_OFFSET);
+    crc.update(bytes, HEADER_SIZE, bytes.length - HEADER_SIZE);
+    return (int) crc.getValue();
+  }
+}
@@ -0,0 +1,52 @@
+package jlox;
+
+import static jlox.RandomExpressions.*;
+
+import junit.framework.TestCase;
+
+// Differential check of Compiler and VM against the tree walker on random
+// trees, values, types and runtime errors alike
+public class VMTest extends TestCase {
+  private static final int SOURCES = 5000;
+
+  public void testRandomTreesMatchTreeWalker() {
+    RandomExpressions expressions = new RandomExpressions(4);
+    int errors = 0;
+    for (int i = 0; i < SOURCES; i++) {
+      String source = expressions.source(6);
+      Expression expression = parse(source);
+      assertNotNull(source, expression);
+
+      String expected = walk(expression);
+      if (expected.startsWith("error"))
+        errors++;
+      assertEquals(source, expected, outcome(() -> new VM().run(Compiler.compile(expression))));
+    }
+
+    // Both outcomes must be common enough to be checked
+    assertTrue("only " + errors + " errors", errors > SOURCES / 20);
+    assertTrue("only " + (SOURCES - errors) + " values", errors < SOURCES * 19 / 20);
+  }
+
+  // Higher than the recursion limits, compiled and walked iteratively
+  public void testTallTreesMatchTreeWalker() {
+    RandomExpressions expressions = new RandomExpressions(5);
+    for (int i = 0; i < 20; i++) {
+      String source = expressions.tall(3 * Interpreter.RECURSION_LIMIT);
+      Expression expression = parse(source);
+      assertTrue(TreeHeight.heightOf(expression) > Interpreter.RECURSION_LIMIT);
+      assertEquals("tree " + i, walk(expression), outcome(() -> new VM().run(Compiler.compile(expression))));
+    }
+  }
+
+  // One VM runs many chunks, nothing may leak from one run into the next
+  public void testReusedVM() {
+    RandomExpressions expressions = new RandomExpressions(6);
+    VM vm = new VM();
+    for (int i = 0; i < 500; i++) {
+      String source = expressions.source(5);
+      Expression expression = parse(source);
+      assertEquals(source, walk(expression), outcome(() -> vm.run(Compiler.compile(expression))));
+    }
+  }
+}